@@ -19,7 +19,6 @@
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.xpath.XPathAPI;
@@ -34,26 +33,38 @@
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
 import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryPoolMXBean;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.nio.file.Path;
-import java.util.Date;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipInputStream;
 import javax.xml.stream.XMLStreamException;
+import nl.mpi.oai.harvester.utils.ByteBufferInputStream;
 import nl.mpi.oai.harvester.utils.DocumentSource;
-import nl.mpi.oai.harvester.utils.MarkableFileInputStream;
+import nl.mpi.oai.harvester.utils.ExecutionSlots;
+import nl.mpi.oai.harvester.utils.HttpTransport;
+import nl.mpi.oai.harvester.utils.PaceController;
+import nl.mpi.oai.harvester.utils.Spool;
+import nl.mpi.oai.harvester.utils.SpoolingInputStream;
 import org.codehaus.stax2.XMLInputFactory2;
 import org.codehaus.stax2.XMLStreamReader2;
 import org.codehaus.stax2.evt.XMLEvent2;
@@ -78,6 +89,8 @@ public abstract class HarvesterVerb {
     private Document doc = null;
     private String schemaLocation = null;
     private String requestURL = null;
+    private HttpHeaders responseHeaders = null;
+    private boolean notModified = false;
     private static HashMap builderMap = new HashMap();
     private static Element namespaceElement = null;
     private static DocumentBuilderFactory factory = null;
@@ -143,12 +156,37 @@ public DocumentSource getDocumentSource() {
         return new DocumentSource(requestURL,getStream());
     }
     
+    /**
+     * Did a conditional request find the cached response still valid? If so
+     * there is neither a stream nor a document.
+     *
+     * @return true if the server answered 304 Not Modified
+     */
+    public boolean isNotModified() {
+        return notModified;
+    }
+
+    /**
+     * Get a header of the HTTP response, e.g. to make the next request for
+     * the same URL conditional.
+     *
+     * @param name the header name
+     * @return the first value of the header, or null if it is absent
+     */
+    public String getResponseHeader(String name) {
+        if (responseHeaders == null)
+            return null;
+        return responseHeaders.firstValue(name).orElse(null);
+    }
+
     /**
      * Get the OAI response as a stream
      * 
      * @return the InputStream for the OAI response
      */
     public InputStream getStream() {
+        if (str instanceof ByteBufferInputStream)
+            return ((ByteBufferInputStream) str).newReader();
         if (hasStream()) {
             try {
                 str.reset();
@@ -274,6 +312,16 @@ public HarvesterVerb(String requestURL,int timeout,Path temp) throws IOException
         harvest(requestURL,timeout,temp);
     }
 
+    public HarvesterVerb(String requestURL,int timeout,Path temp,boolean streaming) throws IOException,
+    ParserConfigurationException, SAXException, TransformerException {
+        harvest(requestURL,timeout,temp,streaming);
+    }
+
+    public HarvesterVerb(String requestURL,int timeout,Map<String,String> headers) throws IOException,
+    ParserConfigurationException, SAXException, TransformerException {
+        harvest(requestURL,timeout,null,false,headers);
+    }
+
     /**
      * Preforms the OAI request
      * 
@@ -286,83 +334,164 @@ public HarvesterVerb(String requestURL,int timeout,Path temp) throws IOException
      * @throws TransformerException
      */
     public void harvest(String requestURL, int timeout, Path temp) throws MalformedURLException, IOException {
+        harvest(requestURL, timeout, temp, false);
+    }
+
+    /**
+     * Preforms the OAI request
+     * 
+     * When streaming the response is not read before returning, instead the
+     * stream hands out the bytes as they arrive and keeps a copy of them in
+     * temp, so it can be reset. Otherwise the response is read into temp,
+     * mapped into memory, and every reader gets a view of its own. Without
+     * temp the response is always buffered.
+     * 
+     * @param requestURL
+     * @param timeout
+     * @param temp
+     * @param streaming
+     * @throws IOException
+     */
+    public void harvest(String requestURL, int timeout, Path temp, boolean streaming) throws MalformedURLException, IOException {
+        harvest(requestURL, timeout, temp, streaming, Collections.emptyMap());
+    }
+
+    /**
+     * Preforms the OAI request with additional request headers
+     * 
+     * With If-None-Match or If-Modified-Since among the headers the request
+     * is conditional: if the server answers 304 Not Modified there is no
+     * response to read, see {@link #isNotModified()}.
+     * 
+     * @param requestURL
+     * @param timeout
+     * @param temp
+     * @param streaming
+     * @param headers
+     * @throws IOException
+     */
+    public void harvest(String requestURL, int timeout, Path temp, boolean streaming, Map<String,String> headers) throws MalformedURLException, IOException {
         this.requestURL = requestURL;
         logger.debug("requestURL=" + this.requestURL);
         InputStream in = null;
-        URL url = new URL(this.requestURL);
-        HttpURLConnection con = null;
+        HttpResponse<InputStream> response = null;
         int responseCode = 0;
+        PaceController pace = HttpTransport.getInstance().getPace(requestURL);
         do {
-            con = (HttpURLConnection) url.openConnection();
-            con.setRequestProperty("User-Agent", "OAIHarvester/2.0");
-            con.setRequestProperty("Accept-Encoding",
-            "compress, gzip, identify");
-            if (timeout > 0) {
-                logger.debug("timeout=" + timeout);
-                con.setConnectTimeout(timeout*1000);
-                con.setReadTimeout(timeout*1000);
-            }
+            long start;
             try {
-                responseCode = con.getResponseCode();
+                if (pace != null)
+                    pace.await();
+                start = System.nanoTime();
+                response = HttpTransport.getInstance().get(this.requestURL, timeout, headers);
+                responseCode = response.statusCode();
                 logger.debug("responseCode=" + responseCode);
-            } catch (FileNotFoundException e) {
-                // assume it's a 503 response
-                logger.info(requestURL, e);
-                responseCode = HttpURLConnection.HTTP_UNAVAILABLE;
-            } catch(Exception e) {
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while pacing URL["+requestURL+"]");
+            } catch(IOException e) {
                 logger.error("couldn't connect to '"+requestURL+"': "+e.getMessage());
                 throw e;
             }
-            if (responseCode == HttpURLConnection.HTTP_MOVED_PERM || responseCode == HttpURLConnection.HTTP_MOVED_TEMP || responseCode == HttpURLConnection.HTTP_SEE_OTHER) {
-                this.requestURL = con.getHeaderField("Location");
-                logger.debug("redirect to requestURL=" + this.requestURL);
-                url = new URL(this.requestURL);
-                responseCode = HttpURLConnection.HTTP_UNAVAILABLE;
-            } else if (responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
-                long retrySeconds = con.getHeaderFieldInt("Retry-After", -1);
-                if (retrySeconds == -1) {
-                    long now = (new Date()).getTime();
-                    long retryDate = con.getHeaderFieldDate("Retry-After", now);
-                    retrySeconds = retryDate - now;
-                }
-                if (retrySeconds == 0) { // Apparently, it's a bad URL
+            // redirects are followed by the transport
+            this.requestURL = response.uri().toString();
+            if (responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+                response.body().close();
+                long retrySeconds = getRetryAfter(response);
+                if (pace != null)
+                    pace.onThrottle(retrySeconds);
+                if (retrySeconds <= 0) { // Apparently, it's a bad URL
                     throw new FileNotFoundException("Bad URL["+requestURL+"]?");
                 }
                 logger.debug("Retry-After=" + retrySeconds);
-                if (retrySeconds > 0) {
+                // with a pace controller the wait happens before the next request
+                if (pace == null) {
                     try {
-                        Thread.sleep(retrySeconds * 1000);
+                        ExecutionSlots.sleep(retrySeconds, TimeUnit.SECONDS);
                     } catch (InterruptedException ex) {
                         logger.error(ex);
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted while waiting to retry URL["+requestURL+"]");
                     }
                 }
+            } else if (responseCode == HttpURLConnection.HTTP_NOT_FOUND || responseCode == HttpURLConnection.HTTP_GONE) {
+                response.body().close();
+                throw new FileNotFoundException("Bad URL["+requestURL+"]?");
+            } else if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                response.body().close();
+                throw new IOException("Server returned HTTP response code: "+responseCode+" for URL: "+requestURL);
+            } else if (pace != null) {
+                pace.onResponse(System.nanoTime() - start);
             }
         } while (responseCode == HttpURLConnection.HTTP_UNAVAILABLE);
-        String contentEncoding = con.getHeaderField("Content-Encoding");
+        responseHeaders = response.headers();
+        if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            response.body().close();
+            logger.debug("not modified URL["+requestURL+"]");
+            notModified = true;
+            return;
+        }
+        String contentEncoding = response.headers().firstValue("Content-Encoding").orElse(null);
         logger.debug("Content-Encoding=" + contentEncoding);
-        if ("compress".equals(contentEncoding)) {
-            ZipInputStream zis = new ZipInputStream(con.getInputStream());
-            zis.getNextEntry();
-            in = zis;
-        } else if ("gzip".equals(contentEncoding)) {
-            in = new GZIPInputStream(con.getInputStream());
-        } else if ("deflate".equals(contentEncoding)) {
-            in = new InflaterInputStream(con.getInputStream());
-        } else {
-            in = con.getInputStream();
+        try {
+            if ("compress".equals(contentEncoding)) {
+                ZipInputStream zis = new ZipInputStream(response.body());
+                zis.getNextEntry();
+                in = zis;
+            } else if ("gzip".equals(contentEncoding)) {
+                in = new GZIPInputStream(response.body());
+            } else if ("deflate".equals(contentEncoding)) {
+                in = new InflaterInputStream(response.body());
+            } else {
+                in = response.body();
+            }
+        } catch (IOException e) {
+            // closing the body gives back the connection and the host permit
+            response.body().close();
+            throw e;
         }
         
-        if (temp!=null) {
-            FileOutputStream out = new FileOutputStream(temp.toFile());
-            org.apache.commons.io.IOUtils.copy(in,out,1000000);
-            out.close();
-            logger.debug("temp["+temp+"] for URL["+requestURL+"]");
-            str = new MarkableFileInputStream(new FileInputStream(temp.toFile()));
-        } else {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            int size = org.apache.commons.io.IOUtils.copy(in, baos);
-            logger.debug("buffered ["+size+"] bytes for URL["+requestURL+"]");
-            str = new ByteArrayInputStream(baos.toByteArray());
+        if (streaming && temp!=null) {
+            logger.debug("streaming URL["+requestURL+"] via temp["+temp+"]");
+            str = new SpoolingInputStream(in, temp);
+            return;
+        }
+        try {
+            if (temp!=null) {
+                str = new ByteBufferInputStream(Spool.of(temp).fill(in));
+                logger.debug("temp["+temp+"] for URL["+requestURL+"]");
+            } else {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                int size = org.apache.commons.io.IOUtils.copy(in, baos);
+                logger.debug("buffered ["+size+"] bytes for URL["+requestURL+"]");
+                str = new ByteArrayInputStream(baos.toByteArray());
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Get the number of seconds a 503 response asks us to wait, the
+     * Retry-After header can either contain a number of seconds or a date.
+     *
+     * @param response the 503 response
+     * @return the number of seconds to wait, or -1 if unknown
+     */
+    private static long getRetryAfter(HttpResponse<?> response) {
+        String retryAfter = response.headers().firstValue("Retry-After").orElse(null);
+        if (retryAfter == null)
+            return -1;
+        try {
+            return Long.parseLong(retryAfter.trim());
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(1, Duration.between(ZonedDateTime.now(), date).getSeconds());
+            } catch (DateTimeParseException ex) {
+                logger.warn("couldn't parse Retry-After["+retryAfter+"]");
+                return -1;
+            }
         }
     }
     
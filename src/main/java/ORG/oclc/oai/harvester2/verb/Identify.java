@@ -25,6 +25,7 @@
 import javax.xml.transform.TransformerException;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.Map;
 
 /**
  * This class represents an Identify response on either the server or
@@ -58,6 +59,21 @@ public Identify(String baseURL, int timeout)
     TransformerException {
         super(getRequestURL(baseURL), timeout);
     }
+
+    /**
+     * Client-side Identify verb constructor with additional request headers,
+     * e.g. to revalidate a cached response
+     *
+     * @param baseURL the baseURL of the server to be queried
+     * @param timeout the timeout in seconds, 0 means none
+     * @param headers the additional request headers
+     * @exception IOException an I/O error occurred
+     */
+    public Identify(String baseURL, int timeout, Map<String, String> headers)
+    throws IOException, ParserConfigurationException, SAXException,
+    TransformerException {
+        super(getRequestURL(baseURL), timeout, headers);
+    }
     
     /**
      * Get the oai:protocolVersion value from the Identify response
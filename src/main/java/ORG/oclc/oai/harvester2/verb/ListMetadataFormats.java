@@ -24,6 +24,7 @@
 import javax.xml.transform.TransformerException;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.Map;
 
 /**
  * This class represents an ListMetadataFormats response on either the server or
@@ -58,6 +59,21 @@ public ListMetadataFormats(String baseURL, int timeout)
     TransformerException {
         this(baseURL, null, timeout);
     }
+
+    /**
+     * Client-side ListMetadataFormats verb constructor with additional
+     * request headers, e.g. to revalidate a cached response
+     *
+     * @param baseURL the baseURL of the server to be queried
+     * @param timeout the timeout in seconds, 0 means none
+     * @param headers the additional request headers
+     * @exception IOException an I/O error occurred
+     */
+    public ListMetadataFormats(String baseURL, int timeout, Map<String, String> headers)
+    throws IOException, ParserConfigurationException, SAXException,
+    TransformerException {
+        super(getRequestURL(baseURL, null), timeout, headers);
+    }
     
     /**
      * Client-side ListMetadataFormats verb constructor (identifier version)
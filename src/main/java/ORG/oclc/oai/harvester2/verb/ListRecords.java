@@ -43,6 +43,9 @@
  */
 public class ListRecords extends HarvesterVerb {
     private static Logger logger = LogManager.getLogger(ListRecords.class);
+
+    // the completeListSize of the resumption token, -1 if unknown
+    private long completeListSize = -1;
     
     /**
      * Mock object constructor (for unit testing purposes)
@@ -80,6 +83,13 @@ public ListRecords(String baseURL, String from, String until,
         super(getRequestURL(baseURL, from, until, set, metadataPrefix), timeout, temp);
     }
 
+    public ListRecords(String baseURL, String from, String until,
+            String set, String metadataPrefix, int timeout, Path temp, boolean streaming)
+    throws IOException, ParserConfigurationException, SAXException,
+    TransformerException {
+        super(getRequestURL(baseURL, from, until, set, metadataPrefix), timeout, temp, streaming);
+    }
+
     /**
      * Client-side ListRecords verb constructor (resumptionToken version)
      * @param baseURL
@@ -106,6 +116,12 @@ public ListRecords(String baseURL, String resumptionToken, int timeout, Path tem
     TransformerException {
         super(getRequestURL(baseURL, resumptionToken), timeout, temp);
     }
+
+    public ListRecords(String baseURL, String resumptionToken, int timeout, Path temp, boolean streaming)
+    throws IOException, ParserConfigurationException, SAXException,
+    TransformerException {
+        super(getRequestURL(baseURL, resumptionToken), timeout, temp, streaming);
+    }
     
     /**
      * Get the oai:resumptionToken from the response
@@ -118,8 +134,10 @@ public String getResumptionToken()
     throws TransformerException, NoSuchFieldException, ParserConfigurationException, SAXException, IOException, XMLStreamException {
         String schemaLocation = getSchemaLocation();
         if (schemaLocation.indexOf(SCHEMA_LOCATION_V2_0) != -1) {
-            if (hasDocument())
+            if (hasDocument()) {
+                completeListSize = parseSize(getSingleString("/oai20:OAI-PMH/oai20:ListRecords/oai20:resumptionToken/@completeListSize"));
                 return getSingleString("/oai20:OAI-PMH/oai20:ListRecords/oai20:resumptionToken");
+            }
             String token = null;
             XMLInputFactory2 xmlif = (XMLInputFactory2) XMLInputFactory2.newInstance();
             xmlif.configureForConvenience();
@@ -133,8 +151,10 @@ public String getResumptionToken()
                             case XMLEvent2.START_ELEMENT:
                                 QName qn = xmlr.getName();
                                 //logger.debug("finding token in the XML stream: node["+qn.getNamespaceURI()+"]["+qn.getLocalPart()+"]");
-                                if (qn.getNamespaceURI().equals("http://www.openarchives.org/OAI/2.0/") && qn.getLocalPart().equals("resumptionToken"))
+                                if (qn.getNamespaceURI().equals("http://www.openarchives.org/OAI/2.0/") && qn.getLocalPart().equals("resumptionToken")) {
+                                    completeListSize = parseSize(xmlr.getAttributeValue(null, "completeListSize"));
                                     state = 2;//FOUND
+                                }
                                 break;
                         }
                         break;
@@ -174,6 +194,24 @@ public String getResumptionToken()
         }
     }
     
+    /**
+     * Get the completeListSize attribute of the oai:resumptionToken, once
+     * the token has been looked up
+     *
+     * @return the size of the complete list, -1 if unknown
+     */
+    public long getCompleteListSize() {
+        return completeListSize;
+    }
+
+    private static long parseSize(String size) {
+        try {
+            return (size == null || size.isEmpty()) ? -1 : Long.parseLong(size.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     /**
      * Construct the query portion of the http request
      *
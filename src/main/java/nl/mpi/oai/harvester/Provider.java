@@ -18,7 +18,9 @@
 
 package nl.mpi.oai.harvester;
 
+import ORG.oclc.oai.harvester2.verb.HarvesterVerb;
 import ORG.oclc.oai.harvester2.verb.Identify;
+import ORG.oclc.oai.harvester2.verb.ListMetadataFormats;
 import nl.mpi.oai.harvester.action.ActionSequence;
 import nl.mpi.oai.harvester.control.Main;
 import nl.mpi.oai.harvester.control.Util;
@@ -27,7 +29,13 @@
 import nl.mpi.oai.harvester.harvesting.scenarios.ScenarioFactory;
 import nl.mpi.oai.harvester.metadata.MetadataFactory;
 import nl.mpi.oai.harvester.metadata.NSContext;
+import nl.mpi.oai.harvester.utils.CachedResponse;
+import nl.mpi.oai.harvester.utils.ExecutionSlots;
+import nl.mpi.oai.harvester.utils.HttpTransport;
+import nl.mpi.oai.harvester.utils.PaceController;
+import nl.mpi.oai.harvester.utils.Spool;
 import nl.mpi.oai.harvester.utils.Statistic;
+import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.eclipse.persistence.oxm.annotations.XmlClassExtractor;
@@ -44,10 +52,12 @@
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -88,6 +98,24 @@ public class Provider {
     /** Do I need some time on my own? */
     public boolean exclusive = false;
 
+    /** Process ListRecords responses while they come in. */
+    public Boolean streaming;
+
+    /** Number of ListRecords responses to fetch ahead of processing. */
+    public Integer prefetch;
+
+    /** Length of the queue per action when running the actions as a pipeline. */
+    public Integer pipeline;
+
+    /** Number of (prefix, set) combinations harvested at the same time. */
+    public Integer partitions;
+
+    /** Number of date windows to split the harvest into. */
+    public Integer dateWindows;
+
+    /** Maximum number of records in a date window. */
+    public Long windowMaxRecords;
+
     /**
      * We make so many XPath queries we could just as well keep one XPath
      * object to hand for them.
@@ -99,6 +127,9 @@ public class Provider {
     
     public Path temp;
 
+    // additional temp files, e.g. for responses fetched ahead
+    private final List<Path> temps = new ArrayList<>();
+
 	/**
 	 * Provider deletion mode
 	 */
@@ -113,7 +144,12 @@ public class Provider {
     private ResumeDetails resumeDetails;
     private Statistic currentStatistic;
     private Statistic historyStatistic;
+    private PaceController pace = new PaceController();
     private Set<String> deleted;
+    private Document identify;
+    private boolean identifyFetched = false;
+    // the ListMetadataFormats response, shared by the action sequences
+    private Document metadataFormats;
 
 
     /**
@@ -173,16 +209,37 @@ public void init() {
 		if(deletionMode == null) fetchDeletionMode();
 		this.resumeDetails = loadResumeDetails();
 		this.historyStatistic = loadHistoryStatistic();
+		this.pace = loadPace();
+		currentStatistic.start();
+		if (oaiUrl != null)
+		    HttpTransport.getInstance().setPace(oaiUrl, pace);
     }
 
     public void close() {
+	currentStatistic.stop();
+	if (oaiUrl != null)
+	    HttpTransport.getInstance().removePace(oaiUrl, pace);
+	if (Main.config != null)
+	    pace.persist(getPacePath());
 	if (temp != null) {
+	    Spool.close(temp);
 	    try {
                 Files.deleteIfExists(temp);
             } catch (IOException ex) {
 	            logger.error(ex.getMessage());
             }
         }
+        synchronized (temps) {
+            for (Path t : temps) {
+                Spool.close(t);
+                try {
+                    Files.deleteIfExists(t);
+                } catch (IOException ex) {
+                    logger.error(ex.getMessage());
+                }
+            }
+            temps.clear();
+        }
 	saveRemovedIds(); //so we can remove them from solr
 	purgeFilesBelongingToRemovedIds();
     }
@@ -311,27 +368,214 @@ public String[] getSets() {
     }
 
     /**
-     * Get the name declared by an OAI-PMH provider by making an
-     * Identify request. Returns null if no name can be found.
-     * @return provider name
+     * Get the Identify response of the provider. It is requested at most once
+     * per run and kept on disk, so the next run only has to ask whether it
+     * changed. If the provider can't be reached the response of an earlier
+     * run is used.
+     *
+     * @return the Identify response, or null if there is none
      */
-    public String getProviderName() {
+    public Document getIdentify() {
+        return getIdentify(getTimeout());
+    }
+
+    /**
+     * Get the Identify response of the provider, requesting it with the
+     * given timeout if that hasn't happened yet.
+     *
+     * @param timeout the timeout in seconds, 0 means none
+     * @return the Identify response, or null if there is none
+     */
+    public synchronized Document getIdentify(int timeout) {
+        if (!identifyFetched) {
+            identifyFetched = true;
+            identify = fetchIdentify(timeout);
+        }
+        return identify;
+    }
+
+    private Document fetchIdentify(int timeout) {
+        Path path = getCachePath("identify");
+        CachedResponse cached = loadCached(path);
         try {
-            Identify ident = new Identify(oaiUrl, getTimeout());
-            return parseProviderName(ident.getDocument());
+            return fetchCached(path, cached, "Identify",
+                    headers -> new Identify(oaiUrl, timeout, headers));
         } catch (IOException | ParserConfigurationException | SAXException
-                    | TransformerException e) {
-            logger.error(e.getMessage(), e);
+                | TransformerException e) {
+            if (cached != null) {
+                logger.warn("Couldn't get the Identify response of " + oaiUrl + ", using the one of an earlier run: "
+                        + e.getMessage());
+                try {
+                    return parseCached(cached.getBytes());
+                } catch (IOException | SAXException ex) {
+                    logger.error(ex.getMessage(), ex);
+                }
+            } else {
+                logger.error(e.getMessage(), e);
+            }
         }
         return null;
     }
 
+    /**
+     * A request for a verb, with additional request headers.
+     */
+    private interface VerbRequest {
+        HarvesterVerb request(Map<String, String> headers) throws IOException,
+                ParserConfigurationException, SAXException, TransformerException;
+    }
+
+    private CachedResponse loadCached(Path path) {
+        if (path == null)
+            return null;
+        return CachedResponse.load(path).filter(c -> oaiUrl.equals(c.url) && c.body != null).orElse(null);
+    }
+
+    // request a response, conditionally if there is a cached copy, and keep
+    // the new response on disk
+    private Document fetchCached(Path path, CachedResponse cached, String verb, VerbRequest request)
+            throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        HarvesterVerb response = request.request(
+                cached == null ? Collections.emptyMap() : cached.getConditionalHeaders());
+        if (response.isNotModified() && cached != null) {
+            logger.debug(verb + " response of " + oaiUrl + " not modified");
+            cached.fetched = System.currentTimeMillis();
+            cached.persist(path);
+            return parseCached(cached.getBytes());
+        }
+        byte[] body = IOUtils.toByteArray(response.getStream());
+        Document doc = parseCached(body);
+        if (path != null)
+            new CachedResponse(oaiUrl, response.getResponseHeader("ETag"),
+                    response.getResponseHeader("Last-Modified"), body).persist(path);
+        return doc;
+    }
+
+    private Document parseCached(byte[] body) throws IOException, SAXException {
+        return db.parse(new ByteArrayInputStream(body));
+    }
+
+    /**
+     * Get the ListMetadataFormats response of the provider. It is shared by
+     * all action sequences of a run, and kept on disk. Within the formats-ttl
+     * setting a next run uses that copy without a request, afterwards it asks
+     * whether the response changed.
+     *
+     * @param timeout the timeout in seconds, 0 means none
+     * @return the ListMetadataFormats response
+     * @throws IOException the request failed
+     * @throws ParserConfigurationException configuration problem
+     * @throws SAXException the response couldn't be parsed
+     * @throws TransformerException the response couldn't be parsed
+     */
+    public synchronized Document getMetadataFormats(int timeout) throws IOException,
+            ParserConfigurationException, SAXException, TransformerException {
+        if (metadataFormats == null) {
+            Path path = getCachePath("formats");
+            CachedResponse cached = loadCached(path);
+            long ttl = Main.config == null ? 0 : Main.config.getFormatsTtl();
+            if (cached != null && System.currentTimeMillis() - cached.fetched < TimeUnit.SECONDS.toMillis(ttl)) {
+                logger.debug("using the cached ListMetadataFormats response of " + oaiUrl);
+                metadataFormats = parseCached(cached.getBytes());
+            } else {
+                metadataFormats = fetchCached(path, cached, "ListMetadataFormats",
+                        headers -> new ListMetadataFormats(oaiUrl, timeout, headers));
+            }
+        }
+        return metadataFormats;
+    }
+
+    /**
+     * Resolve the Identify and ListMetadataFormats responses ahead of the
+     * harvest. The formats are kept for all action sequences of this run.
+     * The formats are requested up to the maximum retry count of the
+     * provider, with its retry delays in between, like the harvest does.
+     *
+     * @param timeout the timeout in seconds, 0 means none
+     * @return false if the provider couldn't be reached
+     */
+    public boolean prefetch(int timeout) {
+        getIdentify(timeout);
+        getName();
+        int tries = Math.max(1, getMaxRetryCount());
+        for (int i = 0; i < tries; i++) {
+            try {
+                getMetadataFormats(timeout);
+                return true;
+            } catch (IOException | ParserConfigurationException | SAXException
+                    | TransformerException e) {
+                logger.warn("Couldn't get the metadata formats of " + oaiUrl + " try[" + (i + 1) + "/"
+                        + tries + "]: " + e.getMessage());
+            }
+            if (i + 1 < tries && getRetryDelay(i) > 0) {
+                try {
+                    ExecutionSlots.sleep(getRetryDelay(i), TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Does the provider offer a prefix matching the input format of an
+     * action sequence?
+     *
+     * @param actionSequence the action sequence
+     * @return true if there is at least one matching prefix
+     */
+    public boolean supports(ActionSequence actionSequence) {
+        Scenario s = ScenarioFactory.getScenario(this, actionSequence);
+        return !s.getMetadataFormats(oaiFactory).isEmpty();
+    }
+
+    /**
+     * Get the name declared by an OAI-PMH provider in its Identify response.
+     * Returns null if no name can be found.
+     * @return provider name
+     */
+    public String getProviderName() {
+        Document doc = getIdentify();
+        return doc == null ? null : parseProviderName(doc);
+    }
+
     public DeletionMode getProviderDeletionMode() {
+        Document doc = getIdentify();
+        return doc == null ? null : parseDeletionMode(doc);
+    }
+
+    /**
+     * Get the earliest datestamp and the granularity declared by an OAI-PMH
+     * provider in its Identify response.
+     *
+     * @return the earliest datestamp and the granularity, or null if they
+     *         can't be found
+     */
+    public String[] getProviderDatestamps() {
+        Document doc = getIdentify();
+        return doc == null ? null : parseDatestamps(doc);
+    }
+
+    /**
+     * Parse the earliest datestamp and the granularity from an Identify
+     * response.
+     *
+     * @param response DOM tree representing an Identify response.
+     * @return the earliest datestamp and the granularity, or null if they
+     *         can't be ascertained
+     */
+    public String[] parseDatestamps(Document response) {
         try {
-            Identify ident = new Identify(oaiUrl, getTimeout());
-            return parseDeletionMode(ident.getDocument());
-        } catch (IOException | ParserConfigurationException | SAXException
-                | TransformerException e) {
+            String earliest = xpath.evaluate("//*[local-name() = 'earliestDatestamp']/text()", response).trim();
+            String granularity = xpath.evaluate("//*[local-name() = 'granularity']/text()", response).trim();
+            if (!earliest.isEmpty()) {
+                logger.info("Contacted " + oaiUrl + " to get its datestamps, received: earliest[" + earliest
+                        + "] granularity[" + granularity + "]");
+                return new String[]{earliest, granularity};
+            }
+        } catch (XPathExpressionException e) {
             logger.error(e.getMessage(), e);
         }
         return null;
@@ -445,6 +689,100 @@ public boolean isExclusive() {
         return this.exclusive;
     }
 
+    @XmlAttribute
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isStreaming() {
+        return streaming != null && streaming;
+    }
+
+    @XmlAttribute
+    public void setPrefetch(int prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    public int getPrefetch() {
+        return prefetch != null ? prefetch : 0;
+    }
+
+    @XmlAttribute
+    public void setPipeline(int pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    public int getPipeline() {
+        return pipeline != null ? pipeline : 0;
+    }
+
+    @XmlAttribute
+    public void setPartitions(int partitions) {
+        this.partitions = partitions;
+    }
+
+    public int getPartitions() {
+        return partitions != null ? partitions : 1;
+    }
+
+    @XmlAttribute(name="date-windows")
+    public void setDateWindows(int dateWindows) {
+        this.dateWindows = dateWindows;
+    }
+
+    public int getDateWindows() {
+        return dateWindows != null ? dateWindows : 0;
+    }
+
+    @XmlAttribute(name="window-max-records")
+    public void setWindowMaxRecords(long windowMaxRecords) {
+        this.windowMaxRecords = windowMaxRecords;
+    }
+
+    public long getWindowMaxRecords() {
+        return windowMaxRecords != null ? windowMaxRecords : 0;
+    }
+
+    /**
+     * Create an additional temp file, which will be deleted when the
+     * provider is closed.
+     *
+     * @return the path of the new temp file
+     * @throws IOException the file couldn't be created
+     */
+    public Path newTemp() throws IOException {
+        Path t = Files.createTempFile("oai-", null);
+        synchronized (temps) {
+            temps.add(t);
+        }
+        return t;
+    }
+
+    /**
+     * Unmap and delete a temp file created by {@link #newTemp()} before the
+     * provider is closed. No response in it may be read anymore.
+     *
+     * @param t the temp file
+     */
+    public void releaseTemp(Path t) {
+        synchronized (temps) {
+            temps.remove(t);
+        }
+        Spool.close(t);
+        try {
+            Files.deleteIfExists(t);
+        } catch (IOException ex) {
+            logger.error(ex.getMessage());
+        }
+    }
+
+    /**
+     * @return the adaptive request pace of the endpoint
+     */
+    public PaceController getPace() {
+        return pace;
+    }
+
     public ResumeDetails getResumeDetails(){
         return resumeDetails;
     }
@@ -465,6 +803,12 @@ public String toString() {
                 ", retryDelays=" + Arrays.toString(retryDelays) +
                 ", timeout=" + timeout +
                 ", exclusive=" + exclusive +
+                ", streaming=" + streaming +
+                ", prefetch=" + prefetch +
+                ", pipeline=" + pipeline +
+                ", partitions=" + partitions +
+                ", dateWindows=" + dateWindows +
+                ", windowMaxRecords=" + windowMaxRecords +
                 '}';
     }
 
@@ -489,6 +833,34 @@ private Statistic loadHistoryStatistic() {
         }
         return null;
     }
+    private PaceController loadPace() {
+        if(Main.config != null){
+            final Path pacePath = getPacePath();
+            final Optional<PaceController> pace = PaceController.load(pacePath);
+            if(pace.isPresent()){
+                logger.info("Loaded request pace[" + pace.get() + "] learned in the last harvest from " + pacePath);
+                return pace.get();
+            }
+        }
+        return this.pace;
+    }
+
+    /**
+     * Get the statistics of the last successful harvest, also before
+     * {@link #init()} if the name of the provider is configured.
+     *
+     * @return the statistics, or null if unknown
+     */
+    public Statistic getHistoryStatistic() {
+        if (historyStatistic == null && name != null)
+            historyStatistic = loadHistoryStatistic();
+        return historyStatistic;
+    }
+
+    public Statistic getCurrentStatistic() {
+        return currentStatistic;
+    }
+
     public void persistCurrentStatistic() {
         currentStatistic.persist(getHistoryStatisticPath());
     }
@@ -507,6 +879,19 @@ private Path getHistoryStatisticPath(){
                 Util.toFileFormat(this.getName()));
     }
 
+    // the file a response of the provider is cached in, keyed by the URL as
+    // the name might not be known yet
+    private Path getCachePath(String dir){
+        if (Main.config == null || oaiUrl == null)
+            return null;
+        return Paths.get(Main.config.getWorkingDirectory(), dir, Util.toFileFormat(oaiUrl));
+    }
+
+    private Path getPacePath(){
+        return Paths.get(Main.config.getWorkingDirectory(), "harvest_pace",
+                Util.toFileFormat(this.getName()));
+    }
+
     public void cleanupResumptionDetails() {
         this.resumeDetails = null;
         try {
@@ -543,8 +928,10 @@ public String getLastSuccessfulHarvestDate() {
     }
 
     public void addDeleted(String id) {
-        if(deleted.add(id)){
-            currentStatistic.incDeletedCount();
+        synchronized (deleted) {
+            if (deleted.add(id)) {
+                currentStatistic.incDeletedCount();
+            }
         }
 
         // XXX can it verify there's actually something to delete?
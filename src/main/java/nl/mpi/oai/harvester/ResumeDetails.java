@@ -18,6 +18,44 @@ public class ResumeDetails {
     public int pIndex;
     public int sIndex;
     public List<String> prefixes;
+    /** the state per (prefix, set) combination, if harvested as partitions */
+    public List<Partition> partitions;
+
+    /**
+     * The resume state of one (prefix, set) combination.
+     */
+    public static class Partition {
+        public String prefix;
+        /** null if the provider has no sets */
+        public String set;
+        public String resumptionToken;
+        public boolean done;
+        /** the date window, null if the whole range */
+        public String from;
+        public String until;
+        /** too large, but a window that can't be split any further */
+        public boolean oversized;
+
+        public Partition() {
+        }
+
+        public Partition(String prefix, String set) {
+            this.prefix = prefix;
+            this.set = set;
+        }
+
+        public Partition(Partition partition, String from, String until) {
+            this(partition.prefix, partition.set);
+            this.from = from;
+            this.until = until;
+        }
+
+        @Override
+        public String toString() {
+            return "prefix[" + prefix + "]" + (set == null ? "" : " set[" + set + "]")
+                    + (from == null ? "" : " window[" + from + "/" + until + "]");
+        }
+    }
 
     public static Optional<ResumeDetails> load(Path path) {
         if(Files.exists(path)){
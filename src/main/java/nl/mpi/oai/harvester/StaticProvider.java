@@ -102,7 +102,7 @@ public HarvesterVerb getResponse () {
 
     @Override
     public void init() {
-	fetchContent();
+	fetchContent(getTimeout());
 	super.init();
     }
 
@@ -136,20 +136,31 @@ private Document getSubtree(String xp) {
 	return null;
     }
 
+    /**
+     * The Identify response of a static provider is part of its content,
+     * which is fetched once and not cached on disk.
+     *
+     * @return the Identify subtree of the content, or null if there is none
+     */
     @Override
-    public  String getProviderName() {
-	Document doc = getSubtree("/os:Repository/os:Identify");
-	return parseProviderName(doc);
+    public synchronized Document getIdentify(int timeout) {
+	fetchContent(timeout);
+	if (providerContent == null)
+	    return null;
+	return getSubtree("/os:Repository/os:Identify");
     }
 
 	/**
      * Fetch the content of the static provider and put it in providerContent.
      */
-    private void fetchContent() {
+    private void fetchContent(int timeout) {
 	if (providerContent == null && oaiUrl != null) {
 	    try {
-		Identify ident = new Identify(oaiUrl, getTimeout());
+		Identify ident = new Identify(oaiUrl, timeout);
 		providerContent = ident.getDocument();
+		// the static harvesting works on the same response
+		if (response == null)
+		    response = ident;
 	    } catch (IOException | ParserConfigurationException | SAXException
 		    | TransformerException e) {
 		logger.error(e.getMessage(), e);
@@ -157,6 +168,19 @@ private void fetchContent() {
 	}
     }
 
+    /**
+     * The metadata formats of a static provider are part of its content.
+     *
+     * @param timeout the timeout in seconds, 0 means none
+     * @return false if the content couldn't be fetched
+     */
+    @Override
+    public boolean prefetch(int timeout) {
+	getIdentify(timeout);
+	getName();
+	return providerContent != null;
+    }
+
     @Override
     public String toString() {
         return "Static " + super.toString();
@@ -39,6 +39,28 @@ public interface Action {
      */
     boolean perform(List<Metadata> records);
 
+    /**
+     * Tell if the action treats each record on its own, so the records of a
+     * page can be divided over several instances of the action, performed
+     * at the same time. The results are put back in the order of the page.
+     *
+     * @return true if the records can be performed on in parallel
+     */
+    default boolean isRecordParallel() {
+        return false;
+    }
+
+    /**
+     * Tell if the outcome of the action depends on the order the pages are
+     * performed on in, e.g. the numbering of saved files. In a pipeline such
+     * an action is performed by a single worker.
+     *
+     * @return true if the pages are to be performed on one at a time
+     */
+    default boolean isOrderSensitive() {
+        return false;
+    }
+
     /**
      * Create a copy of this action. (This is used in preference to the
      * Cloneable interface due to its well-published design issues.)
@@ -0,0 +1,392 @@
+package nl.mpi.oai.harvester.action;
+
+import nl.mpi.oai.harvester.control.ResourcePool;
+import nl.mpi.oai.harvester.metadata.Metadata;
+import nl.mpi.oai.harvester.utils.ExecutionSlots;
+import nl.mpi.oai.harvester.utils.LatencyStats;
+import nl.mpi.oai.harvester.utils.Threads;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Runs the actions of a sequence as a pipeline of stages, one per action.
+ * <p>
+ * Every stage has its own workers and a bounded input queue. The branches
+ * of the sequence, if any, form the last stage. A response
+ * handed to the pipeline moves from stage to stage, so e.g. the save of one
+ * response overlaps with the transformation of the next, and the harvesting
+ * thread can fetch the next response in the meantime. When a stage can't
+ * keep up its queue fills up and the stage before it stalls, up to the
+ * harvesting thread (backpressure). The response is closed once it has
+ * passed the last stage, or an action failed on it.
+ * <p>
+ * The workers of a stage hand the responses on in the order they took them
+ * in, so every stage sees them in the order they were submitted, also after
+ * a stage with several workers.
+ * <p>
+ * Per stage the largest queue length, the time its workers waited for input
+ * and the time they stalled on a full queue downstream are recorded.
+ */
+public class ActionPipeline implements AutoCloseable {
+
+    private static final Logger logger = LogManager.getLogger(ActionPipeline.class);
+
+    // marks the end of the input
+    private static final Item END = new Item(null);
+
+    /**
+     * A stage of the pipeline and its statistics.
+     */
+    public static class Stage {
+
+        private final int index;
+        private final String name;
+        private final int workers;
+        private final int depth;
+        private final BlockingQueue<Item> queue;
+        private final AtomicInteger running;
+        private final LongAccumulator maxQueued = new LongAccumulator(Math::max, 0);
+        private final LongAdder processed = new LongAdder();
+        private final LatencyStats inputWait = new LatencyStats();
+        private final LatencyStats outputStall = new LatencyStats();
+        private Stage next = null;
+        // the tickets handed out with the responses taken, in queue order
+        private final Object takeLock = new Object();
+        private long taken = 0;
+        // the ticket of the response to be handed on next
+        private long turn = 0;
+
+        Stage(int index, String name, int workers, int depth) {
+            this.index = index;
+            this.name = name;
+            this.workers = workers;
+            this.depth = depth;
+            this.queue = new ArrayBlockingQueue<>(depth);
+            this.running = new AtomicInteger(workers);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getWorkers() {
+            return workers;
+        }
+
+        /**
+         * @return the number of responses waiting for the stage right now
+         */
+        public int getQueued() {
+            return queue.size();
+        }
+
+        public long getMaxQueued() {
+            return maxQueued.get();
+        }
+
+        public long getProcessed() {
+            return processed.sum();
+        }
+
+        /**
+         * @return the time the workers waited for a response to process
+         */
+        public LatencyStats getInputWait() {
+            return inputWait;
+        }
+
+        /**
+         * @return the time the workers waited for room in the next stage
+         */
+        public LatencyStats getOutputStall() {
+            return outputStall;
+        }
+
+        private void put(Item item, LatencyStats stall) throws InterruptedException {
+            if (!queue.offer(item)) {
+                long start = System.nanoTime();
+                queue.put(item);
+                stall.record(System.nanoTime() - start);
+            }
+            maxQueued.accumulate(queue.size());
+        }
+
+        private Item take() throws InterruptedException {
+            synchronized (takeLock) {
+                Item item = queue.poll();
+                if (item == null) {
+                    long start = System.nanoTime();
+                    item = queue.take();
+                    inputWait.record(System.nanoTime() - start);
+                }
+                item.ticket = taken++;
+                return item;
+            }
+        }
+
+        /**
+         * Wait until the responses taken before this one have been handed
+         * on, or dropped.
+         */
+        private synchronized void awaitTurn(Item item) throws InterruptedException {
+            while (turn != item.ticket)
+                wait();
+        }
+
+        private synchronized void passTurn() {
+            turn++;
+            notifyAll();
+        }
+
+        @Override
+        public String toString() {
+            return "stage[" + index + ":" + name + "] workers[" + workers + "] processed[" + getProcessed()
+                    + "] max queued[" + getMaxQueued() + "] input wait[" + inputWait
+                    + "] output stall[" + outputStall + "]";
+        }
+    }
+
+    private static class Item {
+        private final Metadata metadata;
+        private final List<Metadata> records;
+        // the position in the queue of the stage it is at
+        private long ticket;
+
+        Item(Metadata metadata) {
+            this.metadata = metadata;
+            this.records = new ArrayList<>(Collections.singletonList(metadata));
+        }
+
+        void close() {
+            metadata.close();
+        }
+    }
+
+    private final ActionSequence sequence;
+    private final Lock lock;
+    private final List<Stage> stages = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final Map<String, String> context;
+    // time the harvesting thread stalled on a full first stage
+    private final LatencyStats submitStall = new LatencyStats();
+    private volatile Throwable failure = null;
+
+    /**
+     * Create and start the pipeline.
+     *
+     * @param sequence the actions to perform
+     * @param depth the length of the input queue of every stage
+     * @param name the name of the pipeline, used for its threads
+     * @param lock the lock to hold while performing an action, might be null
+     */
+    public ActionPipeline(ActionSequence sequence, int depth, String name, Lock lock) {
+        this.sequence = sequence;
+        this.lock = lock;
+        this.context = ThreadContext.getImmutableContext();
+        List<ResourcePool<Action>> actions = sequence.getActions();
+        for (int i = 0; i < actions.size(); i++) {
+            String actionName = actions.get(i).getPrototype().getClass().getSimpleName();
+            Stage stage = new Stage(i, actionName, sequence.getWorkers(i), Math.max(1, depth));
+            if (i > 0)
+                stages.get(i - 1).next = stage;
+            stages.add(stage);
+        }
+        if (!sequence.getBranches().isEmpty()) {
+            // the branches run at the same time, on a single stage
+            Stage stage = new Stage(actions.size(), "branches", 1, Math.max(1, depth));
+            if (!stages.isEmpty())
+                stages.get(stages.size() - 1).next = stage;
+            stages.add(stage);
+        }
+        for (Stage stage : stages) {
+            for (int w = 0; w < stage.workers; w++) {
+                Thread thread = Threads.newThread(() -> work(stage), name + "-" + stage.name + "-" + w);
+                threads.add(thread);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * @return the maximum number of responses in the pipeline at the same
+     *         time, i.e. queued or being processed
+     */
+    public int getCapacity() {
+        int capacity = 0;
+        for (Stage stage : stages)
+            capacity += stage.depth + stage.workers;
+        return capacity;
+    }
+
+    public List<Stage> getStages() {
+        return stages;
+    }
+
+    /**
+     * Hand a response over to the pipeline, waiting for room if needed. The
+     * pipeline takes care of closing it.
+     *
+     * @param metadata the response
+     * @throws InterruptedException interrupted while waiting
+     */
+    public void submit(Metadata metadata) throws InterruptedException {
+        if (failure != null || stages.isEmpty()) {
+            metadata.close();
+            rethrow();
+            return;
+        }
+        try {
+            stages.get(0).put(new Item(metadata), submitStall);
+        } catch (InterruptedException e) {
+            metadata.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Wait until all responses handed over have been processed.
+     *
+     * @throws InterruptedException interrupted while waiting
+     */
+    public void finish() throws InterruptedException {
+        if (!stages.isEmpty())
+            stages.get(0).put(END, submitStall);
+        for (Thread thread : threads)
+            thread.join();
+        logStatistics();
+        rethrow();
+    }
+
+    private void rethrow() {
+        Throwable t = failure;
+        if (t instanceof RuntimeException)
+            throw (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+    }
+
+    private void work(Stage stage) {
+        ThreadContext.putAll(context);
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                Item item = stage.take();
+                if (item == END) {
+                    // let the other workers of the stage see it as well
+                    stage.queue.put(END);
+                    break;
+                }
+                boolean forward = false;
+                try {
+                    if (failure == null)
+                        forward = perform(stage, item);
+                } catch (InterruptedException e) {
+                    // the item is closed below, after its turn
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException | Error e) {
+                    logger.error("stage[" + stage.name + "] failed", e);
+                    if (failure == null)
+                        failure = e;
+                }
+                try {
+                    if (stage.workers > 1)
+                        stage.awaitTurn(item);
+                    if (forward && stage.next != null)
+                        stage.next.put(item, stage.outputStall);
+                    else
+                        item.close();
+                } catch (InterruptedException e) {
+                    item.close();
+                    throw e;
+                } finally {
+                    stage.passTurn();
+                }
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            if (stage.running.decrementAndGet() == 0 && stage.next != null && !interrupted) {
+                try {
+                    stage.next.put(END, stage.outputStall);
+                } catch (InterruptedException e) {
+                    logger.debug("abandoned while finishing stage[" + stage.name + "]");
+                }
+            }
+            ThreadContext.clearAll();
+        }
+    }
+
+    private boolean perform(Stage stage, Item item) throws InterruptedException {
+        if (lock != null)
+            ExecutionSlots.lock(lock);
+        try {
+            if (stage.index == sequence.getActions().size()) {
+                sequence.runBranches(item.records);
+                return true;
+            }
+            return sequence.runAction(stage.index, item.records);
+        } finally {
+            if (lock != null)
+                ExecutionSlots.unlock(lock);
+            stage.processed.increment();
+        }
+    }
+
+    /**
+     * Log the statistics of the stages.
+     */
+    public void logStatistics() {
+        logger.info("pipeline submit stall[" + submitStall + "]");
+        for (Stage stage : stages)
+            logger.info(stage);
+    }
+
+    /**
+     * Abandon the pipeline, the responses not processed yet are closed.
+     */
+    @Override
+    public void close() {
+        boolean alive = true;
+        while (alive) {
+            alive = false;
+            for (Thread thread : threads) {
+                if (thread.isAlive()) {
+                    alive = true;
+                    thread.interrupt();
+                }
+            }
+            drain();
+            if (alive) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        drain();
+    }
+
+    private void drain() {
+        for (Stage stage : stages) {
+            Item item;
+            while ((item = stage.queue.poll()) != null) {
+                if (item != END)
+                    item.close();
+            }
+        }
+    }
+}
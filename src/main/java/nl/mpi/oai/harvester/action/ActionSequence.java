@@ -21,21 +21,44 @@
 import nl.mpi.oai.harvester.control.ResourcePool;
 import nl.mpi.oai.harvester.metadata.Metadata;
 import nl.mpi.oai.harvester.metadata.MetadataFormat;
+import nl.mpi.oai.harvester.utils.Threads;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class represents a sequence (or pipeline) of actions on metadata,
  * comprising an input format specification followed by a list of actions
  * to be performed sequentially.
+ * <p>
+ * The actions can be followed by branches, sequences of their own that all
+ * get the records the actions result in. The branches are performed at the
+ * same time, each on its own copy of the records, so a single harvest can
+ * e.g. save the records as they are and transformed.
+ * <p>
+ * An action that treats each record on its own, like a transformation, is
+ * performed on the records of a page at the same time by as many instances
+ * of the action as its pool can spare, up to the record jobs. The records
+ * keep their order, so the output doesn't depend on the parallelism.
  * 
  * @author Lari Lampen (MPI-PL), Kees Jan van de Looij (MPI-PL)
  */
 public class ActionSequence {
     private static final Logger logger = LogManager.getLogger(ActionSequence.class);
 
+    // the time to wait for an instance of an action before logging it
+    private static final long POOL_WAIT_MINUTES = 1;
+
     /**
      * All action sequences share this set of resource pools and reuse its
      * contents where possible. So, for example, there should only be one
@@ -45,6 +68,21 @@ public class ActionSequence {
     private static final Map<Action, ResourcePool<Action>> pooledActions =
 			new HashMap<>();
 
+    /**
+     * Bounds the number of actions performed at the same time, separately
+     * from the number of providers harvested (null means unbounded).
+     */
+    private static volatile Semaphore cpuPermits = null;
+
+    /**
+     * The maximum number of records of a page an action is performed on at
+     * the same time, and the work-stealing pool performing all but the
+     * share of the calling thread (null if the records are performed on one
+     * after the other).
+     */
+    private static volatile int recordJobs = 1;
+    private static volatile ForkJoinPool recordPool = null;
+
     /**
      * The input format that must be available for this sequence
      * to be applicable.
@@ -54,6 +92,12 @@ public class ActionSequence {
     /* The actions, in order. */
     private final List<ResourcePool<Action>> actions;
 
+    /* The number of workers per action when run as a pipeline. */
+    private final List<Integer> workers;
+
+    /* The sequences performed on the result of the actions. */
+    private final List<ActionSequence> branches = new ArrayList<>();
+
     /**
      * Create a new action sequence.
      * 
@@ -67,13 +111,14 @@ public ActionSequence(MetadataFormat inputFormat, Action[] theActions,
         this(inputFormat);
 
 	for (Action act : theActions) {
-	    actions.add(getPool(act, resourcePoolSize));
+	    add(act, resourcePoolSize);
 	}
     }
 
     public ActionSequence(MetadataFormat inputFormat) {
         this.inputFormat = inputFormat;
         actions = new ArrayList<>();
+        workers = new ArrayList<>();
     }
 
     /**
@@ -94,6 +139,15 @@ private synchronized static ResourcePool<Action> getPool(Action action,
 	return pooledActions.get(action);
     }
 
+    /**
+     * Log the use of the pools of all actions: how long the action
+     * sequences waited for an action, and the share of the actions busy.
+     */
+    public synchronized static void logPoolStatistics() {
+        for (Map.Entry<Action, ResourcePool<Action>> e : pooledActions.entrySet())
+            logger.info("action[" + e.getKey() + "] pool " + e.getValue());
+    }
+
     /**
      * Get the input format used in this sequence <br><br>
      *
@@ -106,6 +160,58 @@ public MetadataFormat getInputFormat() {
     public List<ResourcePool<Action>> getActions() {
         return actions;
     }
+
+    public List<ActionSequence> getBranches() {
+        return branches;
+    }
+
+    /**
+     * Add a branch, performed on the result of the actions of this sequence.
+     *
+     * @param branch the branch, with the same input format
+     */
+    public void addBranch(ActionSequence branch) {
+        branches.add(branch);
+    }
+
+    /**
+     * Get the number of workers that perform an action when the sequence is
+     * run as a pipeline.
+     *
+     * @param index the index of the action
+     * @return the number of workers
+     */
+    public int getWorkers(int index) {
+        return workers.get(index);
+    }
+
+    /**
+     * Set the maximum number of actions performed at the same time by all
+     * action sequences. The actions are CPU (and disk) bound, so when many
+     * providers are harvested concurrently the limit keeps them from
+     * competing for the processors.
+     *
+     * @param limit the maximum, 0 or less means unbounded
+     */
+    public static void setCpuLimit(int limit) {
+        cpuPermits = (limit > 0) ? new Semaphore(limit, true) : null;
+    }
+
+    /**
+     * Set the maximum number of records of a page an action is performed on
+     * at the same time. Only actions that treat each record on its own are
+     * performed in parallel, and only by instances that are available in
+     * their pool, so the pool sizes (like the max-jobs of a transformation)
+     * and the CPU limit still hold.
+     *
+     * @param jobs the maximum, 1 or less means one record after the other
+     */
+    public static synchronized void setRecordJobs(int jobs) {
+        if (recordPool != null)
+            recordPool.shutdown();
+        recordJobs = Math.max(1, jobs);
+        recordPool = (recordJobs > 1) ? new ForkJoinPool(recordJobs - 1) : null;
+    }
     
     
     /**
@@ -115,8 +221,9 @@ public List<ResourcePool<Action>> getActions() {
      * should be accessed using other actions within the sequence.
      *
      * @param metadata a metadata record
+     * @throws InterruptedException interrupted while waiting for an action
      */
-    public void runActions(Metadata metadata) {
+    public void runActions(Metadata metadata) throws InterruptedException {
         this.runActions(new ArrayList<>(Arrays.asList(metadata)));
     }
 
@@ -127,26 +234,218 @@ public void runActions(Metadata metadata) {
      * should be accessed using other actions within the sequence.
      *
      * @param metadata a list of metadata records
+     * @throws InterruptedException interrupted while waiting for an action
      */
-    public void runActions(List<Metadata> metadata) {
+    public void runActions(List<Metadata> metadata) throws InterruptedException {
+
+        for (int i = 0; i < actions.size(); i++) {
+                if (!runAction(i, metadata))
+                        return;
+        }
+        runBranches(metadata);
+    }
 
-        for (ResourcePool<Action> actPool : actions) {
-                // claim an action in the pool
-                Action action = actPool.get();
-                boolean done;
+    /**
+     * Perform the branches of the sequence, at the same time. The first
+     * branch works on the records given, the others on copies, which are
+     * made before any branch starts. A failing branch doesn't stop the
+     * others.
+     *
+     * @param metadata a list of metadata records
+     * @throws InterruptedException interrupted while waiting for an action
+     */
+    public void runBranches(List<Metadata> metadata) throws InterruptedException {
+        if (branches.isEmpty())
+            return;
+        if (branches.size() == 1) {
+            branches.get(0).runActions(metadata);
+            return;
+        }
+        List<List<Metadata>> copies = new ArrayList<>();
+        for (int b = 1; b < branches.size(); b++) {
+            List<Metadata> copy = new ArrayList<>();
+            for (Metadata record : metadata)
+                copy.add(record.copy());
+            copies.add(copy);
+        }
+        Map<String, String> context = ThreadContext.getImmutableContext();
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        String name = Thread.currentThread().getName();
+        for (int b = 1; b < branches.size(); b++) {
+            ActionSequence branch = branches.get(b);
+            List<Metadata> copy = copies.get(b - 1);
+            Thread thread = Threads.newThread(() -> {
+                ThreadContext.putAll(context);
                 try {
-                    done = action.perform(metadata);
-                }finally {
-                    actPool.release(action);
+                    branch.runActions(copy);
+                } catch (InterruptedException e) {
+                    logger.debug("branch[" + branch + "] abandoned");
+                } catch (RuntimeException | Error e) {
+                    logger.error("branch[" + branch + "] failed", e);
+                    failures.add(e);
+                } finally {
+                    for (Metadata record : copy)
+                        record.close();
+                    ThreadContext.clearAll();
                 }
-                if (!done) {
-                        logger.error("Action " + action + " failed, terminating" +
-                                        " sequence");
-                        return;
-                } else
-                        logger.debug("Action " + action + " was performed");
-                            
+            }, name + "-branch-" + b);
+            threads.add(thread);
+            thread.start();
+        }
+        try {
+            branches.get(0).runActions(metadata);
+        } finally {
+            boolean interrupted = false;
+            for (Thread thread : threads) {
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        if (!failures.isEmpty()) {
+            Throwable t = failures.get(0);
+            if (t instanceof Error)
+                throw (Error) t;
+            throw (RuntimeException) t;
+        }
+    }
+
+    /**
+     * Perform a single action of the sequence.
+     *
+     * @param index the index of the action
+     * @param metadata a list of metadata records
+     * @return false if the action failed, and the sequence should not be
+     *         continued
+     * @throws InterruptedException interrupted while waiting for a CPU
+     *         permit or a free instance of the action
+     */
+    public boolean runAction(int index, List<Metadata> metadata) throws InterruptedException {
+        ResourcePool<Action> actPool = actions.get(index);
+        Semaphore cpu = cpuPermits;
+        if (cpu != null)
+            cpu.acquire();
+        // claim an action in the pool, telling when that takes long
+        Action action = null;
+        try {
+            while ((action = actPool.get(POOL_WAIT_MINUTES, TimeUnit.MINUTES)) == null)
+                logger.warn("still waiting for action " + actPool.getPrototype() + ": " + actPool);
+        } finally {
+            if (action == null && cpu != null)
+                cpu.release();
+        }
+        boolean done;
+        try {
+            ForkJoinPool pool = recordPool;
+            if (pool != null && metadata.size() > 1 && action.isRecordParallel())
+                done = performParallel(pool, actPool, action, cpu, metadata);
+            else
+                done = action.perform(metadata);
+        } finally {
+            actPool.release(action);
+            if (cpu != null)
+                cpu.release();
+        }
+        if (!done) {
+            logger.error("Action " + action + " failed, terminating" +
+                    " sequence");
+        } else
+            logger.debug("Action " + action + " was performed");
+        return done;
+    }
+
+    /**
+     * Perform an action on the records of a page at the same time, by the
+     * instance given and any extra instances available in its pool right
+     * away. The instances take the next record until none are left, and the
+     * results replace the records in the order of the page.
+     */
+    private static boolean performParallel(ForkJoinPool pool, ResourcePool<Action> actPool,
+            Action action, Semaphore cpu, List<Metadata> metadata) {
+        int n = metadata.size();
+        List<List<Metadata>> results = new ArrayList<>(Collections.nCopies(n, null));
+        AtomicInteger next = new AtomicInteger();
+        AtomicBoolean failed = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Map<String, String> context = ThreadContext.getImmutableContext();
+        List<Future<?>> extra = new ArrayList<>();
+        for (int w = 1; w < Math.min(recordJobs, n); w++) {
+            // don't wait for more instances, that could deadlock with
+            // another page doing the same
+            if (cpu != null && !cpu.tryAcquire())
+                break;
+            Action instance = actPool.tryGet();
+            if (instance == null) {
+                if (cpu != null)
+                    cpu.release();
+                break;
+            }
+            extra.add(pool.submit(() -> {
+                ThreadContext.putAll(context);
+                try {
+                    performRecords(instance, metadata, results, next, failed, failure);
+                } finally {
+                    actPool.release(instance);
+                    if (cpu != null)
+                        cpu.release();
+                    ThreadContext.clearAll();
+                }
+            }));
+        }
+        logger.debug("Action " + action + " performed on [" + n + "] records by [" + (extra.size() + 1)
+                + "] instances");
+        performRecords(action, metadata, results, next, failed, failure);
+        boolean interrupted = false;
+        for (Future<?> future : extra) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // recorded by the task
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        Throwable t = failure.get();
+        if (t instanceof Error)
+            throw (Error) t;
+        if (t != null)
+            throw (RuntimeException) t;
+        if (failed.get())
+            return false;
+        metadata.clear();
+        for (List<Metadata> result : results)
+            metadata.addAll(result);
+        return true;
+    }
 
+    private static void performRecords(Action action, List<Metadata> metadata, List<List<Metadata>> results,
+            AtomicInteger next, AtomicBoolean failed, AtomicReference<Throwable> failure) {
+        int i;
+        while (!failed.get() && (i = next.getAndIncrement()) < metadata.size()) {
+            List<Metadata> records = new ArrayList<>(1);
+            records.add(metadata.get(i));
+            try {
+                if (action.perform(records))
+                    results.set(i, records);
+                else
+                    failed.set(true);
+            } catch (RuntimeException | Error e) {
+                failure.compareAndSet(null, e);
+                failed.set(true);
+            }
         }
     }
 
@@ -155,17 +454,53 @@ public String toString() {
 	StringBuilder sb = new StringBuilder("read input (");
 	sb.append(inputFormat);
 	sb.append(")");
-	if (actions != null) {
-	    for (ResourcePool<Action> actPool : actions) {
-		Action act = actPool.get();
-		sb.append(" --> ").append(act);
-		actPool.release(act);
+	appendActions(sb);
+	return sb.toString();
+    }
+
+    private void appendActions(StringBuilder sb) {
+	for (ResourcePool<Action> actPool : actions) {
+	    sb.append(" --> ").append(actPool.getPrototype());
+	}
+	if (!branches.isEmpty()) {
+	    sb.append(" --> [");
+	    for (int b = 0; b < branches.size(); b++) {
+		if (b > 0)
+		    sb.append(" |");
+		branches.get(b).appendActions(sb);
 	    }
+	    sb.append(" ]");
 	}
-	return sb.toString();
     }
 
     public void add(Action act, int resourcePoolSize) {
+        add(act, resourcePoolSize, 1);
+    }
+
+    /**
+     * Add an action.
+     *
+     * @param act the action
+     * @param resourcePoolSize the number of instances of the action shared
+     *                         by all sequences
+     * @param workers the number of workers performing the action when the
+     *                sequence is run as a pipeline, 1 for an action that
+     *                depends on the order of the pages
+     */
+    public void add(Action act, int resourcePoolSize, int workers) {
+        if (act instanceof TransformChainAction) {
+            // share the transformations with their use outside of chains
+            TransformChainAction chain = (TransformChainAction) act;
+            List<ResourcePool<Action>> pools = new ArrayList<>();
+            for (TransformAction transform : chain.getTransforms())
+                pools.add(getPool(transform, transform.maxJobs));
+            chain.setPools(pools);
+        }
         actions.add(getPool(act, resourcePoolSize));
+        if (workers > 1 && act.isOrderSensitive()) {
+            logger.warn(act.getClass().getSimpleName() + " depends on the order of the pages, performing it with 1 worker instead of " + workers);
+            workers = 1;
+        }
+        this.workers.add(Math.max(1, workers));
     }
 }
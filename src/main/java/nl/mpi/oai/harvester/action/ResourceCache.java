@@ -0,0 +1,246 @@
+package nl.mpi.oai.harvester.action;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmNode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamSource;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The documents that stylesheets load, e.g. the CMDI component
+ * specifications, cached in a directory and, parsed, in memory.
+ * <p>
+ * The parsed documents are kept in a least recently used order, up to a
+ * number of bytes (estimated by the size of the file). Documents not in
+ * memory are parsed from the directory, or else loaded once, however many
+ * transformations ask for them at the same time, and written to the
+ * directory atomically.
+ */
+public class ResourceCache {
+    private static final Logger logger = LogManager.getLogger(ResourceCache.class);
+
+    /** The caches by directory, shared by the transformations using it. */
+    private static final Map<Path, ResourceCache> caches = new HashMap<>();
+
+    private static volatile long maxBytes = 64L * 1024 * 1024;
+
+    /**
+     * Loads a document that isn't in the cache.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        Source load() throws TransformerException;
+    }
+
+    private static final class Entry {
+        final XdmNode node;
+        final long bytes;
+
+        Entry(XdmNode node, long bytes) {
+            this.node = node;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Path dir;
+    private final Processor processor;
+
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private final Map<String, CompletableFuture<XdmNode>> loading = new ConcurrentHashMap<>();
+
+    private final LongAdder memoryHits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    ResourceCache(Path dir, Processor processor) {
+        this.dir = dir;
+        this.processor = processor;
+    }
+
+    /**
+     * Get the cache of a directory.
+     *
+     * @param dir the directory
+     * @param processor the processor the documents are parsed for
+     * @return the cache
+     */
+    static synchronized ResourceCache get(Path dir, Processor processor) {
+        return caches.computeIfAbsent(dir.toAbsolutePath().normalize(), d -> new ResourceCache(d, processor));
+    }
+
+    /**
+     * Set the maximum number of bytes of parsed documents each cache keeps
+     * in memory.
+     *
+     * @param max the maximum, 0 keeps none
+     */
+    public static void setMaxBytes(long max) {
+        maxBytes = Math.max(0, max);
+        synchronized (ResourceCache.class) {
+            for (ResourceCache cache : caches.values()) {
+                synchronized (cache.memory) {
+                    cache.evict();
+                }
+            }
+        }
+    }
+
+    /**
+     * Log the use of all caches, e.g. at the end of a run.
+     */
+    public static synchronized void logStatistics() {
+        for (ResourceCache cache : caches.values())
+            logger.info("resource cache " + cache);
+    }
+
+    /**
+     * Get a document, from memory, from the directory or else from the
+     * loader.
+     *
+     * @param uri the absolute URI of the document
+     * @param loader loads the document if it isn't cached
+     * @return the document
+     * @throws TransformerException the document couldn't be loaded
+     */
+    public XdmNode get(String uri, Loader loader) throws TransformerException {
+        String key = uri.replaceAll("[^a-zA-Z0-9]", "_");
+        synchronized (memory) {
+            Entry entry = memory.get(key);
+            if (entry != null) {
+                memoryHits.increment();
+                return entry.node;
+            }
+        }
+        CompletableFuture<XdmNode> future = new CompletableFuture<>();
+        CompletableFuture<XdmNode> other = loading.putIfAbsent(key, future);
+        if (other != null)
+            return join(other);
+        try {
+            Entry entry = load(key, uri, loader);
+            synchronized (memory) {
+                Entry old = memory.put(key, entry);
+                bytes += entry.bytes - (old == null ? 0 : old.bytes);
+                evict();
+            }
+            future.complete(entry.node);
+            return entry.node;
+        } catch (TransformerException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    private static XdmNode join(CompletableFuture<XdmNode> future) throws TransformerException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TransformerException)
+                throw (TransformerException) e.getCause();
+            throw e;
+        }
+    }
+
+    private Entry load(String key, String uri, Loader loader) throws TransformerException {
+        Path file = dir.resolve(key);
+        try {
+            if (Files.exists(file)) {
+                XdmNode node = processor.newDocumentBuilder().build(file.toFile());
+                diskHits.increment();
+                logger.debug("Transformer resolver: loaded " + key + " from cache");
+                return new Entry(node, Files.size(file));
+            }
+            Source source = loader.load();
+            if (source == null)
+                source = new StreamSource(uri);
+            XdmNode node = processor.newDocumentBuilder().build(source);
+            misses.increment();
+            long size = store(node, file);
+            logger.debug("Transformer resolver: stored " + key + " in cache");
+            return new Entry(node, size);
+        } catch (SaxonApiException | IOException e) {
+            throw new TransformerException("couldn't load " + uri, e);
+        }
+    }
+
+    // write to a temporary file first, so no one reads a partial file
+    private long store(XdmNode node, Path file) throws SaxonApiException, IOException {
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            Serializer serializer = processor.newSerializer(tmp.toFile());
+            try {
+                processor.writeXdmValue(node, serializer);
+            } finally {
+                serializer.close();
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return Files.size(file);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // the caller holds the lock on the memory
+    private void evict() {
+        Iterator<Entry> it = memory.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().bytes;
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.sum();
+    }
+
+    public long getDiskHits() {
+        return diskHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        int size;
+        long b;
+        synchronized (memory) {
+            size = memory.size();
+            b = bytes;
+        }
+        return "dir[" + dir + "] in memory[" + size + "] bytes[" + b + "] memory hits[" + getMemoryHits()
+                + "] disk hits[" + getDiskHits() + "] misses[" + getMisses() + "] evictions[" + getEvictions() + "]";
+    }
+}
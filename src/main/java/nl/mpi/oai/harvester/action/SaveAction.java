@@ -18,6 +18,10 @@
 
 package nl.mpi.oai.harvester.action;
 
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmNode;
 import nl.mpi.oai.harvester.control.FileSynchronization;
 import nl.mpi.oai.harvester.control.OutputDirectory;
 import nl.mpi.oai.harvester.control.Util;
@@ -85,7 +89,15 @@ public boolean perform(List<Metadata> records) {
                     FileSynchronization.saveToHistoryFile(record.getOrigin(), path, FileSynchronization.Operation.INSERT);
                 }
                 os = Files.newOutputStream(path);
-                if (record.hasDoc()) {
+                if (record.hasNode()) {
+                    // the result of a transformation, saved as it is
+                    XdmNode node = record.getNode();
+                    Serializer serializer = new Processor(node.getUnderlyingNode().getConfiguration()).newSerializer(os);
+                    serializer.setOutputProperty(Serializer.Property.INDENT, "yes");
+                    serializer.serializeNode(node);
+
+                    logger.debug("saved Saxon tree[" + path + "]");
+                } else if (record.hasDoc()) {
                     TransformerFactory transformerFactory = TransformerFactory.newInstance();
                     Transformer transformer = transformerFactory.newTransformer();
                     transformer.setOutputProperty(OutputKeys.INDENT, "yes");
@@ -114,7 +126,7 @@ public boolean perform(List<Metadata> records) {
 
                     logger.debug("saved XML stream[" + path + "]");
                 }
-            } catch (TransformerException | IOException | XPathExpressionException | XMLStreamException ex) {
+            } catch (TransformerException | IOException | XPathExpressionException | XMLStreamException | SaxonApiException ex) {
                 logger.error(ex);
                 return false;
             } finally {
@@ -170,6 +182,12 @@ public boolean equals(Object o) {
         return false;
     }
 
+    // with max-files the records go to numbered subdirectories in the order they arrive
+    @Override
+    public boolean isOrderSensitive() {
+        return true;
+    }
+
     @Override
     public Action clone() {
         // This is a shallow copy, resulting in multiple references to a single
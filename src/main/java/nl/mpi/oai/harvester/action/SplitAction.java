@@ -20,30 +20,22 @@
 
 import nl.mpi.oai.harvester.Provider;
 import nl.mpi.oai.harvester.metadata.Metadata;
+import nl.mpi.oai.harvester.utils.EnvelopeProcessor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.codehaus.stax2.XMLInputFactory2;
-import org.codehaus.stax2.evt.XMLEvent2;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
-import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.XMLEventWriter;
-import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.Attribute;
-import javax.xml.stream.events.XMLEvent;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -62,9 +54,8 @@ public class SplitAction implements Action {
     private final XPath xpath;
     private final DocumentBuilder db;
 
-    private enum State {
-        START,RECORD,HEADER,ID,STOP,ERROR
-    }
+    // a single pass over the response, also for the deleted records and the token
+    private final EnvelopeProcessor envelopeProcessor = new EnvelopeProcessor(EnvelopeProcessor.Part.RECORD);
 
     public SplitAction() throws ParserConfigurationException {
 	XPathFactory xpf = XPathFactory.newInstance();
@@ -123,163 +114,26 @@ public boolean perform(List<Metadata> records) {
                 } else
                     logger.warn("No content was found in this envelope["+record.getId()+"]");
             } else {
-                XMLEventReader reader = null;
-                XMLEventWriter writer = null;
                 try {
-                    XMLInputFactory2 xmlInputFactory = (XMLInputFactory2) XMLInputFactory2.newInstance();
-                    xmlInputFactory.configureForConvenience();
-                    XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
-                    xmlOutputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
-                    
-                    ByteArrayOutputStream baos = null;
-                    int i = 0;
-                    
-                    reader = xmlInputFactory.createXMLEventReader(record.getStream());
-                    writer = null;
-                    
-                    if (reader.hasNext()) {
-                        XMLEvent event = reader.nextEvent();
-                        
-                        State state = State.START; // 1:START 2:RECORD 3:HEADER 4:ID 0:STOP -1:ERROR
-                        int depth = 0;
-                        String status = null;
-                        String id = null;
-                        while (!state.equals(State.STOP) && !state.equals(State.ERROR)) {
-                            //logger.debug("BEGIN loop: state["+state+"] event["+event+"]["+event.getEventType()+"]");
-                            int eventType = event.getEventType();
-                            switch (state) {
-                                case START:
-                                    //logger.debug("state[START]");
-                                    switch (eventType) {
-                                        case XMLEvent2.START_ELEMENT:
-                                            QName qn = event.asStartElement().getName();
-                                            if (qn.getLocalPart().equals("record")) {
-                                                state = State.RECORD;
-                                                i++;
-                                                baos = new ByteArrayOutputStream();
-                                                writer = xmlOutputFactory.createXMLEventWriter(baos);
-                                                writer.add(event);
-                                                status = null;
-                                                id = null;
-                                                depth = 1;
-                                            }
-                                            break;
-                                    }
-                                    break;
-                                case RECORD://RECORD
-                                    //logger.debug("state[RECORD] depth["+depth+"]");
-                                    switch (eventType) {
-                                        case XMLEvent2.START_ELEMENT:
-                                            depth++;
-                                            //logger.debug("start["+event.asStartElement().getName()+"] depth["+depth+"]");
-                                            if (depth==2 && event.asStartElement().getName().getLocalPart().equals("header")) { //record/header
-                                                Attribute attr = event.asStartElement().getAttributeByName(new QName("status"));
-                                                if (attr!=null) {
-                                                    status = attr.getValue();//record/header/@status
-                                                    //logger.debug("status["+status+"]");
-                                                }
-                                                state = State.HEADER;
-                                            }
-                                            break;
-                                        case XMLEvent2.END_ELEMENT:
-                                            //logger.debug("end["+event.asEndElement().getName()+"] depth["+depth+"]");
-                                            if (depth==1) { 
-                                                if (event.asEndElement().getName().getLocalPart().equals("record")) {
-                                                    state = State.START;
-                                                } else {
-                                                    logger.error("record XML element out of sync! Expected record got ["+event.asEndElement().getName()+"]");
-                                                    state = State.ERROR;
-                                                }
-                                            }
-                                            depth--;
-                                            break;
-                                    }
-                                    writer.add(event);
-                                    if (state==State.START) {
-                                        writer.close();
-                                        if (status == null || !status.equals("deleted")) {
-                                            logger.debug("split off XML stream["+i+"]["+id+"] with ["+baos.size()+"] bytes");
-                                            newRecords.add(new Metadata(
-                                                id, record.getPrefix(),
-                                                new ByteArrayInputStream(baos.toByteArray()),
-                                                record.getOrigin(),
-                                                false, false)
-                                            );
-                                        }
-                                        if("deleted".equals(status)){
-                                            processDeleted(record.getOrigin(), id);
-                                        }
-
-                                        writer = null;
-                                        baos = null;
-                                        status = null;
-                                        id = null;
-                                    }
-                                    break;
-                                case HEADER:
-                                    //logger.debug("state[HEADER] depth["+depth+"]");
-                                    switch (eventType) {
-                                        case XMLEvent2.START_ELEMENT:
-                                            depth++;
-                                            //logger.debug("start["+event.asStartElement().getName()+"] depth["+depth+"]");
-                                            if (event.asStartElement().getName().getLocalPart().equals("identifier")) {//record/header/identifier
-                                                state = State.ID;
-                                            }
-                                            break;
-                                        case XMLEvent2.END_ELEMENT:
-                                            //logger.debug("end["+event.asEndElement().getName()+"] depth["+depth+"]");
-                                            if (depth==2) { 
-                                                if (event.asEndElement().getName().getLocalPart().equals("header")) {
-                                                    state = State.RECORD;
-                                                } else {
-                                                    logger.error("header XML element out of sync! Expected header got ["+event.asEndElement().getName()+"]");
-                                                    state = State.ERROR;
-                                                }
-                                            }
-                                            depth--;
-                                            break;
-                                    }
-                                    writer.add(event);
-                                    break;
-                                case ID:
-                                    //logger.debug("state[ID] depth["+depth+"]");
-                                    switch (eventType) {
-                                        case XMLEvent2.CHARACTERS:
-                                            id = event.asCharacters().getData();//record/header/identifier/text()
-                                            //logger.debug("id["+id+"]");
-                                            state = State.HEADER;
-                                            break;
-                                        default:
-                                            state = State.ERROR;
-                                            logger.error("identifier XML element out of sync!");
-                                            break;
-                                    }
-                                    writer.add(event);
-                                    break;
-                            }
-                            if (reader.hasNext())
-                                event = reader.nextEvent();
-                            else
-                                state = state == State.START? State.STOP: State.ERROR;// if START then STOP else ERROR
-                            //logger.debug("END loop: state["+state+"] event["+event+"]["+event.getEventType()+"]");
+                    int n = envelopeProcessor.process(record.getStream(), record.getEnvelope(), r -> {
+                        if (r.isDeleted()) {
+                            processDeleted(record.getOrigin(), r.getIdentifier());
+                        } else {
+                            if (logger.isDebugEnabled())
+                                logger.debug("split off XML stream[" + r.getIdentifier() + "] with [" + r.size() + "] bytes");
+                            newRecords.add(new Metadata(
+                                r.getIdentifier(), record.getPrefix(),
+                                r.getStream(),
+                                record.getOrigin(),
+                                false, false)
+                            );
                         }
-                        if (state.equals(State.ERROR))
-                            logger.error("the XML was not properly processed!");
-                    }
-                    if (i==0) {
+                    });
+                    if (n == 0) {
                         logger.error("No content was found in this envelope["+record.getId()+"]");
-                    }                                       
-                } catch (XMLStreamException ex) {
-                    logger.error("",ex);
-                } finally {
-                    try {
-                        if (reader != null)
-                            reader.close();
-                        if (writer != null)
-                            writer.close();
-                    } catch (XMLStreamException ex) {
-                        logger.error(ex.getMessage());
                     }
+                } catch (IOException | XMLStreamException ex) {
+                    logger.error("the XML was not properly processed!", ex);
                 }
             }
         }
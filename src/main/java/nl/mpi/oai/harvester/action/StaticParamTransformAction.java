@@ -1,18 +1,17 @@
 package nl.mpi.oai.harvester.action;
 
-import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
-import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XsltTransformer;
 import nl.mpi.oai.harvester.metadata.Metadata;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.w3c.dom.Node;
 
-import javax.xml.transform.Source;
 import javax.xml.transform.TransformerConfigurationException;
 import java.io.FileNotFoundException;
 import java.net.MalformedURLException;
 import java.nio.file.Path;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -36,30 +35,27 @@ public boolean perform(List<Metadata> records){
             logger.warn("There are no records to process");
             return true;
         }
+        return super.perform(records);
+    }
 
-        final String pName = records.get(0).getOrigin().getName();
+    // also when the action is part of a chain of transformations
+    @Override
+    XsltTransformer load(Metadata record) throws SaxonApiException {
+        final String pName = record.getOrigin().getName();
         if(!pName.equals(currName)){
-            currName = pName;
             try {
-                compile();
-            } catch (FileNotFoundException | SaxonApiException e) {
-                logger.error(e);
-                return false;
+                compile(pName);
+            } catch (FileNotFoundException e) {
+                throw new SaxonApiException(e);
             }
+            currName = pName;
         }
-        return super.perform(records);
+        return super.load(record);
     }
 
-    private void compile() throws FileNotFoundException, SaxonApiException {
-        Source xslSource = getSourceFromFile();
-        xsltCompiler.setParameter(new QName("static_provider_name"), new XdmAtomicValue(currName));
-        final long compileStart = System.currentTimeMillis();
-        executable = xsltCompiler.compile(xslSource);
-        final long compileEnd = System.currentTimeMillis();
-        if(logger.isDebugEnabled()){
-            logger.debug(String.format("The compilation of %s took %s ms - recompiling", xsltFile,
-                    compileEnd - compileStart));
-        }
+    // compiled once per provider, and shared by the clones of the action
+    private void compile(String name) throws FileNotFoundException, SaxonApiException {
+        executable = stylesheets.get(xsltFile, Collections.singletonMap("static_provider_name", name));
     }
 
     @Override
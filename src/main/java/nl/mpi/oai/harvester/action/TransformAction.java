@@ -19,31 +19,27 @@
 package nl.mpi.oai.harvester.action;
 
 import net.sf.saxon.s9api.*;
+import nl.mpi.oai.harvester.Provider;
 import nl.mpi.oai.harvester.metadata.Metadata;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.Source;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.URIResolver;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.sax.SAXSource;
-import javax.xml.transform.stream.StreamSource;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.xml.transform.ErrorListener;
 import javax.xml.transform.SourceLocator;
@@ -72,10 +68,32 @@ public class TransformAction implements Action {
     Node config;
 
     private static final Processor processor = new Processor(false);
-    static final XsltCompiler xsltCompiler = processor.newXsltCompiler();
+
+    private static final QName CONFIG = new QName("config");
+    private static final QName PROVIDER_NAME = new QName("provider_name");
+    private static final QName PROVIDER_URI = new QName("provider_uri");
+    private static final QName RECORD_IDENTIFIER = new QName("record_identifier");
+
+    /** The compiled stylesheets, shared by all transform actions. */
+    static final XsltCache stylesheets = new XsltCache(processor, 100);
 
     AtomicInteger runningTransformationsCounter;
 
+    /**
+     * The config parameter, built once for each configuration and shared by
+     * all transform actions.
+     */
+    private static final Map<Document, XdmNode> configNodes = new WeakHashMap<>();
+
+    /*
+     * The transformer of this instance, loaded once and reused for every
+     * record, as the pool hands an instance to one thread at a time. The
+     * provider parameters are set again only for another provider.
+     */
+    private XsltTransformer transformer = null;
+    private XsltExecutable loaded = null;
+    private Provider prepared = null;
+
     /** 
      * Create a new transform action using the specified XSLT. 
      * 
@@ -108,25 +126,16 @@ public TransformAction(Node conf, String xsltFile,Path cacheDir, int maxJobs)
         this.config = conf;
 	      this.xsltFile = xsltFile;
         this.cacheDir = cacheDir;
-        Source xslSource = getSourceFromFile();
-
-        final long compileStart = System.currentTimeMillis();
-        executable = xsltCompiler.compile(xslSource);
-        final long compileEnd = System.currentTimeMillis();
-        if(logger.isDebugEnabled()){
-            logger.debug(String.format("The compilation of %s took %s ms", xsltFile, compileEnd - compileStart));
-        }
+        // clones share the executable compiled for the first action
+        executable = stylesheets.get(xsltFile, Collections.emptyMap());
         runningTransformationsCounter = counter;
     }
 
-    Source getSourceFromFile() throws FileNotFoundException {
-        final Source xslSource;
-        if (xsltFile.startsWith("http:") || xsltFile.startsWith("https:")) {
-            xslSource = new StreamSource(xsltFile);
-        }else {
-            xslSource = new StreamSource(new FileInputStream(xsltFile), xsltFile);
-        }
-        return xslSource;
+    /**
+     * @return the compiled stylesheets of all transform actions
+     */
+    public static XsltCache getStylesheets() {
+        return stylesheets;
     }
 
 
@@ -139,38 +148,18 @@ public boolean perform(List<Metadata> records) {
                     logger.debug("==== counter=" + runningTransformationsCounter.get() + "; this does not work " +
                             "without assertions enabled");
                 }
-                Source source = null;
-                Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
-                DOMDestination output = new DOMDestination(doc);
-                if (record.hasStream()) {
-                    source = new SAXSource(record.getSource());
-                } else {
-                    source = new DOMSource(record.getDoc());
-                }
-                XsltTransformer transformer = executable.load();
-                
-                TransformActionListener listener = new TransformActionListener();
-                transformer.setErrorListener(listener);
-                transformer.setMessageListener(listener);
-
-                if (cacheDir != null) {
-                    logger.debug("Setting the URLResolve to cache in "+cacheDir);
-                    transformer.setURIResolver(new TransformActionURLResolver(transformer.getURIResolver()));
-                }
-                
-                transformer.setSource(source);
+                // the result stays a Saxon tree, for the next transformation
+                // or the save action to use as it is
+                XdmDestination output = new XdmDestination();
+                XsltTransformer transformer = load(record);
+                transformer.setSource(getSource(record));
                 transformer.setDestination(output);
 
-                transformer.setParameter(new QName("config"), processor.newDocumentBuilder().wrap(this.config.getOwnerDocument()));
-                transformer.setParameter(new QName("provider_name"), new XdmAtomicValue(record.getOrigin().getName()));
-                transformer.setParameter(new QName("provider_uri"), new XdmAtomicValue(record.getOrigin().getOaiUrl()));
-                transformer.setParameter(new QName("record_identifier"), new XdmAtomicValue(record.getId()));
-
                 transformer.transform();
-                record.setDoc(doc);
-                logger.debug("transformed to XML doc with ["+XPathFactory.newInstance().newXPath().evaluate("count(//*)", record.getDoc())+"] nodes");
-            } catch (XPathExpressionException | SaxonApiException | ParserConfigurationException ex) {
+                setResult(record, output);
+            } catch (SaxonApiException ex) {
                 logger.error("Transformation error: ",ex);
+                discard();
                 return false;
             } finally {
                 assert runningTransformationsCounter.decrementAndGet() >= 0: "You have a concurrency issue";
@@ -179,6 +168,88 @@ public boolean perform(List<Metadata> records) {
         return true;
     }
 
+    /**
+     * Load the stylesheet for a record, with the parameters set for the
+     * record, but without a source or destination.
+     *
+     * @param record the record to transform
+     * @return the transformer
+     * @throws SaxonApiException the stylesheet couldn't be loaded
+     */
+    XsltTransformer load(Metadata record) throws SaxonApiException {
+        if (transformer == null || loaded != executable) {
+            transformer = executable.load();
+            loaded = executable;
+            prepared = null;
+
+            TransformActionListener listener = new TransformActionListener();
+            transformer.setErrorListener(listener);
+            transformer.setMessageListener(listener);
+
+            if (cacheDir != null) {
+                logger.debug("Setting the URLResolve to cache in "+cacheDir);
+                transformer.setURIResolver(new TransformActionURLResolver(transformer.getURIResolver()));
+            }
+
+            if (config != null)
+                transformer.setParameter(CONFIG, getConfigNode(config.getOwnerDocument()));
+        }
+        Provider provider = record.getOrigin();
+        if (provider != prepared) {
+            transformer.setParameter(PROVIDER_NAME, new XdmAtomicValue(provider.getName()));
+            transformer.setParameter(PROVIDER_URI, new XdmAtomicValue(provider.getOaiUrl()));
+            prepared = provider;
+        }
+        transformer.setParameter(RECORD_IDENTIFIER, new XdmAtomicValue(record.getId()));
+        return transformer;
+    }
+
+    /**
+     * Drop the transformer after a failure, a new one is loaded for the
+     * next record.
+     */
+    void discard() {
+        transformer = null;
+    }
+
+    private static XdmNode getConfigNode(Document doc) throws SaxonApiException {
+        synchronized (configNodes) {
+            XdmNode node = configNodes.get(doc);
+            if (node == null) {
+                // a copy, as a DOM tree can't be read by several threads
+                node = processor.newDocumentBuilder().build(new DOMSource(doc));
+                configNodes.put(doc, node);
+            }
+            return node;
+        }
+    }
+
+    /**
+     * @param record a record
+     * @return the content of the record, as a source for a transformation
+     */
+    static Source getSource(Metadata record) {
+        if (record.hasNode())
+            return record.getNode().asSource();
+        if (record.hasStream())
+            return new SAXSource(record.getSource());
+        return new DOMSource(record.getDoc());
+    }
+
+    static void setResult(Metadata record, XdmDestination output) throws SaxonApiException {
+        record.setNode(output.getXdmNode());
+        if (logger.isDebugEnabled()) {
+            logger.debug("transformed to XML doc with [" + processor.newXPathCompiler()
+                    .evaluateSingle("count(//*)", record.getNode()) + "] nodes");
+        }
+    }
+
+    // Each record is transformed on its own.
+    @Override
+    public boolean isRecordParallel() {
+        return true;
+    }
+
     @Override
     public String toString() {
         return "transform using " + xsltFile;
@@ -228,31 +299,11 @@ public Source resolve(String href, String base) throws TransformerException {
                 }
             }
             logger.debug("Transformer resolver: uri["+uri+"]");
-            String cacheFile = uri.replaceAll("[^a-zA-Z0-9]", "_");
-            logger.debug("Transformer resolver: check cache for "+cacheFile);
-            Source res = null;
-            if (Files.exists(cacheDir.resolve(cacheFile))) {
-                res = new StreamSource(cacheDir.resolve(cacheFile).toFile());
-                logger.debug("Transformer resolver: loaded "+cacheFile+" from cache");
-            } else {
-                res = resolver.resolve(href, base);
-                try {
-                    save(res, cacheDir.resolve(cacheFile).toFile());
-                    logger.debug("Transformer resolver: stored "+cacheFile+" in cache");
-                } catch (SaxonApiException ex) {
-                    throw new TransformerException(ex);
-                }
-            }
-            return res;
+            // the parsed document is shared, it can't be modified anyway
+            return ResourceCache.get(cacheDir, processor).get(uri, () -> resolver.resolve(href, base)).asSource();
         }
     }
 
-    private static void save(Source source, File file) throws SaxonApiException {
-        final Serializer serializer = processor.newSerializer(file);
-        final XdmNode res = processor.newDocumentBuilder().build(source);
-        processor.writeXdmValue(res, serializer);
-    }
-
     class TransformActionListener implements MessageListener, ErrorListener {
 
         protected boolean handleMessage(String msg, String loc, Exception e) {
@@ -0,0 +1,158 @@
+package nl.mpi.oai.harvester.action;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmDestination;
+import net.sf.saxon.s9api.XsltTransformer;
+import nl.mpi.oai.harvester.control.ResourcePool;
+import nl.mpi.oai.harvester.metadata.Metadata;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A number of transformations in a row, performed as a single Saxon
+ * pipeline: the output of one stylesheet is fed into the next one as it is
+ * produced. So the result of a step isn't kept as a record, and only the
+ * result of the last step is built as a tree. Every step gets the
+ * parameters of its own transform action.
+ * <p>
+ * Once the pools of its stylesheets are set, a chain borrows the
+ * transformations from them, so the max-jobs of a stylesheet holds for its
+ * use in chains and on its own together.
+ */
+public class TransformChainAction implements Action {
+    private static final Logger logger = LogManager.getLogger(TransformChainAction.class);
+
+    private final List<TransformAction> transforms;
+
+    // the pools of the transformations, null to use the ones of the chain
+    private List<ResourcePool<Action>> pools;
+
+    // the positions of the transformations, ordered by stylesheet
+    private List<Integer> order;
+
+    /**
+     * @param transforms the transform actions, in order
+     */
+    public TransformChainAction(List<TransformAction> transforms) {
+        this.transforms = Collections.unmodifiableList(new ArrayList<>(transforms));
+    }
+
+    public List<TransformAction> getTransforms() {
+        return transforms;
+    }
+
+    /**
+     * Borrow the transformations from the given pools when performing. The
+     * pools are taken in the order of their stylesheets, which is the same
+     * for every chain, so chains never wait for each other in a circle.
+     *
+     * @param pools the pools of the transformations, in order
+     */
+    public void setPools(List<ResourcePool<Action>> pools) {
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < transforms.size(); i++)
+            positions.add(i);
+        positions.sort(Comparator.comparing(i -> transforms.get(i).xsltFile));
+        this.order = positions;
+        this.pools = new ArrayList<>(pools);
+    }
+
+    @Override
+    public boolean perform(List<Metadata> records) {
+        if (pools == null)
+            return perform(transforms, records);
+        TransformAction[] steps = new TransformAction[transforms.size()];
+        try {
+            for (int i : order)
+                steps[i] = (TransformAction) pools.get(i).get();
+            return perform(Arrays.asList(steps), records);
+        } finally {
+            for (int i = 0; i < steps.length; i++) {
+                if (steps[i] != null)
+                    pools.get(i).release(steps[i]);
+            }
+        }
+    }
+
+    private boolean perform(List<TransformAction> transforms, List<Metadata> records) {
+        for (Metadata record : records) {
+            try {
+                XdmDestination output = new XdmDestination();
+                XsltTransformer next = null;
+                // build the chain from the end, each step writing into the next
+                for (int i = transforms.size() - 1; i >= 0; i--) {
+                    XsltTransformer transformer = transforms.get(i).load(record);
+                    if (next == null)
+                        transformer.setDestination(output);
+                    else
+                        transformer.setDestination(next);
+                    next = transformer;
+                }
+                next.setSource(TransformAction.getSource(record));
+                next.transform();
+                TransformAction.setResult(record, output);
+            } catch (SaxonApiException ex) {
+                logger.error("Transformation error in " + this + ": ", ex);
+                for (TransformAction transform : transforms)
+                    transform.discard();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Each record is transformed on its own.
+    @Override
+    public boolean isRecordParallel() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (TransformAction transform : transforms) {
+            if (sb.length() > 0)
+                sb.append(" then ");
+            sb.append(transform);
+        }
+        return sb.toString();
+    }
+
+    // Chains are equal if their transformations are.
+    @Override
+    public int hashCode() {
+        return transforms.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof TransformChainAction)
+            return transforms.equals(((TransformChainAction) o).transforms);
+        return false;
+    }
+
+    @Override
+    public Action clone() {
+        // the transformations are borrowed, no need to compile them again
+        if (pools != null) {
+            TransformChainAction clone = new TransformChainAction(transforms);
+            clone.pools = pools;
+            clone.order = order;
+            return clone;
+        }
+        List<TransformAction> clones = new ArrayList<>();
+        for (TransformAction transform : transforms) {
+            Action clone = transform.clone();
+            if (clone == null)
+                return null;
+            clones.add((TransformAction) clone);
+        }
+        return new TransformChainAction(clones);
+    }
+}
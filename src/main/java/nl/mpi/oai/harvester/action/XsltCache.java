@@ -0,0 +1,228 @@
+package nl.mpi.oai.harvester.action;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
+import nl.mpi.oai.harvester.utils.LatencyStats;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The compiled stylesheets of the transform actions. A stylesheet is
+ * compiled once for its file, the modification time of the file and the
+ * static parameters, and shared by all the actions (and their clones) that
+ * use it. An executable can be used by several threads at the same time.
+ * <p>
+ * The least recently used stylesheets are evicted when there are more than
+ * the capacity, e.g. when a static transformation is compiled for many
+ * providers.
+ */
+public class XsltCache {
+    private static final Logger logger = LogManager.getLogger(XsltCache.class);
+
+    private final Processor processor;
+    private volatile int capacity;
+
+    private final LinkedHashMap<Key, CompletableFuture<XsltExecutable>> compiled =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    // compilations of stylesheets without static parameters, mostly at startup
+    private final LatencyStats compiles = new LatencyStats();
+    // compilations with static parameters, e.g. for every provider
+    private final LatencyStats staticCompiles = new LatencyStats();
+
+    private static final class Key {
+        final String file;
+        final long modified;
+        final Map<String, String> params;
+
+        Key(String file, long modified, Map<String, String> params) {
+            this.file = file;
+            this.modified = modified;
+            this.params = params;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return file.equals(k.file) && modified == k.modified && params.equals(k.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, modified, params);
+        }
+    }
+
+    /**
+     * @param processor the processor the stylesheets are compiled for
+     * @param capacity the maximum number of compiled stylesheets kept
+     */
+    XsltCache(Processor processor, int capacity) {
+        this.processor = processor;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Set the maximum number of compiled stylesheets kept.
+     *
+     * @param capacity the maximum
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        synchronized (compiled) {
+            evict();
+        }
+    }
+
+    /**
+     * Get the compiled stylesheet, compiling it if it isn't cached. When
+     * several threads ask for the same stylesheet, it is compiled once.
+     *
+     * @param xsltFile the file or URL of the stylesheet
+     * @param params the static parameters
+     * @return the compiled stylesheet
+     * @throws FileNotFoundException the stylesheet couldn't be found
+     * @throws SaxonApiException the stylesheet couldn't be compiled
+     */
+    public XsltExecutable get(String xsltFile, Map<String, String> params)
+            throws FileNotFoundException, SaxonApiException {
+        Key key = new Key(xsltFile, modified(xsltFile), new TreeMap<>(params));
+        CompletableFuture<XsltExecutable> future;
+        boolean compile = false;
+        synchronized (compiled) {
+            future = compiled.get(key);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                compiled.put(key, future);
+                compile = true;
+                evict();
+            }
+        }
+        if (compile) {
+            try {
+                future.complete(compile(key));
+            } catch (FileNotFoundException | SaxonApiException | RuntimeException e) {
+                synchronized (compiled) {
+                    compiled.remove(key, future);
+                }
+                future.completeExceptionally(e);
+                throw e;
+            }
+        } else {
+            hits.incrementAndGet();
+        }
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FileNotFoundException)
+                throw (FileNotFoundException) cause;
+            if (cause instanceof SaxonApiException)
+                throw (SaxonApiException) cause;
+            throw e;
+        }
+    }
+
+    // the caller holds the lock on the map
+    private void evict() {
+        while (compiled.size() > capacity) {
+            Key eldest = compiled.keySet().iterator().next();
+            compiled.remove(eldest);
+            evictions.incrementAndGet();
+            logger.debug("evicted the compiled stylesheet " + eldest.file + " " + eldest.params);
+        }
+    }
+
+    private XsltExecutable compile(Key key) throws FileNotFoundException, SaxonApiException {
+        // a compiler has state, so every compilation gets its own
+        XsltCompiler compiler = processor.newXsltCompiler();
+        for (Map.Entry<String, String> param : key.params.entrySet())
+            compiler.setParameter(new QName(param.getKey()), new XdmAtomicValue(param.getValue()));
+        long start = System.nanoTime();
+        XsltExecutable executable = compiler.compile(source(key.file));
+        long time = System.nanoTime() - start;
+        (key.params.isEmpty() ? compiles : staticCompiles).record(time);
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("The compilation of %s %s took %s ms", key.file, key.params,
+                    time / 1_000_000));
+        }
+        return executable;
+    }
+
+    private static Source source(String xsltFile) throws FileNotFoundException {
+        if (isRemote(xsltFile))
+            return new StreamSource(xsltFile);
+        return new StreamSource(new FileInputStream(xsltFile), xsltFile);
+    }
+
+    private static boolean isRemote(String xsltFile) {
+        return xsltFile.startsWith("http:") || xsltFile.startsWith("https:");
+    }
+
+    // a stylesheet changed on disk is compiled again
+    private static long modified(String xsltFile) {
+        if (isRemote(xsltFile))
+            return 0;
+        try {
+            return Files.getLastModifiedTime(Paths.get(xsltFile)).toMillis();
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public LatencyStats getCompiles() {
+        return compiles;
+    }
+
+    public LatencyStats getStaticCompiles() {
+        return staticCompiles;
+    }
+
+    /**
+     * @return the number of compiled stylesheets kept
+     */
+    public int size() {
+        synchronized (compiled) {
+            return compiled.size();
+        }
+    }
+
+    /**
+     * Log the compilations, e.g. at the end of a run.
+     */
+    public void logStatistics() {
+        logger.info("stylesheets cached[" + size() + "] hits[" + getHits() + "] evictions[" + getEvictions()
+                + "] compiled[" + compiles + "] compiled with static parameters[" + staticCompiles + "]");
+    }
+}
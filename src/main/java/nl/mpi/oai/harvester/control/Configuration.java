@@ -22,6 +22,7 @@
 import nl.mpi.oai.harvester.StaticProvider;
 import nl.mpi.oai.harvester.action.*;
 import nl.mpi.oai.harvester.metadata.MetadataFormat;
+import nl.mpi.oai.harvester.utils.HostLimiter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.w3c.dom.Document;
@@ -75,6 +76,11 @@ public class Configuration {
      */
     private Map<String, OutputDirectory> outputs;
 
+    /**
+     * Politeness limits for specific hosts, using the host name as key.
+     */
+    private Map<String, HostLimiter.Limit> hostLimits;
+
     /**
      * All defined action sequences, in order of preference.
      */
@@ -94,11 +100,33 @@ public enum KnownOptions {
         RETRYDELAY("retry-delay"), MAXJOBS("max-jobs"),
         POOLSIZE("resource-pool-size"), TIMEOUT("timeout"),
         MAPFILE("map-file"),
-        SAVERESPONSE("save-response"), SCENARIO("scenario"), INCREMENTAL("incremental"), DRYRUN("dry-run");
+        SAVERESPONSE("save-response"), SCENARIO("scenario"), INCREMENTAL("incremental"), DRYRUN("dry-run"),
+        STREAMING("streaming", true), PREFETCH("prefetch", true),
+        HOSTMAXCONNECTIONS("host-max-connections", true), HOSTMININTERVAL("host-min-interval", true),
+        VIRTUALTHREADS("virtual-threads", true), CPUJOBS("cpu-jobs", true), PIPELINE("pipeline", true),
+        SCHEDULE("schedule", true), DEFAULTHARVESTTIME("default-harvest-time", true), PARTITIONS("partitions", true),
+        DATEWINDOWS("date-windows", true), WINDOWMAXRECORDS("window-max-records", true),
+        BOOTSTRAPJOBS("bootstrap-jobs", true), BOOTSTRAPTIMEOUT("bootstrap-timeout", true), FORMATSTTL("formats-ttl", true),
+        RECORDJOBS("record-jobs", true), XSLTCACHESIZE("xslt-cache-size", true),
+        FUSETRANSFORMS("fuse-transforms", true), RESOURCECACHEBYTES("resource-cache-bytes", true);
         private final String val;
+        private final boolean optional;
 
         KnownOptions(final String s) {
+            this(s, false);
+        }
+
+        KnownOptions(final String s, final boolean optional) {
             val = s;
+            this.optional = optional;
+        }
+
+        /**
+         * @return whether a config file may leave the option out without a
+         *         warning, its getter supplies the default
+         */
+        public boolean isOptional() {
+            return optional;
         }
 
         public String toString() {
@@ -130,6 +158,12 @@ public void beforeUnmarshal(Object target, Object parent) {
                         provider.setRetryDelays(getRetryDelays());
                         provider.setScenario(getScenario());
                         provider.setIncremental(isIncremental());
+                        provider.setStreaming(isStreaming());
+                        provider.setPrefetch(getPrefetch());
+                        provider.setPipeline(getPipeline());
+                        provider.setPartitions(getPartitions());
+                        provider.setDateWindows(getDateWindows());
+                        provider.setWindowMaxRecords(getWindowMaxRecords());
                     }
                 }
             };
@@ -147,6 +181,7 @@ public Configuration() {
         xpath = xpf.newXPath();
         settings = new HashMap<>();
         outputs = new HashMap<>();
+        hostLimits = new LinkedHashMap<>();
         actionSequences = new ArrayList<>();
         providers = new ArrayList<>();
     }
@@ -178,6 +213,11 @@ public Configuration readConfig(String filename) throws ParserConfigurationExcep
         parseOutputs((Node) xpath.evaluate("/config/directories",
                 doc.getDocumentElement(), XPathConstants.NODE));
 
+        logger.debug("Reading: hosts");
+        // ----- Read politeness limits per host -----
+        parseHosts((Node) xpath.evaluate("/config/hosts",
+                doc.getDocumentElement(), XPathConstants.NODE));
+
         logger.debug("Reading: actions");
         // ----- Read list of actions -----
         parseActions((Node) xpath.evaluate("/config/actions",
@@ -212,8 +252,11 @@ private void parseSettings(Node base) throws XPathExpressionException {
             Node curr = (Node) xpath.evaluate(opt,
                     base, XPathConstants.NODE);
             if (curr == null) {
-                logger.warn("Config file has no value for " + opt
-                        + ". This may be an error. Continuing anyway.");
+                if (x.isOptional())
+                    logger.debug("Config file has no value for " + opt + ", using the default");
+                else
+                    logger.warn("Config file has no value for " + opt
+                            + ". This may be an error. Continuing anyway.");
                 continue;
             }
             String text = curr.getTextContent();
@@ -224,6 +267,32 @@ private void parseSettings(Node base) throws XPathExpressionException {
         }
     }
 
+    /**
+     * Parse the (optional) hosts section, each host element overrides the
+     * host-max-connections and host-min-interval settings for a host.
+     *
+     * @param base top node of the hosts section
+     */
+    private void parseHosts(Node base) throws XPathExpressionException {
+        if (base == null)
+            return;
+        NodeList nodeList = (NodeList) xpath.evaluate("./host", base,
+                XPathConstants.NODESET);
+        for (int i = 0; i < nodeList.getLength(); i++) {
+            Node curr = nodeList.item(i);
+            String name = Util.getNodeText(xpath, "./@name", curr);
+            if (name == null || name.isEmpty()) {
+                logger.error("Configuration file defines a host without a name. Please fix it.");
+                continue;
+            }
+            String max = Util.getNodeText(xpath, "./@max-connections", curr);
+            String interval = Util.getNodeText(xpath, "./@min-interval", curr);
+            hostLimits.put(name, new HostLimiter.Limit(
+                    (max == null) ? getHostMaxConnections() : Integer.valueOf(max),
+                    (interval == null) ? getHostMinInterval() : Long.valueOf(interval)));
+        }
+    }
+
     /**
      * Parse the outputs section only.
      *
@@ -265,95 +334,164 @@ private void parseActions(Node base) throws XPathExpressionException {
             String matchValue = Util.getNodeText(xpath, "./@value", currentFormatNode);
             MetadataFormat format = new MetadataFormat(matchType, matchValue);
 
-            NodeList actionNodes = (NodeList) xpath.evaluate("./action", currentFormatNode,
-                    XPathConstants.NODESET);
-            if (actionNodes != null && actionNodes.getLength() > 0) {
-                ActionSequence actionSequence = new ActionSequence(format);
-                for (int k = 0; k < actionNodes.getLength(); k++) {
-                    Node actionNode = actionNodes.item(k);
-                    String actionType = Util.getNodeText(xpath, "./@type", actionNode);
-                    int jobs = getResourcePoolSize();
-                    Action act = null;
-                    if ("strip".equals(actionType)) {
-                        try {
-                            act = new StripAction();
-                        } catch (ParserConfigurationException ex) {
-                            logger.error(ex);
-                        }
-                    } else if ("split".equals(actionType)) {
-                        try {
-                            act = new SplitAction();
-                        } catch (ParserConfigurationException ex) {
-                            logger.error(ex);
-                        }
-                    } else if ("save".equals(actionType)) {
-                        String outDirId = Util.getNodeText(xpath, "./@dir", actionNode);
-                        boolean history = Boolean.parseBoolean(Util.getNodeText(xpath, "./@history", actionNode));
-                        String suffix = Util.getNodeText(xpath, "./@suffix", actionNode);
-
-                        // if null defaults to false, only "true" leads to true
-                        boolean offload = Boolean.parseBoolean(Util.getNodeText(xpath, "./@offload", actionNode));
-
-                        if (outputs.containsKey(outDirId)) {
-                            OutputDirectory outDir = outputs.get(outDirId);
-                            String group = Util.getNodeText(xpath,
-                                    "./@group-by-provider", actionNode);
-                            // If the group-by-provider attribute is
-                            // not defined, it defaults to true.
-                            if (group != null && !Boolean.valueOf(group)) {
-                                act = new SaveAction(outDir, suffix, offload, history);
-                            } else {
-                                act = new SaveGroupedAction(outDir, suffix, offload, history);
-                            }
-                        } else {
-                            logger.error("Invalid output directory " + outDirId
-                                    + " specified for save action");
-                        }
-                    } else if (actionType != null && actionType.toLowerCase().contains("transform")) {
+            ActionSequence actionSequence = parseActionSequence(base, format, currentFormatNode);
+            if (actionSequence != null) {
+                actionSequences.add(actionSequence);
+            } else {
+                logger.warn("A format has no actions defined; skipping it");
+            }
+        }
+    }
+
+    /**
+     * Parse the actions of a format, or of a branch. The actions are followed
+     * by the branches, which all get the records the actions result in.
+     *
+     * @param base top node of the actions section
+     * @param format the format the actions apply to
+     * @param node the format or branch node
+     * @return the action sequence, or null if there are no actions and no
+     *         branches
+     */
+    private ActionSequence parseActionSequence(Node base, MetadataFormat format, Node node)
+            throws XPathExpressionException {
+        String matchValue = format.getValue();
+        NodeList actionNodes = (NodeList) xpath.evaluate("./action", node,
+                XPathConstants.NODESET);
+        NodeList branchNodes = (NodeList) xpath.evaluate("./branch", node,
+                XPathConstants.NODESET);
+        if ((actionNodes == null || actionNodes.getLength() == 0)
+                && (branchNodes == null || branchNodes.getLength() == 0))
+            return null;
+        ActionSequence actionSequence = new ActionSequence(format);
+        // adjacent transformations, fused into one action
+        List<TransformAction> transforms = new ArrayList<>();
+        int transformJobs = Integer.MAX_VALUE;
+        int transformWorkers = 1;
+        for (int k = 0; k < actionNodes.getLength(); k++) {
+            Node actionNode = actionNodes.item(k);
+            String actionType = Util.getNodeText(xpath, "./@type", actionNode);
+            int jobs = getResourcePoolSize();
+            String workersStr = Util.getNodeText(xpath, "./@workers", actionNode);
+            int workers = (workersStr == null) ? 1 : Integer.valueOf(workersStr);
+            Action act = null;
+            if ("strip".equals(actionType)) {
+                try {
+                    act = new StripAction();
+                } catch (ParserConfigurationException ex) {
+                    logger.error(ex);
+                }
+            } else if ("split".equals(actionType)) {
+                try {
+                    act = new SplitAction();
+                } catch (ParserConfigurationException ex) {
+                    logger.error(ex);
+                }
+            } else if ("save".equals(actionType)) {
+                String outDirId = Util.getNodeText(xpath, "./@dir", actionNode);
+                boolean history = Boolean.parseBoolean(Util.getNodeText(xpath, "./@history", actionNode));
+                String suffix = Util.getNodeText(xpath, "./@suffix", actionNode);
+
+                // if null defaults to false, only "true" leads to true
+                boolean offload = Boolean.parseBoolean(Util.getNodeText(xpath, "./@offload", actionNode));
+
+                if (outputs.containsKey(outDirId)) {
+                    OutputDirectory outDir = outputs.get(outDirId);
+                    String group = Util.getNodeText(xpath,
+                            "./@group-by-provider", actionNode);
+                    // If the group-by-provider attribute is
+                    // not defined, it defaults to true.
+                    if (group != null && !Boolean.valueOf(group)) {
+                        act = new SaveAction(outDir, suffix, offload, history);
+                    } else {
+                        act = new SaveGroupedAction(outDir, suffix, offload, history);
+                    }
+                } else {
+                    logger.error("Invalid output directory " + outDirId
+                            + " specified for save action");
+                }
+            } else if (actionType != null && actionType.toLowerCase().contains("transform")) {
+                try {
+                    String xslFile = Util.getNodeText(xpath, "./@file", actionNode);
+                    Path cache = null;
+                    String cacheDir = Util.getNodeText(xpath, "./@cache", actionNode);
+                    if (cacheDir != null) {
+                        Path workDir = Paths.get(getWorkingDirectory());
+                        cache = workDir.resolve(cacheDir);
+                        Util.ensureDirExists(cache);
+                    }
+                    //If there are multiple transform action with the same file (they are equal()) in the config
+                    //the pool size depends only on the jobs of the first appearance
+                    //It doesn't seem to make sense to increase this above global resource pool size
+                    String jobsStr = Util.getNodeText(xpath, "./@max-jobs", actionNode);
+                    if (jobsStr != null) {
                         try {
-                            String xslFile = Util.getNodeText(xpath, "./@file", actionNode);
-                            Path cache = null;
-                            String cacheDir = Util.getNodeText(xpath, "./@cache", actionNode);
-                            if (cacheDir != null) {
-                                Path workDir = Paths.get(getWorkingDirectory());
-                                cache = workDir.resolve(cacheDir);
-                                Util.ensureDirExists(cache);
-                            }
-                            //If there are multiple transform action with the same file (they are equal()) in the config
-                            //the pool size depends only on the jobs of the first appearance
-                            //It doesn't seem to make sense to increase this above global resource pool size
-                            String jobsStr = Util.getNodeText(xpath, "./@max-jobs", actionNode);
-                            if (jobsStr != null) {
-                                try {
-                                    jobs = Integer.parseInt(jobsStr);
-                                } catch (NumberFormatException e) {
-                                    logger.error("@max-jobs[" + jobsStr + "] doesn't contain a valid number", e);
-                                }
-                            }
-                            if("staticTransform".equals(actionType)){
-                                act = new StaticParamTransformAction(base, xslFile, cache, jobs);
-                            }else {
-                                act = new TransformAction(base, xslFile, cache, jobs);
-                            }
-                        } catch (Exception ex) {
-                            logger.error(ex);
+                            jobs = Integer.parseInt(jobsStr);
+                        } catch (NumberFormatException e) {
+                            logger.error("@max-jobs[" + jobsStr + "] doesn't contain a valid number", e);
                         }
                     }
-                    if (act != null) {
-                        actionSequence.add(act, jobs);
-                    }
-                    else {
-                        logger.error("Unknown action[" + actionType + "]");
-                        throw new IllegalArgumentException(String.format("Failed to create action number %s (%s) of %s"
-                                , k, actionType, matchValue));
+                    if("staticTransform".equals(actionType)){
+                        act = new StaticParamTransformAction(base, xslFile, cache, jobs);
+                    }else {
+                        act = new TransformAction(base, xslFile, cache, jobs);
                     }
+                } catch (Exception ex) {
+                    logger.error(ex);
                 }
-
-                actionSequences.add(actionSequence);
+            }
+            if (act instanceof TransformAction && isFuseTransforms()) {
+                // a chain takes each stylesheet once from its pool
+                if (transforms.contains(act)) {
+                    addTransforms(actionSequence, transforms, transformJobs, transformWorkers);
+                    transformJobs = Integer.MAX_VALUE;
+                    transformWorkers = 1;
+                }
+                transforms.add((TransformAction) act);
+                transformJobs = Math.min(transformJobs, jobs);
+                transformWorkers = Math.max(transformWorkers, workers);
+            }
+            else if (act != null) {
+                addTransforms(actionSequence, transforms, transformJobs, transformWorkers);
+                transformJobs = Integer.MAX_VALUE;
+                transformWorkers = 1;
+                actionSequence.add(act, jobs, workers);
+            }
+            else {
+                logger.error("Unknown action[" + actionType + "]");
+                throw new IllegalArgumentException(String.format("Failed to create action number %s (%s) of %s"
+                        , k, actionType, matchValue));
+            }
+        }
+        addTransforms(actionSequence, transforms, transformJobs, transformWorkers);
+        for (int b = 0; branchNodes != null && b < branchNodes.getLength(); b++) {
+            ActionSequence branch = parseActionSequence(base, format, branchNodes.item(b));
+            if (branch != null) {
+                actionSequence.addBranch(branch);
             } else {
-                logger.warn("A format has no actions defined; skipping it");
+                logger.warn("A branch of " + matchValue + " has no actions defined; skipping it");
             }
         }
+        return actionSequence;
+    }
+
+    /**
+     * Add the transformations collected, as a single action if there are
+     * more than one, and clear the list. The chain gets the smallest pool of
+     * the transformations, and borrows them from the pools of their
+     * stylesheets, so none is performed more often at the same time than its
+     * max-jobs allows, also when it is used outside of the chain.
+     */
+    private static void addTransforms(ActionSequence actionSequence, List<TransformAction> transforms,
+            int jobs, int workers) {
+        if (transforms.size() == 1) {
+            actionSequence.add(transforms.get(0), jobs, workers);
+        } else if (transforms.size() > 1) {
+            TransformChainAction chain = new TransformChainAction(transforms);
+            logger.info("fused the transformations " + chain);
+            actionSequence.add(chain, jobs, workers);
+        }
+        transforms.clear();
     }
 
     /**
@@ -468,6 +606,12 @@ private void parseProviders(Node base) throws
                                 provider.setRetryDelays(getRetryDelays());
                                 provider.setExclusive(false);
                                 provider.setIncremental(isIncremental());
+                                provider.setStreaming(isStreaming());
+                                provider.setPrefetch(getPrefetch());
+                                provider.setPipeline(getPipeline());
+                                provider.setPartitions(getPartitions());
+                                provider.setDateWindows(getDateWindows());
+                                provider.setWindowMaxRecords(getWindowMaxRecords());
                                 provider.setScenario(getScenario());
                             }
                             
@@ -682,6 +826,189 @@ public boolean isDryRun() {
         return (s == null) ? false : Boolean.valueOf(s);
     }
     
+    /**
+     * Get streaming flag.
+     */
+    public boolean isStreaming() {
+        String s = settings.get(KnownOptions.STREAMING.toString());
+        return (s == null) ? false : Boolean.valueOf(s);
+    }
+    
+    /**
+     * Get the number of ListRecords responses to fetch ahead.
+     */
+    public int getPrefetch() {
+        String s = settings.get(KnownOptions.PREFETCH.toString());
+        return (s == null) ? 0 : Integer.valueOf(s);
+    }
+    
+    /**
+     * Get the length of the queue per action when the actions are run as a
+     * pipeline, 0 means no pipeline.
+     */
+    public int getPipeline() {
+        String s = settings.get(KnownOptions.PIPELINE.toString());
+        return (s == null) ? 0 : Integer.valueOf(s);
+    }
+    
+    /**
+     * Get the number of (prefix, set) combinations of a provider harvested at
+     * the same time.
+     */
+    public int getPartitions() {
+        String s = settings.get(KnownOptions.PARTITIONS.toString());
+        return (s == null) ? 1 : Integer.valueOf(s);
+    }
+    
+    /**
+     * Get the number of date windows to split the harvest of a provider
+     * into, 0 means no windows.
+     */
+    public int getDateWindows() {
+        String s = settings.get(KnownOptions.DATEWINDOWS.toString());
+        return (s == null) ? 0 : Integer.valueOf(s);
+    }
+    
+    /**
+     * Get the maximum number of records in a date window before it is split
+     * further, 0 means unlimited.
+     */
+    public long getWindowMaxRecords() {
+        String s = settings.get(KnownOptions.WINDOWMAXRECORDS.toString());
+        return (s == null) ? 0 : Long.valueOf(s);
+    }
+    
+    /**
+     * Get the number of providers bootstrapped at the same time, 0 (the
+     * default) means no bootstrap.
+     */
+    public int getBootstrapJobs() {
+        String s = settings.get(KnownOptions.BOOTSTRAPJOBS.toString());
+        return (s == null) ? 0 : Integer.valueOf(s);
+    }
+    
+    /**
+     * Get the timeout in seconds of the bootstrap requests, 0 means the
+     * timeout of the provider.
+     */
+    public int getBootstrapTimeout() {
+        String s = settings.get(KnownOptions.BOOTSTRAPTIMEOUT.toString());
+        return (s == null) ? 30 : Integer.valueOf(s);
+    }
+    
+    /**
+     * Get the number of seconds a cached ListMetadataFormats response is used
+     * without asking the provider whether it changed.
+     */
+    public long getFormatsTtl() {
+        String s = settings.get(KnownOptions.FORMATSTTL.toString());
+        return (s == null) ? 86400 : Long.valueOf(s);
+    }
+    
+    /**
+     * Get virtual threads flag.
+     */
+    public boolean isVirtualThreads() {
+        String s = settings.get(KnownOptions.VIRTUALTHREADS.toString());
+        return (s == null) ? false : Boolean.valueOf(s);
+    }
+    
+    /**
+     * Get the maximum number of actions performed at the same time, 0 means
+     * unlimited.
+     */
+    public int getCpuJobs() {
+        String s = settings.get(KnownOptions.CPUJOBS.toString());
+        // Note that the default value depends on the threads used: with
+        // virtual threads max-jobs is typically far beyond the number of
+        // processors.
+        if (s == null) return isVirtualThreads() ? Runtime.getRuntime().availableProcessors() : 0;
+        return Integer.valueOf(s);
+    }
+    
+    /**
+     * Get the maximum number of records of a page an action is performed on
+     * at the same time, 1 means one record after the other.
+     */
+    public int getRecordJobs() {
+        String s = settings.get(KnownOptions.RECORDJOBS.toString());
+        return (s == null) ? 1 : Integer.valueOf(s);
+    }
+    
+    /**
+     * Get the maximum number of compiled stylesheets kept.
+     */
+    public int getXsltCacheSize() {
+        String s = settings.get(KnownOptions.XSLTCACHESIZE.toString());
+        return (s == null) ? 100 : Integer.valueOf(s);
+    }
+    
+    /**
+     * Should adjacent transformations be performed as a single action?
+     */
+    public boolean isFuseTransforms() {
+        String s = settings.get(KnownOptions.FUSETRANSFORMS.toString());
+        return (s == null) ? false : Boolean.valueOf(s);
+    }
+    
+    /**
+     * Get the maximum number of bytes of documents loaded by stylesheets
+     * kept in memory, per cache directory.
+     */
+    public long getResourceCacheBytes() {
+        String s = settings.get(KnownOptions.RESOURCECACHEBYTES.toString());
+        return (s == null) ? 64L * 1024 * 1024 : Long.valueOf(s);
+    }
+    
+    /**
+     * Get the order in which the providers are started: longest-first (by
+     * the expected harvest time) or config.
+     */
+    public String getSchedule() {
+        String s = settings.get(KnownOptions.SCHEDULE.toString());
+        return (s == null) ? "longest-first" : s;
+    }
+    
+    /**
+     * Get the expected harvest time in seconds of a provider without
+     * history, a negative number means the average of the other providers.
+     */
+    public long getDefaultHarvestTime() {
+        String s = settings.get(KnownOptions.DEFAULTHARVESTTIME.toString());
+        return (s == null) ? -1 : Long.valueOf(s);
+    }
+    
+    /**
+     * Get the maximum number of concurrent requests per host, 0 means unlimited.
+     */
+    public int getHostMaxConnections() {
+        String s = settings.get(KnownOptions.HOSTMAXCONNECTIONS.toString());
+        return (s == null) ? 0 : Integer.valueOf(s);
+    }
+    
+    /**
+     * Get the minimum number of milliseconds between the requests to a host.
+     */
+    public long getHostMinInterval() {
+        String s = settings.get(KnownOptions.HOSTMININTERVAL.toString());
+        return (s == null) ? 0 : Long.valueOf(s);
+    }
+    
+    /**
+     * Get the politeness limits of specific hosts.
+     */
+    public Map<String, HostLimiter.Limit> getHostLimits() {
+        return hostLimits;
+    }
+    
+    /**
+     * Configure the politeness limits of a host limiter.
+     */
+    public void applyHostLimits(HostLimiter limiter) {
+        limiter.setDefaultLimit(new HostLimiter.Limit(getHostMaxConnections(), getHostMinInterval()));
+        hostLimits.forEach(limiter::setLimit);
+    }
+    
     /**
      * Get scenario.
      */
@@ -719,6 +1046,11 @@ void log() {
             logger.info("  " + me.getKey() + " --> " + me.getValue());
         }
 
+        logger.info("--- list of host limits ---");
+        for (Map.Entry<String, HostLimiter.Limit> me : hostLimits.entrySet()) {
+            logger.info("  " + me.getKey() + " --> " + me.getValue());
+        }
+
         logger.info("--- list of action sequences ---");
         for (ActionSequence act : actionSequences) {
             logger.info("  " + act);
@@ -20,6 +20,7 @@
 
 import ORG.oclc.oai.harvester2.verb.ListIdentifiers;
 import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.utils.ExecutionSlots;
 import nl.mpi.oai.harvester.utils.Statistic;
 import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.LogManager;
@@ -36,6 +37,7 @@
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 /**
@@ -117,7 +119,7 @@ private static void runSynchronizationForNoDeletionMode(final Provider provider)
                     int retryDelay = provider.getRetryDelay(counter);
                     if (retryDelay > 0) {
                         try {
-                            Thread.sleep(retryDelay*1000);
+                            ExecutionSlots.sleep(retryDelay, TimeUnit.SECONDS);
                         } catch (InterruptedException e) {
                             logger.error(e.getMessage(), e);
                         }
@@ -0,0 +1,162 @@
+package nl.mpi.oai.harvester.control;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.utils.Statistic;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+/**
+ * Orders the providers by their expected harvest time, longest first, so a
+ * few huge providers don't start late and decide the length of the run.
+ * <p>
+ * The expected time of a provider is the harvest time of its last
+ * successful harvest. Without one the number of requests of that harvest
+ * times the average time per request of the other providers is used, and
+ * without any history a default time. The predicted makespan is the end of
+ * the last provider when the providers are started in this order as soon
+ * as one of the max-jobs slots is free.
+ */
+public class HarvestScheduler {
+
+    private static final Logger logger = LogManager.getLogger(HarvestScheduler.class);
+
+    private final int slots;
+    private final long defaultTime;
+    private final Function<Provider, Statistic> history;
+    private final Map<Provider, Long> expected = new IdentityHashMap<>();
+    private long predicted = 0;
+    private long start = 0;
+
+    /**
+     * @param slots the number of providers harvested at the same time
+     * @param defaultTime the expected harvest time in seconds of a provider
+     *                    without history, a negative number means the
+     *                    average of the providers with history
+     */
+    public HarvestScheduler(int slots, long defaultTime) {
+        this(slots, defaultTime, Provider::getHistoryStatistic);
+    }
+
+    HarvestScheduler(int slots, long defaultTime, Function<Provider, Statistic> history) {
+        this.slots = Math.max(1, slots);
+        this.defaultTime = defaultTime;
+        this.history = history;
+    }
+
+    /**
+     * Estimate the harvest times and order the providers, longest first.
+     * Providers with the same expected time keep their configured order.
+     *
+     * @param providers the providers in configured order
+     * @return the providers in the order to start them
+     */
+    public List<Provider> schedule(List<Provider> providers) {
+        estimate(providers);
+        List<Provider> ordered = new ArrayList<>(providers);
+        ordered.sort(Comparator.comparingLong((Provider p) -> expected.get(p)).reversed());
+        predicted = makespan(ordered);
+        return ordered;
+    }
+
+    /**
+     * Estimate the harvest times and predict the makespan of the providers
+     * started in the given order.
+     *
+     * @param providers the providers in the order to start them
+     */
+    public void predict(List<Provider> providers) {
+        estimate(providers);
+        predicted = makespan(providers);
+    }
+
+    private void estimate(List<Provider> providers) {
+        Map<Provider, Statistic> stats = new IdentityHashMap<>();
+        long time = 0, requests = 0, known = 0, total = 0;
+        for (Provider provider : providers) {
+            Statistic s = history.apply(provider);
+            if (s == null)
+                continue;
+            stats.put(provider, s);
+            if (s.getHarvestTime() > 0) {
+                known++;
+                total += s.getHarvestTime();
+                if (s.getRequests() > 0) {
+                    time += s.getHarvestTime();
+                    requests += s.getRequests();
+                }
+            }
+        }
+        double perRequest = requests > 0 ? (double) time / requests : 0;
+        long fallback = defaultTime >= 0 ? defaultTime : (known > 0 ? total / known : 0);
+        for (Provider provider : providers) {
+            Statistic s = stats.get(provider);
+            long e;
+            if (s != null && s.getHarvestTime() > 0)
+                e = s.getHarvestTime();
+            else if (s != null && s.getRequests() > 0 && perRequest > 0)
+                e = Math.round(s.getRequests() * perRequest);
+            else
+                e = fallback;
+            expected.put(provider, e);
+        }
+    }
+
+    /**
+     * @param provider a scheduled provider
+     * @return the expected harvest time in seconds
+     */
+    public long getExpected(Provider provider) {
+        return expected.getOrDefault(provider, 0L);
+    }
+
+    /**
+     * @return the predicted length of the run in seconds
+     */
+    public long getPredictedMakespan() {
+        return predicted;
+    }
+
+    private long makespan(List<Provider> ordered) {
+        // the times the slots are free again
+        PriorityQueue<Long> free = new PriorityQueue<>();
+        for (int i = 0; i < slots; i++)
+            free.add(0L);
+        long end = 0;
+        for (Provider provider : ordered) {
+            long done = free.poll() + expected.get(provider);
+            free.add(done);
+            end = Math.max(end, done);
+        }
+        return end;
+    }
+
+    /**
+     * Mark the start of the run.
+     */
+    public void start() {
+        start = System.currentTimeMillis();
+    }
+
+    /**
+     * Log the predicted and actual length of the run, and per provider the
+     * expected and actual harvest time.
+     */
+    public void report() {
+        long actual = (System.currentTimeMillis() - start) / 1000;
+        for (Map.Entry<Provider, Long> e : expected.entrySet()) {
+            Statistic s = e.getKey().getCurrentStatistic();
+            logger.debug("provider[" + e.getKey().getName() + "] expected[" + e.getValue() + "s] actual["
+                    + (s == null ? "?" : s.getHarvestTime() + "s") + "]");
+        }
+        logger.info("makespan predicted[" + predicted + "s] actual[" + actual + "s] providers[" + expected.size()
+                + "] slots[" + slots + "]");
+    }
+}
@@ -18,6 +18,13 @@
 
 package nl.mpi.oai.harvester.control;
 
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.action.ActionSequence;
+import nl.mpi.oai.harvester.action.ResourceCache;
+import nl.mpi.oai.harvester.action.TransformAction;
+import nl.mpi.oai.harvester.utils.ExecutionSlots;
+import nl.mpi.oai.harvester.utils.HttpTransport;
+import nl.mpi.oai.harvester.utils.Threads;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.xml.sax.SAXException;
@@ -25,9 +32,9 @@
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPathExpressionException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
-import java.util.stream.Collectors;
 
 
 /**
@@ -44,19 +51,69 @@ public class Main {
 
     private static void runHarvesting(Configuration config) {
 	config.log();
+        config.applyHostLimits(HttpTransport.getInstance().getHostLimiter());
         
-        ExecutorService executor = new ScheduledThreadPoolExecutor(config.getMaxJobs());
+        // max-jobs bounds the providers harvested at the same time, not the
+        // threads: a provider waiting to retry gives its slot to another one
+        ExecutionSlots slots = new ExecutionSlots(config.getMaxJobs());
+        Threads.setVirtual(config.isVirtualThreads());
+        ExecutorService executor = Threads.newExecutor();
+        ActionSequence.setCpuLimit(config.getCpuJobs());
+        ActionSequence.setRecordJobs(config.getRecordJobs());
+        TransformAction.getStylesheets().setCapacity(config.getXsltCacheSize());
+        ResourceCache.setMaxBytes(config.getResourceCacheBytes());
+        logger.info("harvesting on " + (Threads.isVirtual() ? "virtual" : "platform") + " threads, max-jobs["
+                + config.getMaxJobs() + "] cpu-jobs[" + config.getCpuJobs() + "] record-jobs["
+                + config.getRecordJobs() + "]");
+
+		List<Provider> providers = config.getProviders();
+		if (config.getBootstrapJobs() > 0) {
+			ProviderBootstrap bootstrap = new ProviderBootstrap(config.getBootstrapJobs(),
+					config.getBootstrapTimeout(), config.getActionSequences());
+			try {
+				providers = bootstrap.bootstrap(providers);
+			} catch (InterruptedException e) {
+				logger.error(e);
+				executor.shutdown();
+				return;
+			}
+			bootstrap.report();
+		}
+		HarvestScheduler scheduler = new HarvestScheduler(config.getMaxJobs(), config.getDefaultHarvestTime());
+		if ("longest-first".equals(config.getSchedule())) {
+			providers = scheduler.schedule(providers);
+		} else {
+			if (!"config".equals(config.getSchedule()))
+				logger.warn("unknown schedule[" + config.getSchedule() + "], using the configured order");
+			scheduler.predict(providers);
+		}
+		logger.info("schedule[" + config.getSchedule() + "] predicted makespan["
+				+ scheduler.getPredictedMakespan() + "s]");
+		scheduler.start();
 
-		final List<Callable<Object>> workers = config.getProviders().stream()
-				.map(Worker::new)
-				.map(Executors::callable)
-				.collect(Collectors.toList());
+		final List<Future<?>> workers = new ArrayList<>();
 		try {
-			executor.invokeAll(workers);
+			for (Provider provider : providers) {
+				slots.acquire();
+				workers.add(executor.submit(slots.holding(new Worker(provider))));
+			}
+			for (Future<?> worker : workers) {
+				try {
+					worker.get();
+				} catch (ExecutionException e) {
+					// already logged by the worker
+				}
+			}
 		} catch (InterruptedException e) {
 			logger.error(e);
 		}
 		executor.shutdown();
+		logger.info("execution slots " + slots);
+		scheduler.report();
+		ActionSequence.logPoolStatistics();
+		TransformAction.getStylesheets().logStatistics();
+		ResourceCache.logStatistics();
+		HttpTransport.getInstance().logStatistics();
     }
 
     public static void main(String[] args) {
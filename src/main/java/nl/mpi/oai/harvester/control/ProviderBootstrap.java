@@ -0,0 +1,160 @@
+package nl.mpi.oai.harvester.control;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.action.ActionSequence;
+import nl.mpi.oai.harvester.utils.ExecutionSlots;
+import nl.mpi.oai.harvester.utils.LatencyStats;
+import nl.mpi.oai.harvester.utils.Threads;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the Identify and ListMetadataFormats responses of all providers
+ * before the harvest starts, many providers at the same time and with a
+ * short timeout.
+ * <p>
+ * Providers that can't be reached, or don't offer a prefix matching any of
+ * the action sequences, are dropped, so they don't take up a harvest slot.
+ * The others keep their responses for the harvest.
+ */
+public class ProviderBootstrap {
+
+    private static final Logger logger = LogManager.getLogger(ProviderBootstrap.class);
+
+    /**
+     * The outcome of the bootstrap of a provider.
+     */
+    public enum Status {
+        READY, UNREACHABLE, NO_PREFIX, FAILED
+    }
+
+    private final int jobs;
+    private final int timeout;
+    private final List<ActionSequence> actionSequences;
+    private final Map<Provider, Status> status = new IdentityHashMap<>();
+    private final Map<Provider, Long> times = new IdentityHashMap<>();
+    private final LatencyStats stats = new LatencyStats();
+    private long elapsed = 0;
+
+    /**
+     * @param jobs the number of providers bootstrapped at the same time
+     * @param timeout the timeout in seconds of the requests, 0 means the
+     *                timeout of the provider
+     * @param actionSequences the action sequences to find a prefix for
+     */
+    public ProviderBootstrap(int jobs, int timeout, List<ActionSequence> actionSequences) {
+        this.jobs = Math.max(1, jobs);
+        this.timeout = timeout;
+        this.actionSequences = actionSequences;
+    }
+
+    /**
+     * Bootstrap the providers.
+     *
+     * @param providers the providers
+     * @return the providers ready to be harvested, in the same order
+     * @throws InterruptedException interrupted while waiting
+     */
+    public List<Provider> bootstrap(List<Provider> providers) throws InterruptedException {
+        long start = System.nanoTime();
+        ExecutionSlots slots = new ExecutionSlots(jobs);
+        ExecutorService executor = Threads.newExecutor();
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (Provider provider : providers) {
+                slots.acquire();
+                futures.add(executor.submit(slots.holding(() -> bootstrap(provider))));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // recorded as failed by the task
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        elapsed = System.nanoTime() - start;
+        List<Provider> ready = new ArrayList<>();
+        for (Provider provider : providers) {
+            if (getStatus(provider) == Status.READY)
+                ready.add(provider);
+        }
+        return ready;
+    }
+
+    private void bootstrap(Provider provider) {
+        long start = System.nanoTime();
+        Status s = Status.FAILED;
+        try {
+            int t = timeout > 0 && (provider.getTimeout() <= 0 || timeout < provider.getTimeout())
+                    ? timeout : provider.getTimeout();
+            if (!provider.prefetch(t)) {
+                s = Status.UNREACHABLE;
+            } else {
+                s = Status.NO_PREFIX;
+                for (ActionSequence actionSequence : actionSequences) {
+                    if (provider.supports(actionSequence)) {
+                        s = Status.READY;
+                        break;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("bootstrap of provider[" + provider.getOaiUrl() + "] failed: " + e.getMessage(), e);
+        } finally {
+            long time = System.nanoTime() - start;
+            stats.record(time);
+            synchronized (this) {
+                status.put(provider, s);
+                times.put(provider, TimeUnit.NANOSECONDS.toMillis(time));
+            }
+        }
+    }
+
+    /**
+     * @param provider a provider
+     * @return the outcome of its bootstrap, null if it wasn't bootstrapped
+     */
+    public synchronized Status getStatus(Provider provider) {
+        return status.get(provider);
+    }
+
+    /**
+     * Log the outcome of the bootstrap: the providers dropped, the slowest
+     * providers and the totals.
+     */
+    public synchronized void report() {
+        Map<Status, Integer> counts = new EnumMap<>(Status.class);
+        for (Map.Entry<Provider, Status> e : status.entrySet()) {
+            counts.merge(e.getValue(), 1, Integer::sum);
+            if (e.getValue() != Status.READY)
+                logger.warn("dropped provider[" + e.getKey().getOaiUrl() + "]: " + e.getValue());
+        }
+        List<Provider> slowest = new ArrayList<>(times.keySet());
+        slowest.sort(Comparator.comparingLong((Provider p) -> times.get(p)).reversed());
+        StringBuilder sb = new StringBuilder();
+        for (Provider provider : slowest.subList(0, Math.min(5, slowest.size()))) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(provider.getOaiUrl()).append(':').append(times.get(provider)).append("ms");
+        }
+        logger.info("bootstrap providers[" + status.size() + "] ready[" + counts.getOrDefault(Status.READY, 0)
+                + "] unreachable[" + counts.getOrDefault(Status.UNREACHABLE, 0) + "] no prefix["
+                + counts.getOrDefault(Status.NO_PREFIX, 0) + "] failed[" + counts.getOrDefault(Status.FAILED, 0)
+                + "] jobs[" + jobs + "] elapsed[" + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms] per provider["
+                + stats + "] slowest[" + sb + "]");
+    }
+}
@@ -18,13 +18,20 @@
 
 package nl.mpi.oai.harvester.control;
 
+import nl.mpi.oai.harvester.utils.LatencyHistogram;
+
 import java.util.Collections;
 import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A very simple generic pool that manages access to resources that
  * are not thread-safe in a multi-thread application.
  *
+ * A caller that has to wait for a resource can give up after a timeout or
+ * when interrupted. The pool keeps track of how long callers wait for a
+ * resource, and of the share of the resources in use.
+ *
  * Alternative: A more comprehensive resource pool implementation is
  * available in the Apache Commons framework. That one has more
  * configuration options but lacks support for Java generics.
@@ -35,10 +42,22 @@
  */
 public class ResourcePool<T> {
     private final LinkedList<T> resources;
+    private final int size;
+    private final T prototype;
+
+    // only callers that had to wait are timed, the others just counted
+    private final LatencyHistogram waits = new LatencyHistogram();
+    private long immediate;
+    // the resources in use as seen by every caller taking one, including
+    // its own; no clock is read unless a caller has to wait
+    private long taken;
+    private long inUse;
 
     public ResourcePool(T[] resources) {
 	this.resources = new LinkedList<>();
 	Collections.addAll(this.resources, resources);
+	this.size = resources.length;
+	this.prototype = (resources.length > 0) ? resources[0] : null;
     }
 
     /**
@@ -54,16 +73,77 @@ public synchronized void release(T r) {
     }
 
     /**
-     * Obtain a resource from the pool.
+     * Obtain a resource from the pool, waiting as long as it takes. An
+     * interrupt doesn't end the wait, but is kept for the caller to see.
      *
      * @return A resource not held by any other caller
      * */
     public synchronized T get() {
+	if (!resources.isEmpty())
+	    return take(-1);
+	long start = System.nanoTime();
+	boolean interrupted = false;
 	while (resources.isEmpty()) {
 	    try {
 		wait();
-	    } catch (InterruptedException ignored) { }
+	    } catch (InterruptedException e) {
+		interrupted = true;
+	    }
+	}
+	if (interrupted)
+	    Thread.currentThread().interrupt();
+	return take(start);
+    }
+
+    /**
+     * Obtain a resource from the pool, waiting at most the given time.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return A resource not held by any other caller, or null if none
+     *         became available in time
+     * @throws InterruptedException interrupted while waiting
+     */
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException {
+	if (!resources.isEmpty())
+	    return take(-1);
+	long start = System.nanoTime();
+	long deadline = start + unit.toNanos(timeout);
+	while (resources.isEmpty()) {
+	    long left = deadline - System.nanoTime();
+	    if (left <= 0)
+		return null;
+	    try {
+		TimeUnit.NANOSECONDS.timedWait(this, left);
+	    } catch (InterruptedException e) {
+		// don't swallow a release meant for another caller
+		if (!resources.isEmpty())
+		    notify();
+		throw e;
+	    }
 	}
+	return take(start);
+    }
+
+    /**
+     * Obtain a resource from the pool, if one is available right away.
+     *
+     * @return A resource not held by any other caller, or null
+     */
+    public synchronized T tryGet() {
+	if (resources.isEmpty())
+	    return null;
+	return take(-1);
+    }
+
+    // start is when the caller started waiting, -1 if it didn't wait
+    private T take(long start) {
+	if (start < 0)
+	    immediate++;
+	else
+	    waits.record(System.nanoTime() - start);
+	taken++;
+	inUse += size - resources.size() + 1;
 	return resources.removeFirst();
     }
 
@@ -73,7 +153,58 @@ public synchronized T get() {
      * 
      * @return number of resources available
      */
-    public int getNumAvailable() {
+    public synchronized int getNumAvailable() {
 	return resources.size();
     }
+
+    /**
+     * @return the number of resources in the pool
+     */
+    public int getSize() {
+	return size;
+    }
+
+    /**
+     * Returns a resource of the pool to describe it by, e.g. in a log
+     * message. It may be in use by another caller at the same time, so it
+     * must not be used otherwise.
+     *
+     * @return the first resource the pool was created with
+     */
+    public T getPrototype() {
+	return prototype;
+    }
+
+    /**
+     * @return the time callers waited for a resource, when there was none
+     *         available right away
+     */
+    public LatencyHistogram getWaits() {
+	return waits;
+    }
+
+    /**
+     * @return the number of times a resource was available right away
+     */
+    public synchronized long getImmediate() {
+	return immediate;
+    }
+
+    /**
+     * Returns the average share of the resources in use, as seen by the
+     * callers each time they took one.
+     *
+     * @return the utilization, between 0 and 1
+     */
+    public synchronized double getUtilization() {
+	if (size == 0 || taken == 0)
+	    return 0;
+	return Math.min(1, inUse / ((double) size * taken));
+    }
+
+    @Override
+    public synchronized String toString() {
+	return "size[" + size + "] available[" + getNumAvailable() + "] utilization["
+		+ Math.round(getUtilization() * 100) + "%] immediate[" + getImmediate() + "] waits[" + waits + "]";
+    }
 }
@@ -19,12 +19,15 @@
 package nl.mpi.oai.harvester.harvesting;
 
 import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.ResumeDetails;
 import nl.mpi.oai.harvester.metadata.MetadataFactory;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.w3c.dom.NodeList;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Objects;
 
 /**
@@ -64,6 +67,12 @@ abstract public class AbstractListHarvesting extends AbstractHarvesting
     /** <br> pointer to next element to be parsed and returned */
     int tIndex;
 
+    /**
+     * <br> The single prefix and set combination to harvest, or null to
+     * harvest all of them
+     */
+    ResumeDetails.Partition partition = null;
+
     /**
      * <br> Associate list based harvesting with a provider
      * 
@@ -235,6 +244,35 @@ public int hashCode() {
         }
     }
 
+    /**
+     * <br> Restrict the harvesting to a single prefix and set combination,
+     * continuing from its resumption token if it has one. Should be only
+     * called right after creation. <br><br>
+     *
+     * When a request fails for good, the resumption token is kept in the
+     * partition instead of being persisted.
+     *
+     * @param partition the combination
+     */
+    public void setPartition(ResumeDetails.Partition partition) {
+        int set = 0;
+        if (partition.set != null) {
+            set = provider.sets == null ? -1 : Arrays.asList(provider.sets).indexOf(partition.set);
+        }
+        if (set < 0) {
+            throw new HarvestingException();
+        }
+        this.partition       = partition;
+        this.prefixes        = Collections.singletonList(partition.prefix);
+        this.pIndex          = 0;
+        this.sIndex          = set;
+        this.resumptionToken = partition.resumptionToken;
+    }
+
+    public ResumeDetails.Partition getPartition() {
+        return partition;
+    }
+
     /**
      * <br> Determine if a client scenario should make another request to the
      * endpoint. At first, iterate over the resumption tokens the endpoint
@@ -276,7 +314,10 @@ public boolean requestMore() {
             return true;
         } else {
             // no need to resume requesting within the current set and prefix
-            if (provider.sets == null) {
+            if (partition != null) {
+                // the only combination is done
+                return false;
+            } else if (provider.sets == null) {
                 pIndex++;
                 return pIndex != prefixes.size(); // done
             } else {
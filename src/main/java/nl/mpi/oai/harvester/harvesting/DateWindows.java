@@ -0,0 +1,100 @@
+package nl.mpi.oai.harvester.harvesting;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a range of datestamps into windows, for harvesting the windows of
+ * a huge endpoint independently via the from and until arguments.
+ * <p>
+ * The windows follow the granularity the endpoint declares in its Identify
+ * response: days, or seconds. Both bounds of a window are inclusive, as in
+ * the OAI-PMH protocol, so consecutive windows don't overlap.
+ */
+public class DateWindows {
+
+    /** Granularity of days. */
+    public static final String DAYS = "YYYY-MM-DD";
+
+    /** Granularity of seconds. */
+    public static final String SECONDS = "YYYY-MM-DDThh:mm:ssZ";
+
+    private final boolean seconds;
+
+    /**
+     * @param granularity the granularity of the endpoint, days if unknown
+     */
+    public DateWindows(String granularity) {
+        this.seconds = SECONDS.equals(granularity);
+    }
+
+    // the number of days or seconds since the epoch
+    private long toUnits(String datestamp) {
+        if (datestamp.length() == 10) {
+            long day = LocalDate.parse(datestamp).toEpochDay();
+            return seconds ? day * 86400 : day;
+        }
+        long second = Instant.parse(datestamp).getEpochSecond();
+        return seconds ? second : Math.floorDiv(second, 86400);
+    }
+
+    private String format(long units) {
+        if (seconds)
+            return Instant.ofEpochSecond(units).toString();
+        return LocalDate.ofEpochDay(units).toString();
+    }
+
+    /**
+     * Format a moment at the granularity.
+     *
+     * @param instant the moment
+     * @return the datestamp
+     */
+    public String format(Instant instant) {
+        return seconds ? format(instant.getEpochSecond())
+                : LocalDate.ofInstant(instant, ZoneOffset.UTC).toString();
+    }
+
+    /**
+     * Split a range into windows of (nearly) the same length.
+     *
+     * @param from the first datestamp of the range
+     * @param until the last datestamp of the range
+     * @param windows the number of windows, fewer if the range is shorter
+     * @return the from and until datestamps per window
+     * @throws java.time.format.DateTimeParseException a datestamp can't be parsed
+     */
+    public List<String[]> split(String from, String until, int windows) {
+        long a = toUnits(from);
+        long n = Math.max(1, toUnits(until) - a + 1);
+        long count = Math.max(1, Math.min(windows, n));
+        List<String[]> result = new ArrayList<>();
+        for (long i = 0; i < count; i++) {
+            result.add(new String[]{format(a + n * i / count), format(a + n * (i + 1) / count - 1)});
+        }
+        return result;
+    }
+
+    /**
+     * Split a window in two.
+     *
+     * @param from the first datestamp of the window
+     * @param until the last datestamp of the window
+     * @return the two halves, or null if the window is a single day or
+     *         second
+     */
+    public List<String[]> halve(String from, String until) {
+        long a = toUnits(from);
+        long b = toUnits(until);
+        if (b <= a)
+            return null;
+        long mid = a + (b - a) / 2;
+        List<String[]> result = new ArrayList<>();
+        result.add(new String[]{format(a), format(mid)});
+        result.add(new String[]{format(mid + 1), format(b)});
+        return result;
+    }
+}
@@ -35,6 +35,9 @@
 import javax.xml.xpath.XPathExpressionException;
 import java.io.IOException;
 import nl.mpi.oai.harvester.utils.DocumentSource;
+import nl.mpi.oai.harvester.utils.ExecutionSlots;
+
+import java.util.concurrent.TimeUnit;
 
 /**
  * <br> Format harvesting <br><br>
@@ -105,7 +108,7 @@ public boolean request() {
         for (;;) {
             try {
                 // get metadata formats from the endpoint
-                document = oaiFactory.createListMetadataFormats(provider.oaiUrl, provider.getTimeout());
+                document = oaiFactory.createListMetadataFormats(provider);
             } catch (IOException
                     | ParserConfigurationException
                     | SAXException
@@ -127,7 +130,7 @@ public boolean request() {
                     int retryDelay = provider.getRetryDelay(i-1);
                     if (retryDelay > 0) {
                         try {
-                            Thread.sleep(retryDelay*1000);
+                            ExecutionSlots.sleep(retryDelay, TimeUnit.SECONDS);
                         } catch (InterruptedException e) {
                             logger.error(e.getMessage(), e);
                         }
@@ -22,6 +22,8 @@
 import nl.mpi.oai.harvester.ResumeDetails;
 import nl.mpi.oai.harvester.metadata.MetadataFactory;
 import nl.mpi.oai.harvester.utils.DocumentSource;
+import nl.mpi.oai.harvester.utils.EnvelopeInfo;
+import nl.mpi.oai.harvester.utils.ExecutionSlots;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.xml.sax.SAXException;
@@ -35,6 +37,7 @@
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <br> A request method in a list based harvesting protocol <br><br>
@@ -60,6 +63,21 @@ public abstract class ListHarvesting extends AbstractListHarvesting implements
      * Messages specific to extending classes
      */
     final static String[] message = new String [3];
+
+    /**
+     * The resumption token of the last response is still to be found, see
+     * {@link #isTokenDeferred()}
+     */
+    private boolean tokenPending = false;
+
+    /**
+     * The request being made is the first of a date window that might be too
+     * large, see {@link #isStreamed()}
+     */
+    private boolean sizingWindow = false;
+
+    /** temp file for the responses, if not the one of the provider */
+    private Path temp = null;
     /**
      * Associate endpoint data and desired prefix
      * 
@@ -133,6 +151,23 @@ abstract DocumentSource verb5(String endpoint, String fromDate, String untilDate
             NoSuchFieldException,
             XMLStreamException;
 
+    /**
+     * Set the temp file to store the responses in, instead of the one of the
+     * provider. A response in the old file stays readable.
+     *
+     * @param temp the temp file
+     */
+    public void setTemp(Path temp) {
+        this.temp = temp;
+    }
+
+    /**
+     * @return the temp file to store the responses in
+     */
+    public Path getTemp() {
+        return temp != null ? temp : provider.temp;
+    }
+
     protected boolean paramCheck(String set){
         if(set == null){
             return provider.getSets() == null;
@@ -153,6 +188,55 @@ protected boolean paramCheck(String set){
     abstract String getToken () throws TransformerException,
             NoSuchFieldException;
 
+    /**
+     * Get the size of the complete list the last response is part of, as
+     * reported along with the resumption token.
+     *
+     * @return the number of records or identifiers, -1 if unknown
+     */
+    long getCompleteListSize() {
+        return -1;
+    }
+
+    /**
+     * Check if the token of the last response is only known once the response
+     * has been processed. This is the case when the response is streamed:
+     * the token sits at the end, so the actions processing the records pick
+     * it up on their way.
+     *
+     * @return true if the token should be resolved before requesting more
+     */
+    protected boolean isTokenDeferred() {
+        return false;
+    }
+
+    /**
+     * Check if the response to the request being made is to be streamed.
+     * The first response of a date window that might be too large isn't,
+     * even when streaming: its complete list size, which sits next to the
+     * resumption token at the end, is needed before any of it is processed.
+     *
+     * @return true if the response is to be streamed
+     */
+    protected boolean isStreamed() {
+        return provider.isStreaming() && !sizingWindow;
+    }
+
+    /**
+     * Get the token of a streamed response that the processing didn't pick up,
+     * by scanning the response for it.
+     *
+     * @return a string containing the token
+     */
+    protected String getDeferredToken() throws IOException,
+            ParserConfigurationException,
+            SAXException,
+            TransformerException,
+            NoSuchFieldException,
+            XMLStreamException {
+        return getToken();
+    }
+
     /**
      * Request metadata from the endpoint. Retry as often as the configuration
      * allows. A scenario should invoke the requestMore method to determine if
@@ -185,7 +269,11 @@ public boolean request() {
         String untilDate = null;
 
 
-        if(provider.shouldHarvestIncrementally()) {
+        if (partition != null && partition.from != null) {
+            // the window lies within the incremental range, if incremental
+            fromDate = partition.from;
+            untilDate = partition.until;
+        } else if(provider.shouldHarvestIncrementally()) {
             // According to spec the dates are inclusive <from, until>
             // Take only the data that existed on the day we started the harvest.
             // The guaranteed granularity is day; these introduce an overlap
@@ -194,6 +282,12 @@ public boolean request() {
             fromDate = provider.getLastSuccessfulHarvestDate();
         }
 
+        // the first request of a date window that might be too large
+        boolean firstOfWindow = partition != null && partition.from != null && !partition.oversized
+                && provider.getWindowMaxRecords() > 0
+                && (resumptionToken == null || resumptionToken.isEmpty());
+        sizingWindow = firstOfWindow;
+
         // number of requests attempted
         int i = 0;
         for (; ; ) {
@@ -220,12 +314,28 @@ public boolean request() {
                             prefixes.get(pIndex),
                             set,
                             provider.getTimeout(),
-                            provider.temp);
+                            getTemp());
+                }
+                if (document != null) {
+                    // a response to a resumption token doesn't echo the prefix
+                    document.getEnvelope().setPrefix(prefixes.get(pIndex));
                 }
 
                 // check if more records would be available
-                resumptionToken = getToken();
+                if (isTokenDeferred()) {
+                    tokenPending = true;
+                } else {
+                    resumptionToken = getToken();
+                }
                 provider.incRequestCount();
+                if (firstOfWindow && resumptionToken != null && !resumptionToken.isEmpty()
+                        && getCompleteListSize() > provider.getWindowMaxRecords()) {
+                    // split the window before processing any of it
+                    long size = getCompleteListSize();
+                    document.close();
+                    throw new WindowTooLargeException("window[" + partition.from + "/" + partition.until
+                            + "] has " + size + " records", size);
+                }
                 // the request completed successfully
                 logSuccessInfo(i);
                 return true;
@@ -245,6 +355,44 @@ public boolean request() {
         }
     }
 
+    /**
+     * Check if more records are available. If the token of the last response
+     * was deferred, it is resolved first, preferably from the envelope
+     * information collected while processing the response.
+     *
+     * @return true if more records are available
+     */
+    @Override
+    public boolean requestMore() {
+        if (tokenPending) {
+            tokenPending = false;
+            resumptionToken = resolveToken();
+        }
+        return super.requestMore();
+    }
+
+    private String resolveToken() {
+        EnvelopeInfo envelope = document.getEnvelope();
+        if (envelope.isComplete()) {
+            logger.debug("picked up " + envelope + " while processing the response");
+            return envelope.getResumptionToken();
+        }
+        try {
+            return getDeferredToken();
+        } catch (IOException
+                | ParserConfigurationException
+                | SAXException
+                | TransformerException
+                | NoSuchFieldException
+                | XMLStreamException e) {
+            logger.error("ListHarvesting[" + this + "][" + provider + "] couldn't find the resumption token in the response!");
+            logger.error(e.getMessage(), e);
+            // the current token still refers to the response, resume from there
+            saveResumeDetails();
+            throw new NoMoreRetriesException(String.format("Failed to read the response from %s", provider.oaiUrl));
+        }
+    }
+
     private void retry(int i){
         if (i == provider.maxRetryCount) {
             logMaxRetryCountReachedError();
@@ -258,7 +406,7 @@ private void retry(int i){
         int retryDelay = provider.getRetryDelay(i-1);
         if (retryDelay > 0) {
             try {
-                Thread.sleep(retryDelay*1000);
+                ExecutionSlots.sleep(retryDelay, TimeUnit.SECONDS);
             } catch (InterruptedException e) {
                 logger.error(e.getMessage(), e);
             }
@@ -290,6 +438,11 @@ private void logSuccessInfo(int i){
     }
 
     private void saveResumeDetails(){
+        if (partition != null) {
+            // the scenario keeps track of all the partitions
+            partition.resumptionToken = resumptionToken;
+            return;
+        }
         if(resumptionToken != null){
             final ResumeDetails r = new ResumeDetails();
             r.resumptionToken = resumptionToken;
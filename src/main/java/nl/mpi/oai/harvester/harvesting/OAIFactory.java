@@ -19,6 +19,7 @@
 package nl.mpi.oai.harvester.harvesting;
 
 import ORG.oclc.oai.harvester2.verb.*;
+import nl.mpi.oai.harvester.Provider;
 import nl.mpi.oai.harvester.utils.DocumentSource;
 import org.xml.sax.SAXException;
 
@@ -46,6 +47,12 @@ public class OAIFactory {
     // for some verbs, remember the resumption token
     private String resumptionToken = null;
 
+    // and the size of the complete list, -1 if unknown
+    private long completeListSize = -1;
+
+    // a streamed response of which the resumption token is yet to be found
+    private ListRecords pending = null;
+
     /**
      * <br> Connect an object that implements the OAI interface <br><br>
      * <p>
@@ -62,13 +69,37 @@ public OAIInterface connectInterface() {
         return oaiInterface;
     }
 
+    /**
+     * <br> Create a factory for another harvesting running at the same time
+     * <br><br>
+     * <p>
+     * The factory remembers the resumption token of the last response, so
+     * harvestings running in parallel each need their own. The new factory
+     * connects the same OAI interface object as this one.
+     *
+     * @return the new factory
+     */
+    public OAIFactory fork() {
+
+        final OAIFactory parent = this;
+        return new OAIFactory() {
+            @Override
+            public OAIInterface connectInterface() {
+                return parent.connectInterface();
+            }
+        };
+    }
+
     /**
      * <br> Create a list of metadata prefixes <br><br>
      *
-     * @param endpointURI the endpoint URI
+     * The response of the endpoint is shared by the action sequences of a
+     * run, and cached between runs, see {@link Provider#getMetadataFormats}.
+     *
+     * @param provider the endpoint
      * @return the OAI response
      */
-    DocumentSource createListMetadataFormats(String endpointURI, int timeout) throws 
+    DocumentSource createListMetadataFormats(Provider provider) throws 
             IOException,
             ParserConfigurationException,
             SAXException,
@@ -84,8 +115,8 @@ DocumentSource createListMetadataFormats(String endpointURI, int timeout) throws
         if (oaiInterface == null) {
             // no object connected
             try {
-                HarvesterVerb verb = new ListMetadataFormats(endpointURI, timeout);
-                response = verb.getDocumentSource();
+                response = new DocumentSource(provider.getOaiUrl(),
+                        provider.getMetadataFormats(provider.getTimeout()));
             } catch (IOException
                     | ParserConfigurationException
                     | SAXException
@@ -95,7 +126,7 @@ DocumentSource createListMetadataFormats(String endpointURI, int timeout) throws
             }
         } else {
             // let the object connected return the OAI response
-            response = oaiInterface.newListMetadata(endpointURI);
+            response = oaiInterface.newListMetadata(provider.getOaiUrl());
         }
 
         return response;
@@ -116,6 +147,29 @@ DocumentSource createListRecords(String endpoint, String resumptionToken, int ti
             NoSuchFieldException,
             XMLStreamException {
 
+        return createListRecords(endpoint, resumptionToken, timeout, temp, false);
+    }
+
+    /**
+     * <br> Create a list records object <br><br>
+     *
+     * When streaming, the resumption token is not looked up in the response
+     * right away, see {@link #resolveResumptionToken()}.
+     *
+     * @param endpoint the endpoint URI
+     * @param resumptionToken the resumption token
+     * @param streaming whether to stream the response
+     * @return the OAI response
+     */
+    DocumentSource createListRecords(String endpoint, String resumptionToken, int timeout, Path temp,
+                                     boolean streaming) throws
+            IOException,
+            ParserConfigurationException,
+            SAXException,
+            TransformerException,
+            NoSuchFieldException,
+            XMLStreamException {
+
         // the verb response
         DocumentSource response;
 
@@ -125,9 +179,9 @@ DocumentSource createListRecords(String endpoint, String resumptionToken, int ti
         if (oaiInterface == null) {
             // no object connected
             try {
-                HarvesterVerb verb = new ListRecords(endpoint, resumptionToken, timeout, temp);
+                HarvesterVerb verb = new ListRecords(endpoint, resumptionToken, timeout, temp, streaming);
                 response = verb.getDocumentSource();
-                this.resumptionToken = ((ListRecords) verb).getResumptionToken();
+                setResumptionToken((ListRecords) verb, streaming);
             } catch (IOException
                     | ParserConfigurationException
                     | SAXException
@@ -142,6 +196,7 @@ DocumentSource createListRecords(String endpoint, String resumptionToken, int ti
 
             response = oaiInterface.newListRecords(endpoint, resumptionToken);
             this.resumptionToken = oaiInterface.getResumptionToken();
+            pending = null;
         }
 
         return response;
@@ -166,6 +221,32 @@ DocumentSource createListRecords(String endpoint, String fromDate, String untilD
             NoSuchFieldException,
             XMLStreamException {
 
+        return createListRecords(endpoint, fromDate, untilDate, set, metadataPrefix, timeout, temp, false);
+    }
+
+    /**
+     * <br> Create a list records object <br><br>
+     *
+     * When streaming, the resumption token is not looked up in the response
+     * right away, see {@link #resolveResumptionToken()}.
+     *
+     * @param endpoint the endpoint URI
+     * @param fromDate the start of the date window on the records
+     * @param untilDate the end of the date window on the records
+     * @param set the set the records should be in
+     * @param metadataPrefix the metadata prefix the records should have
+     * @param streaming whether to stream the response
+     * @return the OAI response
+     */
+    DocumentSource createListRecords(String endpoint, String fromDate, String untilDate, String set,
+                               String metadataPrefix, int timeout, Path temp, boolean streaming) throws
+            IOException,
+            ParserConfigurationException,
+            SAXException,
+            TransformerException,
+            NoSuchFieldException,
+            XMLStreamException {
+
         // the verb response
         DocumentSource response;
 
@@ -175,9 +256,9 @@ DocumentSource createListRecords(String endpoint, String fromDate, String untilD
         if (oaiInterface == null) {
             // no object connected
             try {
-                HarvesterVerb verb = new ListRecords(endpoint, fromDate, untilDate, set, metadataPrefix, timeout, temp);
+                HarvesterVerb verb = new ListRecords(endpoint, fromDate, untilDate, set, metadataPrefix, timeout, temp, streaming);
                 response = verb.getDocumentSource();
-                resumptionToken = ((ListRecords) verb).getResumptionToken();
+                setResumptionToken((ListRecords) verb, streaming);
             } catch (IOException
                     | ParserConfigurationException
                     | SAXException
@@ -192,6 +273,7 @@ DocumentSource createListRecords(String endpoint, String fromDate, String untilD
 
             response = oaiInterface.newListRecords(endpoint, fromDate, untilDate, set, metadataPrefix);
             resumptionToken = oaiInterface.getResumptionToken();
+            pending = null;
         }
 
         return response;
@@ -346,4 +428,70 @@ public String getResumptionToken() {
         return resumptionToken;
 
     }
+
+    /**
+     * <br> Get the size of the complete list the last ListRecords response
+     * is part of <br><br>
+     *
+     * @return the completeListSize of the resumption token, -1 if unknown
+     */
+    public long getCompleteListSize() {
+
+        return completeListSize;
+    }
+
+    private void setResumptionToken(ListRecords verb, boolean streaming) throws
+            IOException,
+            ParserConfigurationException,
+            SAXException,
+            TransformerException,
+            NoSuchFieldException,
+            XMLStreamException {
+
+        if (streaming) {
+            // the token comes at the end, find it once the response is processed
+            pending = verb;
+            resumptionToken = null;
+            completeListSize = -1;
+        } else {
+            pending = null;
+            resumptionToken = verb.getResumptionToken();
+            completeListSize = verb.getCompleteListSize();
+        }
+    }
+
+    /**
+     * <br> Check if the resumption token of the last response still needs to
+     * be looked up <br><br>
+     *
+     * @return true if the last response was streamed
+     */
+    public boolean isResumptionTokenPending() {
+
+        return pending != null;
+    }
+
+    /**
+     * <br> Look up the resumption token of a streamed response <br><br>
+     *
+     * This reads the response up to the token, for the part that has already
+     * been processed from the spool, for the rest from the network.
+     *
+     * @return the resumption token
+     */
+    public String resolveResumptionToken() throws
+            IOException,
+            ParserConfigurationException,
+            SAXException,
+            TransformerException,
+            NoSuchFieldException,
+            XMLStreamException {
+
+        if (pending != null) {
+            resumptionToken = pending.getResumptionToken();
+            completeListSize = pending.getCompleteListSize();
+            pending = null;
+        }
+        return resumptionToken;
+    }
 }
@@ -41,9 +41,12 @@ public class OAIHelper {
      */
     static public String getPrefix (DocumentSource document){
         // metadata prefix
-        String prefix = null;
+        String prefix = document.getEnvelope().getPrefix();
 
-        if (document.hasDocument()) {
+        if (prefix != null) {
+            // known from the request, no need to look in the response
+            return prefix;
+        } else if (document.hasDocument()) {
             // node in the document
             Node node = null;
 
@@ -29,6 +29,9 @@
 import javax.xml.transform.TransformerException;
 import java.io.IOException;
 import nl.mpi.oai.harvester.utils.DocumentSource;
+import nl.mpi.oai.harvester.utils.ExecutionSlots;
+
+import java.util.concurrent.TimeUnit;
 
 /**
  * <br> Record harvesting <br><br>
@@ -111,7 +114,7 @@ public boolean request() {
                     int retryDelay = provider.getRetryDelay(i-1);
                     if (retryDelay > 0) {
                         try {
-                            Thread.sleep(retryDelay*1000);
+                            ExecutionSlots.sleep(retryDelay, TimeUnit.SECONDS);
                         } catch (InterruptedException e) {
                             logger.error(e.getMessage(), e);
                         }
@@ -102,7 +102,8 @@ public DocumentSource verb2(String metadataPrefix, String resumptionToken, int t
             NoSuchFieldException,
             XMLStreamException {
 
-        document = oaiFactory.createListRecords(metadataPrefix, resumptionToken, timeout, provider.temp);
+        document = oaiFactory.createListRecords(metadataPrefix, resumptionToken, timeout, getTemp(),
+                isStreamed());
 
         // implement by returning ListRecords with the two parameters supplied
         return document;
@@ -139,7 +140,8 @@ public DocumentSource verb5(String endpoint, String fromDate, String untilDate,
 
         assert paramCheck(set)  : String.format("%s is not in %s", set, Arrays.toString(provider.getSets() != null ? provider.getSets() : new String[]{}));
         // TODO refactor, half of the parameters are fields from instance var provider
-        document = oaiFactory.createListRecords(endpoint, fromDate, untilDate, set, metadataPrefix, timeout, temp);
+        document = oaiFactory.createListRecords(endpoint, fromDate, untilDate, set, metadataPrefix, timeout, temp,
+                isStreamed());
 
         // implement by returning ListRecords with the five parameters supplied
         return document;
@@ -164,6 +166,26 @@ public String getToken (){
         return oaiFactory.getResumptionToken();
     }
 
+    @Override
+    public long getCompleteListSize() {
+        return oaiFactory.getCompleteListSize();
+    }
+
+    @Override
+    protected boolean isTokenDeferred() {
+        return oaiFactory.isResumptionTokenPending();
+    }
+
+    @Override
+    protected String getDeferredToken() throws IOException,
+            ParserConfigurationException,
+            SAXException,
+            TransformerException,
+            NoSuchFieldException,
+            XMLStreamException {
+        return oaiFactory.resolveResumptionToken();
+    }
+
     /**
      * <br> Create a list of metadata elements from the response <br><br>
      *
@@ -0,0 +1,21 @@
+package nl.mpi.oai.harvester.harvesting;
+
+/**
+ * The first response of a date window reports more records than a window
+ * may hold, the window should be split before harvesting it.
+ */
+public final class WindowTooLargeException extends RuntimeException {
+    private final long size;
+
+    public WindowTooLargeException(String message, long size){
+        super(message);
+        this.size = size;
+    }
+
+    /**
+     * @return the number of records in the window
+     */
+    public long getSize() {
+        return size;
+    }
+}
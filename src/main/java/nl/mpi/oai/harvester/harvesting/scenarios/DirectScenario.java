@@ -1,8 +1,10 @@
 package nl.mpi.oai.harvester.harvesting.scenarios;
 
 import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.action.ActionPipeline;
 import nl.mpi.oai.harvester.action.ActionSequence;
 import nl.mpi.oai.harvester.harvesting.AbstractListHarvesting;
+import nl.mpi.oai.harvester.harvesting.ListHarvesting;
 import nl.mpi.oai.harvester.harvesting.OAIFactory;
 import nl.mpi.oai.harvester.harvesting.OAIHelper;
 import nl.mpi.oai.harvester.harvesting.RecordListHarvesting;
@@ -12,6 +14,7 @@
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
@@ -33,16 +36,38 @@ public class DirectScenario extends Scenario {
      */
     private boolean listRecords(AbstractListHarvesting harvesting) {
 
+        // a streamed response is still being read while it is processed
+        if ((provider.getPrefetch() > 0 || provider.getPipeline() > 0) && !provider.isStreaming()
+                && harvesting instanceof ListHarvesting) {
+            ActionPipeline pipeline = null;
+            if (provider.getPipeline() > 0) {
+                pipeline = new ActionPipeline(actionSequence, provider.getPipeline(),
+                        Thread.currentThread().getName(), providerLock());
+            }
+            PageFetcher fetcher = null;
+            try {
+                fetcher = new PageFetcher((ListHarvesting) harvesting, provider,
+                        Math.max(1, provider.getPrefetch()), pipeline == null ? 1 : pipeline.getCapacity() + 1);
+                return listRecords(fetcher, pipeline);
+            } catch (IOException e) {
+                logger.error("couldn't prepare fetching ahead, fetching one response at a time", e);
+            } finally {
+                // the pipeline might still read the temp files of the fetcher
+                if (pipeline != null)
+                    pipeline.close();
+                if (fetcher != null)
+                    fetcher.close();
+            }
+        }
+
         DocumentSource records;
+        boolean more;
 
         do {
+            Metadata metadata = null;
             try {
 
-                if (provider.isExclusive()) {
-                    exclusiveLock.writeLock().lock();
-                } else {
-                    exclusiveLock.readLock().lock();
-                }
+                lock();
 
                 //TODO cleanup - this should be true or it throws; at least with ListHarvesting
                 if (!harvesting.request()) {
@@ -55,35 +80,94 @@ private boolean listRecords(AbstractListHarvesting harvesting) {
                     } else {
                         String idSuffix = idGenerator.nextId();
 
-                        Metadata metadata = harvesting.getMetadataFactory().create(
+                        metadata = harvesting.getMetadataFactory().create(
                                 provider.getName() + "-" + idSuffix,
                                 OAIHelper.getPrefix(records),
                                 records, this.provider, true, true);
 
                         // apply the action sequence to the records
                         actionSequence.runActions(metadata);
-
-                        // cleanup
-                        metadata.close();
                     }
                 }
+            } catch (InterruptedException e) {
+                logger.error("interrupted while performing the actions");
+                Thread.currentThread().interrupt();
+                if (metadata != null)
+                    metadata.close();
+                return false;
+            } finally {
+                unlock();
+            }
+            try {
                 /* Check if in principle another response would be
-                   available.
+                   available. A streamed response might still be needed to
+                   find out, so only clean up afterwards.
                  */
+                more = harvesting.requestMore();
             } finally {
-                if (provider.isExclusive()) {
-                    exclusiveLock.writeLock().unlock();
-                } else {
-                    exclusiveLock.readLock().unlock();
-                }
+                if (metadata != null)
+                    metadata.close();
             }
-        } while (harvesting.requestMore());
+        } while (more);
 
         return true;
     }
 
 
 
+    /**
+     * <br>Get metadata records directly, while the next response is fetched
+     * in the background<br><br>
+     *
+     * @param fetcher the fetcher of the responses
+     * @param pipeline the pipeline to hand the responses to, or null to
+     *                 process them on this thread
+     * @return false on parser or input output error
+     */
+    private boolean listRecords(PageFetcher fetcher, ActionPipeline pipeline) {
+
+        DocumentSource records;
+
+        fetcher.start();
+        try {
+            while ((records = fetcher.next()) != null) {
+                if (pipeline != null) {
+                    pipeline.submit(fetcher.getMetadataFactory().create(
+                            provider.getName() + "-" + idGenerator.nextId(),
+                            OAIHelper.getPrefix(records),
+                            records, this.provider, true, true));
+                    continue;
+                }
+                Metadata metadata = null;
+                try {
+                    lock();
+
+                    String idSuffix = idGenerator.nextId();
+
+                    metadata = fetcher.getMetadataFactory().create(
+                            provider.getName() + "-" + idSuffix,
+                            OAIHelper.getPrefix(records),
+                            records, this.provider, true, true);
+
+                    // apply the action sequence to the records
+                    actionSequence.runActions(metadata);
+                } finally {
+                    unlock();
+                    if (metadata != null)
+                        metadata.close();
+                }
+            }
+            if (pipeline != null)
+                pipeline.finish();
+        } catch (InterruptedException e) {
+            logger.error("interrupted while waiting for the next response or an action");
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return fetcher.isSuccessful();
+    }
+
     @Override
     AbstractListHarvesting createHarvesting(List<String> prefixes, OAIFactory oaiFactory, MetadataFactory metadataFactory) {
         logger.debug("DirectScenario.createHarvesting3");
@@ -111,16 +195,24 @@ interface IdGenerator {
     private static class NumberIdGenerator implements IdGenerator {
         private int n = 0;
         @Override
-        public String nextId() {
+        public synchronized String nextId() {
             return String.format("%07d", n++);
         }
     }
     private static class TimestampIdGenerator implements IdGenerator{
-        private static final SimpleDateFormat TIMESTAMP = new SimpleDateFormat("yyyyMMddHHmmssSSS");
+        private final SimpleDateFormat timestamp = new SimpleDateFormat("yyyyMMddHHmmssSSS");
+        private String last = null;
+        private int repeat = 0;
 
+        // partitions harvested in parallel might ask for an id at the same time
         @Override
-        public String nextId() {
-            return TIMESTAMP.format(new Date());
+        public synchronized String nextId() {
+            String id = timestamp.format(new Date());
+            if (id.equals(last))
+                return id + "-" + (++repeat);
+            last = id;
+            repeat = 0;
+            return id;
         }
     }
 }
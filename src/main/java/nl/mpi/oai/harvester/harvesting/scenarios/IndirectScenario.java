@@ -1,6 +1,7 @@
 package nl.mpi.oai.harvester.harvesting.scenarios;
 
 import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.action.ActionPipeline;
 import nl.mpi.oai.harvester.action.ActionSequence;
 import nl.mpi.oai.harvester.harvesting.AbstractListHarvesting;
 import nl.mpi.oai.harvester.harvesting.IdentifierListHarvesting;
@@ -34,11 +35,7 @@ private boolean listIdentifiers(AbstractListHarvesting harvesting) {
         for (;;) {
             try {
 
-                if (provider.isExclusive()) {
-                    exclusiveLock.writeLock().lock();
-                } else {
-                    exclusiveLock.readLock().lock();
-                }
+                lock();
 
                 if (!harvesting.request()) {
                     return false;
@@ -62,11 +59,14 @@ private boolean listIdentifiers(AbstractListHarvesting harvesting) {
                     }
                 }
             } finally {
-                if (provider.isExclusive()) {
-                    exclusiveLock.writeLock().unlock();
-                } else {
-                    exclusiveLock.readLock().unlock();
-                }
+                unlock();
+            }
+        }
+
+        if (provider.getPipeline() > 0) {
+            try (ActionPipeline pipeline = new ActionPipeline(actionSequence, provider.getPipeline(),
+                    Thread.currentThread().getName(), providerLock())) {
+                return getRecords(harvesting, pipeline);
             }
         }
 
@@ -76,11 +76,7 @@ private boolean listIdentifiers(AbstractListHarvesting harvesting) {
         while(!harvesting.fullyParsed()) {
             try {
 
-                if (provider.isExclusive()) {
-                    exclusiveLock.writeLock().lock();
-                } else {
-                    exclusiveLock.readLock().lock();
-                }
+                lock();
 
                 Metadata record = (Metadata) harvesting.parseResponse();
 
@@ -92,18 +88,50 @@ private boolean listIdentifiers(AbstractListHarvesting harvesting) {
                     record.close();
                 }
 
+            } catch (InterruptedException e) {
+                logger.error("interrupted while performing the actions");
+                Thread.currentThread().interrupt();
+                return false;
             } finally {
-                if (provider.isExclusive()) {
-                    exclusiveLock.writeLock().unlock();
-                } else {
-                    exclusiveLock.readLock().unlock();
-                }
+                unlock();
             }
         }
 
         return true;
     }
 
+    /**
+     * Get the records the identifiers point to, and hand them to the
+     * pipeline, which performs the actions while the next record is fetched.
+     *
+     * @param harvesting harvester
+     * @param pipeline the action pipeline
+     * @return false if interrupted
+     */
+    private boolean getRecords(AbstractListHarvesting harvesting, ActionPipeline pipeline) {
+        try {
+            while (!harvesting.fullyParsed()) {
+                Metadata record;
+                // the pipeline takes the lock itself, never wait for it while holding the lock
+                lock();
+                try {
+                    record = (Metadata) harvesting.parseResponse();
+                } finally {
+                    unlock();
+                }
+                // a record that couldn't be fetched is skipped
+                if (record != null)
+                    pipeline.submit(record);
+            }
+            pipeline.finish();
+        } catch (InterruptedException e) {
+            logger.error("interrupted while handing over the records");
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
     @Override
     AbstractListHarvesting createHarvesting(List<String> prefixes, OAIFactory oaiFactory, MetadataFactory metadataFactory) {
         logger.debug("IndirectScenario.createHarvesting3");
@@ -111,6 +139,12 @@ AbstractListHarvesting createHarvesting(List<String> prefixes, OAIFactory oaiFac
                 provider, prefixes, metadataFactory);
     }
 
+    @Override
+    boolean isResumable() {
+        // the identifiers listed before the failure are lost, see ResumeScenario
+        return false;
+    }
+
     @Override
     boolean doGetRecords(AbstractListHarvesting harvesting){
         logger.debug("IndirectScenario.doGetRecords1");
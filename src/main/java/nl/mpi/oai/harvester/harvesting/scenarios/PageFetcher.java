@@ -0,0 +1,210 @@
+package nl.mpi.oai.harvester.harvesting.scenarios;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.harvesting.ListHarvesting;
+import nl.mpi.oai.harvester.metadata.MetadataFactory;
+import nl.mpi.oai.harvester.utils.DocumentSource;
+import nl.mpi.oai.harvester.utils.ExecutionSlots;
+import nl.mpi.oai.harvester.utils.Threads;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * <br>Fetches the responses of a list harvest ahead of their processing<br><br>
+ *
+ * A background thread runs the request/requestMore loop of the harvesting and
+ * hands the responses over via a bounded queue, so the next response is
+ * fetched while the action sequence works on the current one. The retries
+ * and resume details of the harvesting apply as usual; if the fetching fails
+ * the responses fetched before are still handed out, after that the failure
+ * is rethrown to the processing thread.
+ *
+ * Every response gets its own temp file, rotating over as many as can be in
+ * use at the same time: the queued ones, the ones being processed and the one
+ * being fetched. How many responses are fetched ahead is bounded by the window
+ * of the provider's {@link nl.mpi.oai.harvester.utils.PaceController}, which
+ * shrinks when the endpoint shows signs of overload.
+ */
+class PageFetcher implements Runnable, AutoCloseable {
+
+    private static final Logger logger = LogManager.getLogger(PageFetcher.class);
+
+    // marks the end of the responses
+    private static final DocumentSource END = new DocumentSource((InputStream) null);
+
+    private final ListHarvesting harvesting;
+    private final Provider provider;
+    private final BlockingQueue<DocumentSource> queue;
+    private final int depth;
+    private final Path[] temps;
+    // the temp file of the harvesting before the fetcher rotated its own
+    private final Path temp;
+    private final Map<String, String> context;
+    private final Thread thread;
+
+    private volatile boolean successful = true;
+    private volatile RuntimeException failure = null;
+
+    /**
+     * @param harvesting the harvesting to request the responses from
+     * @param provider the provider harvested
+     * @param depth the number of responses to fetch ahead
+     * @throws IOException the temp files couldn't be created
+     */
+    PageFetcher(ListHarvesting harvesting, Provider provider, int depth) throws IOException {
+        this(harvesting, provider, depth, 1);
+    }
+
+    /**
+     * @param harvesting the harvesting to request the responses from
+     * @param provider the provider harvested
+     * @param depth the number of responses to fetch ahead
+     * @param processing the number of responses that can be processed at the
+     *                   same time, i.e. handed out but not closed yet
+     * @throws IOException the temp files couldn't be created
+     */
+    PageFetcher(ListHarvesting harvesting, Provider provider, int depth, int processing) throws IOException {
+        this.harvesting = harvesting;
+        this.provider = provider;
+        this.queue = new ArrayBlockingQueue<>(depth);
+        this.depth = depth;
+        this.temp = harvesting.getTemp();
+        this.temps = new Path[depth + 1 + processing];
+        for (int i = 0; i < temps.length; i++) {
+            temps[i] = provider.newTemp();
+        }
+        this.context = ThreadContext.getImmutableContext();
+        this.thread = Threads.newThread(this, Thread.currentThread().getName() + "-prefetch");
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    private Lock lock() {
+        return provider.isExclusive() ? Scenario.exclusiveLock.writeLock() : Scenario.exclusiveLock.readLock();
+    }
+
+    @Override
+    public void run() {
+        ThreadContext.putAll(context);
+        int n = 0;
+        try {
+            boolean more;
+            do {
+                synchronized (queue) {
+                    while (queue.size() >= provider.getPace().getWindow(depth)) {
+                        queue.wait();
+                    }
+                }
+                harvesting.setTemp(temps[n++ % temps.length]);
+                DocumentSource response = null;
+                // never wait for the queue while holding the lock
+                ExecutionSlots.lock(lock());
+                try {
+                    if (harvesting.request()) {
+                        response = harvesting.getResponse();
+                    }
+                } finally {
+                    ExecutionSlots.unlock(lock());
+                }
+                if (response == null) {
+                    successful = false;
+                    break;
+                }
+                queue.put(response);
+                logger.debug("fetched response[" + n + "] ahead, " + queue.size() + " waiting");
+                more = harvesting.requestMore();
+            } while (more);
+        } catch (InterruptedException e) {
+            // the processing has been abandoned
+            return;
+        } catch (RuntimeException e) {
+            failure = e;
+        } catch (Error e) {
+            failure = new RuntimeException(e);
+        }
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            logger.debug("abandoned while finishing the fetching");
+        }
+    }
+
+    /**
+     * Get the next response, waiting for it to be fetched if needed.
+     *
+     * @return the next response, or null if there are no more
+     * @throws InterruptedException interrupted while waiting
+     */
+    DocumentSource next() throws InterruptedException {
+        DocumentSource response = queue.take();
+        synchronized (queue) {
+            queue.notifyAll();
+        }
+        if (response == END) {
+            queue.put(END);
+            thread.join();
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+        return response;
+    }
+
+    MetadataFactory getMetadataFactory() {
+        return harvesting.getMetadataFactory();
+    }
+
+    /**
+     * @return false if a request failed without an exception
+     */
+    boolean isSuccessful() {
+        return successful;
+    }
+
+    /**
+     * Stop fetching and give back the temp files. The responses handed out
+     * must not be read anymore.
+     */
+    @Override
+    public void close() {
+        // the retry delays might swallow an interrupt, so keep at it
+        while (thread.isAlive()) {
+            thread.interrupt();
+            drain();
+            try {
+                thread.join(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        drain();
+        // a fetch still going might write to them, the provider deletes them
+        if (thread.isAlive())
+            return;
+        harvesting.setTemp(temp);
+        for (Path t : temps)
+            provider.releaseTemp(t);
+    }
+
+    private void drain() {
+        DocumentSource response;
+        while ((response = queue.poll()) != null) {
+            if (response != END) {
+                response.close();
+            }
+        }
+    }
+}
@@ -45,6 +45,23 @@ AbstractListHarvesting createHarvesting(List<String> prefixes, OAIFactory oaiFac
         return harvesting;
     }
 
+    @Override
+    AbstractListHarvesting createPartitionHarvesting(List<String> prefixes, OAIFactory oaiFactory,
+                                                      MetadataFactory metadataFactory) {
+        // the partition carries its own resume state
+        return scenario.createHarvesting(prefixes, oaiFactory, metadataFactory);
+    }
+
+    @Override
+    boolean isPartitionable() {
+        return scenario.isPartitionable();
+    }
+
+    @Override
+    boolean isResumable() {
+        return scenario.isResumable();
+    }
+
     @Override
     boolean doGetRecords(AbstractListHarvesting harvesting) {
         logger.debug("ResumeScenario.doGetRecords1");
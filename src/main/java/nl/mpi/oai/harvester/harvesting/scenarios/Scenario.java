@@ -19,17 +19,38 @@
 package nl.mpi.oai.harvester.harvesting.scenarios;
 
 import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.ResumeDetails;
 import nl.mpi.oai.harvester.action.ActionSequence;
 import nl.mpi.oai.harvester.harvesting.AbstractListHarvesting;
+import nl.mpi.oai.harvester.harvesting.DateWindows;
 import nl.mpi.oai.harvester.harvesting.FormatHarvesting;
+import nl.mpi.oai.harvester.harvesting.ListHarvesting;
 import nl.mpi.oai.harvester.harvesting.OAIFactory;
+import nl.mpi.oai.harvester.harvesting.WindowTooLargeException;
 import nl.mpi.oai.harvester.metadata.MetadataFactory;
 import nl.mpi.oai.harvester.utils.DocumentSource;
+import nl.mpi.oai.harvester.utils.ExecutionSlots;
+import nl.mpi.oai.harvester.utils.Threads;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -51,11 +72,34 @@ public abstract class Scenario {
     //
     static final ReadWriteLock exclusiveLock = new ReentrantReadWriteLock(true);
 
+    // tells a partition thread that no partitions are left
+    private static final ResumeDetails.Partition END = new ResumeDetails.Partition();
+
     Scenario (Provider provider, ActionSequence actionSequence) {
         this.provider = provider;
         this.actionSequence = actionSequence;
     }
 
+    /**
+     * @return the exclusive lock for the provider, the write lock if it is
+     *         to be harvested on its own, else the read lock
+     */
+    Lock providerLock() {
+        return provider.isExclusive() ? exclusiveLock.writeLock() : exclusiveLock.readLock();
+    }
+
+    /**
+     * Take the lock of the provider, without holding on to the execution
+     * slot while waiting for it, see {@link ExecutionSlots#lock(Lock)}.
+     */
+    void lock() {
+        ExecutionSlots.lock(providerLock());
+    }
+
+    void unlock() {
+        ExecutionSlots.unlock(providerLock());
+    }
+
     /**
      * <br>Get the list of metadata prefixes supported by the endpoint<br><br>
      *
@@ -125,8 +169,16 @@ public final boolean getRecords(OAIFactory oaiFactory, MetadataFactory metadataF
             return false;
         }
 
-        AbstractListHarvesting harvesting = createHarvesting(prefixes, oaiFactory, metadataFactory);
-        boolean done = doGetRecords(harvesting);
+        boolean done;
+        ResumeDetails resume = provider.getResumeDetails();
+        int combinations = prefixes.size() * (provider.sets == null ? 1 : provider.sets.length);
+        if (isPartitionable() && ((provider.getPartitions() > 1 && combinations > 1)
+                || provider.getDateWindows() > 0 || (resume != null && resume.partitions != null))) {
+            done = getPartitionedRecords(prefixes, oaiFactory, metadataFactory);
+        } else {
+            AbstractListHarvesting harvesting = createHarvesting(prefixes, oaiFactory, metadataFactory);
+            done = doGetRecords(harvesting);
+        }
 
         if(provider.getIncremental()) {
             logger.warn("Synchronization of deleted records will currently only work with providers having PERSISTENT" +
@@ -139,6 +191,287 @@ public final boolean getRecords(OAIFactory oaiFactory, MetadataFactory metadataF
 
     }
 
+    /**
+     * <br>Harvest the (prefix, set) combinations independently, up to the
+     * partitions setting of the provider at the same time<br><br>
+     *
+     * With date windows every combination is split further into windows of
+     * datestamps. A window reporting more records than allowed in its first
+     * response is split in two before any of it is processed.
+     *
+     * Every combination keeps its own resume state. If a combination fails
+     * the others still go on, and afterwards the state of all of them is
+     * persisted, so a next run only harvests the combinations not done yet.
+     *
+     * @param prefixes the prefixes supported by the endpoint
+     * @param oaiFactory the OAI factory
+     * @param metadataFactory the metadata factory
+     * @return true if all combinations are done
+     */
+    private boolean getPartitionedRecords(List<String> prefixes, OAIFactory oaiFactory,
+                                          MetadataFactory metadataFactory) {
+        ResumeDetails resume = provider.getResumeDetails();
+        String[] datestamps = null;
+        if (provider.getDateWindows() > 0 && resume == null) {
+            datestamps = getDatestamps();
+            if (datestamps == null)
+                logger.warn("no earliest datestamp known, harvesting without date windows");
+        }
+        final ResumeDetails details = getPartitions(prefixes, resume, datestamps);
+        final BlockingQueue<ResumeDetails.Partition> todo = new LinkedBlockingQueue<>();
+        for (ResumeDetails.Partition partition : details.partitions) {
+            if (!partition.done)
+                todo.add(partition);
+        }
+        // windows split further make more work to share
+        int parallel = Math.max(1, provider.getWindowMaxRecords() > 0 ? provider.getPartitions()
+                : Math.min(provider.getPartitions(), todo.size()));
+        logger.info("harvesting " + todo.size() + " of " + details.partitions.size()
+                + " partitions, " + parallel + " at a time");
+
+        final Map<String, String> context = ThreadContext.getImmutableContext();
+        final AtomicBoolean complete = new AtomicBoolean(true);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        // the partitions queued or being harvested, once none are left every
+        // thread gets an END to stop at
+        final AtomicInteger remaining = new AtomicInteger(todo.size());
+        if (remaining.get() == 0)
+            todo.addAll(Collections.nCopies(parallel, END));
+        Runnable work = () -> {
+            for (;;) {
+                ResumeDetails.Partition partition;
+                try {
+                    // another thread might still split its window
+                    partition = todo.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (partition == END)
+                    return;
+                try {
+                    if (harvestPartition(partition, oaiFactory, metadataFactory)) {
+                        partition.done = true;
+                    } else {
+                        complete.set(false);
+                    }
+                } catch (WindowTooLargeException e) {
+                    List<ResumeDetails.Partition> halves = split(details, partition);
+                    logger.info("partition[" + partition + "] has " + e.getSize() + " records, "
+                            + (halves.isEmpty() ? "it can't be split any further" : "splitting it"));
+                    remaining.addAndGet(halves.size());
+                    if (halves.isEmpty()) {
+                        partition.oversized = true;
+                        remaining.incrementAndGet();
+                        todo.add(partition);
+                    } else {
+                        todo.addAll(halves);
+                    }
+                } catch (RuntimeException e) {
+                    logger.error("partition[" + partition + "] failed: " + e.getMessage(), e);
+                    failure.compareAndSet(null, e);
+                    complete.set(false);
+                }
+                if (remaining.decrementAndGet() == 0)
+                    todo.addAll(Collections.nCopies(parallel, END));
+            }
+        };
+        if (parallel == 1) {
+            work.run();
+        } else {
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < parallel; i++) {
+                Thread thread = Threads.newThread(() -> {
+                    ThreadContext.putAll(context);
+                    try {
+                        work.run();
+                    } finally {
+                        ThreadContext.clearAll();
+                    }
+                }, Thread.currentThread().getName() + "-partition-" + i);
+                threads.add(thread);
+                thread.start();
+            }
+            try {
+                for (Thread thread : threads)
+                    thread.join();
+            } catch (InterruptedException e) {
+                logger.error("interrupted while harvesting the partitions");
+                todo.clear();
+                threads.forEach(Thread::interrupt);
+                Thread.currentThread().interrupt();
+                complete.set(false);
+            }
+        }
+
+        if (!complete.get()) {
+            // resume the unfinished combinations in the next run
+            details.persist(provider.getResumeTokensPath());
+        }
+        if (failure.get() != null)
+            throw failure.get();
+        return complete.get();
+    }
+
+    /**
+     * @return the earliest datestamp and the granularity of the endpoint,
+     *         or null if unknown
+     */
+    String[] getDatestamps() {
+        return provider.getProviderDatestamps();
+    }
+
+    /**
+     * Replace a date window by its two halves.
+     *
+     * @return the halves, or none if the window can't be split
+     */
+    private List<ResumeDetails.Partition> split(ResumeDetails details, ResumeDetails.Partition partition) {
+        List<ResumeDetails.Partition> halves = new ArrayList<>();
+        DateWindows windows = new DateWindows(partition.from.length() > 10 ? DateWindows.SECONDS : DateWindows.DAYS);
+        List<String[]> split = windows.halve(partition.from, partition.until);
+        if (split == null)
+            return halves;
+        for (String[] window : split)
+            halves.add(new ResumeDetails.Partition(partition, window[0], window[1]));
+        synchronized (details) {
+            int i = details.partitions.indexOf(partition);
+            details.partitions.remove(i);
+            details.partitions.addAll(i, halves);
+        }
+        return halves;
+    }
+
+    private boolean harvestPartition(ResumeDetails.Partition partition, OAIFactory oaiFactory,
+                                     MetadataFactory metadataFactory) {
+        logger.info("harvesting partition[" + partition + "]"
+                + (partition.resumptionToken == null ? "" : " from token[" + partition.resumptionToken + "]"));
+        // the factory keeps the resumption token, so every partition needs its own
+        AbstractListHarvesting harvesting = createPartitionHarvesting(
+                Collections.singletonList(partition.prefix), oaiFactory.fork(), metadataFactory);
+        harvesting.setPartition(partition);
+        Path temp = null;
+        if (harvesting instanceof ListHarvesting) {
+            // the partitions can't share the temp file of the provider
+            try {
+                temp = provider.newTemp();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            ((ListHarvesting) harvesting).setTemp(temp);
+        }
+        try {
+            return doGetRecords(harvesting);
+        } finally {
+            // a window split over and over would pile up mapped files
+            if (temp != null)
+                provider.releaseTemp(temp);
+        }
+    }
+
+    /**
+     * Get the (prefix, set) combinations to harvest. These come from the
+     * resume details if an earlier harvest didn't finish, otherwise every
+     * combination is still to be done.
+     *
+     * @param prefixes the prefixes supported by the endpoint
+     * @param resume the resume details of the earlier harvest, or null
+     * @param datestamps the earliest datestamp and granularity of the
+     *                   endpoint to split the combinations into date
+     *                   windows, or null
+     * @return the resume details with the combinations
+     */
+    ResumeDetails getPartitions(List<String> prefixes, ResumeDetails resume, String[] datestamps) {
+        List<String> sets = provider.sets == null ? null : Arrays.asList(provider.sets);
+        if (resume != null && resume.partitions != null) {
+            List<ResumeDetails.Partition> partitions = new ArrayList<>();
+            for (ResumeDetails.Partition partition : resume.partitions) {
+                if (partition.set == null ? sets != null : sets == null || !sets.contains(partition.set)) {
+                    logger.warn("partition[" + partition + "] is no longer configured, skipping it");
+                    continue;
+                }
+                if (!isResumable())
+                    partition.resumptionToken = null;
+                partitions.add(partition);
+            }
+            resume.partitions = partitions;
+            return resume;
+        }
+
+        ResumeDetails details = new ResumeDetails();
+        details.prefixes = prefixes;
+        details.partitions = new ArrayList<>();
+        for (int p = 0; p < prefixes.size(); p++) {
+            for (int s = 0; s < (sets == null ? 1 : sets.size()); s++) {
+                ResumeDetails.Partition partition = new ResumeDetails.Partition(prefixes.get(p),
+                        sets == null ? null : sets.get(s));
+                if (resume != null && resume.prefixes != null) {
+                    // continue from an earlier harvest of all combinations in turn
+                    int earlier = resume.prefixes.indexOf(prefixes.get(p));
+                    if (earlier >= 0 && (earlier < resume.pIndex || (earlier == resume.pIndex && s < resume.sIndex))) {
+                        partition.done = true;
+                    } else if (earlier == resume.pIndex && s == resume.sIndex && isResumable()) {
+                        partition.resumptionToken = resume.resumptionToken;
+                    }
+                }
+                details.partitions.add(partition);
+            }
+        }
+        if (datestamps != null) {
+            details.partitions = getWindows(details.partitions, datestamps[0], datestamps[1]);
+        }
+        return details;
+    }
+
+    private List<ResumeDetails.Partition> getWindows(List<ResumeDetails.Partition> partitions,
+                                                     String earliest, String granularity) {
+        DateWindows windows = new DateWindows(granularity);
+        String from = earliest;
+        String until = DateWindows.SECONDS.equals(granularity) ? windows.format(Instant.now())
+                : provider.getCurrentDate();
+        if (provider.shouldHarvestIncrementally()) {
+            from = provider.getLastSuccessfulHarvestDate();
+        }
+        List<String[]> split;
+        try {
+            split = windows.split(from, until, provider.getDateWindows());
+        } catch (DateTimeParseException e) {
+            logger.warn("can't split [" + from + "/" + until + "] into date windows: " + e.getMessage());
+            return partitions;
+        }
+        logger.info("split [" + from + "/" + until + "] into " + split.size() + " date windows");
+        List<ResumeDetails.Partition> result = new ArrayList<>();
+        for (ResumeDetails.Partition partition : partitions) {
+            for (String[] window : split)
+                result.add(new ResumeDetails.Partition(partition, window[0], window[1]));
+        }
+        return result;
+    }
+
+    /**
+     * @return false if the records are harvested from a single response, so
+     *         there is nothing to partition
+     */
+    boolean isPartitionable() {
+        return true;
+    }
+
+    /**
+     * @return true if a partition can continue from its resumption token
+     */
+    boolean isResumable() {
+        return true;
+    }
+
+    /**
+     * Create the harvesting of a single partition, which is set up by the
+     * caller.
+     */
+    AbstractListHarvesting createPartitionHarvesting(List<String> prefixes, OAIFactory oaiFactory,
+                                                      MetadataFactory metadataFactory) {
+        return createHarvesting(prefixes, oaiFactory, metadataFactory);
+    }
+
     abstract AbstractListHarvesting createHarvesting(List<String> prefixes, OAIFactory oaiFactory, MetadataFactory metadataFactory);
     abstract boolean doGetRecords(AbstractListHarvesting harvesting);
 }
@@ -43,6 +43,12 @@ AbstractListHarvesting createHarvesting(List<String> prefixes, OAIFactory oaiFac
                 (StaticProvider) provider, prefixes, metadataFactory);
     }
 
+    @Override
+    boolean isPartitionable() {
+        // the records all come from the single static repository file
+        return false;
+    }
+
     @Override
     boolean doGetRecords(AbstractListHarvesting harvesting){
         logger.debug("StaticScenario.doGetRecords1");
@@ -18,14 +18,18 @@
 
 package nl.mpi.oai.harvester.metadata;
 
+import net.sf.saxon.s9api.XdmNode;
 import nl.mpi.oai.harvester.Provider;
 import nl.mpi.oai.harvester.utils.DocumentSource;
+import nl.mpi.oai.harvester.utils.EnvelopeInfo;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 
 /**
  * Metadata container <br><br>
@@ -126,6 +130,16 @@ public void setDoc(Document doc) {
         docSrc.setDocument(doc);
     }
 
+    /**
+     * Modify the Saxon tree representation of this record in a way that does
+     * not change its identity.
+     * 
+     * @param node modified content of this record
+     */
+    public void setNode(XdmNode node) {
+        docSrc.setNode(node);
+    }
+
     /**
      * Modify the XML stream representation of this record in a way that does
      * not change its identity.
@@ -160,6 +174,23 @@ public boolean hasDoc() {
 	return docSrc.hasDocument();
     }
 
+    /** 
+     * Is there a Saxon tree representing this record? If so, there is also
+     * an XML tree, which is made from it when it is asked for.
+     * @return the answer to this question
+     */
+    public boolean hasNode() {
+	return docSrc.hasNode();
+    }
+
+    /** 
+     * Get the Saxon tree representing this record. 
+     * @return the Saxon tree, or null if there is none
+     */
+    public XdmNode getNode() {
+	return docSrc.getNode();
+    }
+
     /** 
      * Get the XML tree representing this record. 
      * @return the XML tree
@@ -192,6 +223,10 @@ public InputSource getSource() {
 	return docSrc.getSource();
     }
 
+    public EnvelopeInfo getEnvelope() {
+        return docSrc.getEnvelope();
+    }
+
     /** 
      * Get the provider from which this record was harvested. 
      * @return the provider
@@ -200,6 +235,22 @@ public Provider getOrigin() {
         return origin;
     }
 
+    /**
+     * Create an independent copy of this record, with the same identity, that
+     * can be processed at the same time as this record. The bytes of a
+     * stream are shared, not copied.
+     *
+     * @return the copy
+     * @throws UncheckedIOException the stream couldn't be read
+     */
+    public Metadata copy() {
+        try {
+            return new Metadata(id, prefix, docSrc.copy(), origin, true, true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     /**
      * Close the underlying streams
      */
@@ -0,0 +1,126 @@
+package nl.mpi.oai.harvester.utils;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A stream over one or more byte buffers, read one after the other. The
+ * buffers aren't copied, so this is a view on e.g. a part of a response.
+ * The stream is marked at its start, so it can be reset and read again, and
+ * a reader of its own can be had for the same bytes.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer[] buffers;
+    private final int[] start;
+    private int current = 0;
+
+    private int markBuffer = 0;
+    private int[] markPositions;
+
+    /**
+     * @param buffers the buffers, from their positions up to their limits;
+     *                they are not changed
+     */
+    public ByteBufferInputStream(ByteBuffer... buffers) {
+        this.buffers = new ByteBuffer[buffers.length];
+        this.start = new int[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            this.buffers[i] = buffers[i].duplicate();
+            this.start[i] = buffers[i].position();
+        }
+        this.markPositions = start;
+    }
+
+    /**
+     * @return a stream of its own over the same bytes, from the start
+     */
+    public ByteBufferInputStream newReader() {
+        ByteBuffer[] copies = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            copies[i] = buffers[i].duplicate();
+            copies[i].position(start[i]);
+        }
+        return new ByteBufferInputStream(copies);
+    }
+
+    /**
+     * @return the bytes left to read as a single buffer, if they are in one,
+     *         else null; reading it doesn't move this stream
+     */
+    public ByteBuffer asBuffer() {
+        int i = current;
+        while (i < buffers.length - 1 && !buffers[i].hasRemaining())
+            i++;
+        for (int j = i + 1; j < buffers.length; j++) {
+            if (buffers[j].hasRemaining())
+                return null;
+        }
+        return buffers.length == 0 ? ByteBuffer.allocate(0) : buffers[i].duplicate();
+    }
+
+    @Override
+    public int read() {
+        while (current < buffers.length) {
+            if (buffers[current].hasRemaining())
+                return buffers[current].get() & 0xFF;
+            current++;
+        }
+        return -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0)
+            return 0;
+        while (current < buffers.length && !buffers[current].hasRemaining())
+            current++;
+        if (current == buffers.length)
+            return -1;
+        int n = Math.min(len, buffers[current].remaining());
+        buffers[current].get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = 0;
+        while (skipped < n && current < buffers.length) {
+            ByteBuffer buffer = buffers[current];
+            int step = (int) Math.min(n - skipped, buffer.remaining());
+            buffer.position(buffer.position() + step);
+            skipped += step;
+            if (!buffer.hasRemaining())
+                current++;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        long n = 0;
+        for (int i = current; i < buffers.length; i++)
+            n += buffers[i].remaining();
+        return (int) Math.min(Integer.MAX_VALUE, n);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        markBuffer = current;
+        markPositions = new int[buffers.length];
+        for (int i = 0; i < buffers.length; i++)
+            markPositions[i] = buffers[i].position();
+    }
+
+    @Override
+    public synchronized void reset() {
+        current = markBuffer;
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i].position(markPositions[i]);
+    }
+}
@@ -0,0 +1,84 @@
+package nl.mpi.oai.harvester.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.xml.bind.JAXB;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A response kept between runs, with the validators the server sent along
+ * so the next run can ask whether it is still up to date.
+ */
+@XmlRootElement
+public class CachedResponse {
+    private static final Logger logger = LogManager.getLogger(CachedResponse.class);
+
+    public String url;
+    /** the ETag header, null if the server sent none */
+    public String etag;
+    /** the Last-Modified header, null if the server sent none */
+    public String lastModified;
+    /** the raw bytes of the response, base64 encoded */
+    public String body;
+    /** when the response was requested or last found not modified */
+    public long fetched;
+
+    public CachedResponse() {
+    }
+
+    public CachedResponse(String url, String etag, String lastModified, byte[] body) {
+        this.url = url;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.body = Base64.getEncoder().encodeToString(body);
+        this.fetched = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the raw bytes of the response
+     */
+    public byte[] getBytes() {
+        return Base64.getDecoder().decode(body);
+    }
+
+    /**
+     * @return the headers making a request for the URL conditional, empty
+     *         if the server sent no validators
+     */
+    public Map<String, String> getConditionalHeaders() {
+        Map<String, String> headers = new HashMap<>();
+        if (etag != null)
+            headers.put("If-None-Match", etag);
+        if (lastModified != null)
+            headers.put("If-Modified-Since", lastModified);
+        return headers;
+    }
+
+    public static Optional<CachedResponse> load(Path path) {
+        if (Files.exists(path)) {
+            try {
+                return Optional.of(JAXB.unmarshal(path.toFile(), CachedResponse.class));
+            } catch (RuntimeException e) {
+                logger.warn("ignoring unreadable cached response[" + path + "]: " + e.getMessage());
+            }
+        }
+        return Optional.empty();
+    }
+
+    public void persist(Path file) {
+        try {
+            Files.createDirectories(file.getParent());
+            JAXB.marshal(this, file.toFile());
+        } catch (IOException e) {
+            logger.error(e);
+        }
+    }
+}
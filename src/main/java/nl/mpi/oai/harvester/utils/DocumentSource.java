@@ -19,9 +19,15 @@
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import net.sf.saxon.s9api.DOMDestination;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.w3c.dom.Document;
@@ -29,6 +35,10 @@
 import org.xml.sax.SAXException;
 
 /**
+ * The XML content of a record, as a stream, a DOM tree or a Saxon tree.
+ * A Saxon tree is what a transformation produces; it can be transformed
+ * again or saved without a detour via DOM, and is only turned into a DOM
+ * tree for an action that asks for one.
  *
  * @author menzowi
  */
@@ -40,6 +50,9 @@ public class DocumentSource {
     
     private Document doc = null;
     private InputStream str = null;
+    private XdmNode node = null;
+
+    private EnvelopeInfo envelope = new EnvelopeInfo();
     
     public DocumentSource(Document doc) {
         this("",doc);
@@ -59,8 +72,31 @@ public DocumentSource(String id, InputStream str) {
         this.str = str;
     }
     
+    public DocumentSource(String id, XdmNode node) {
+        this.id = id;
+        this.node = node;
+    }
+    
+    /**
+     * @return true if the content is a tree, DOM or Saxon
+     */
     public boolean hasDocument() {
-        return (doc!=null);
+        return (doc!=null || node!=null);
+    }
+    
+    /**
+     * @return true if the content is a Saxon tree
+     */
+    public boolean hasNode() {
+        return (node!=null);
+    }
+    
+    /**
+     * @return the Saxon tree, or null if the content is a stream or a DOM
+     *         tree
+     */
+    public XdmNode getNode() {
+        return node;
     }
     
     public boolean hasStream() {
@@ -68,7 +104,21 @@ public boolean hasStream() {
     }
 
     public Document getDocument() {
-        if (doc==null) {
+        if (doc==null && node!=null) {
+            try {
+                DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+                dbf.setNamespaceAware(true);
+                Document d = dbf.newDocumentBuilder().newDocument();
+                Processor processor = new Processor(node.getUnderlyingNode().getConfiguration());
+                processor.writeXdmValue(node, new DOMDestination(d));
+                doc = d;
+                node = null;
+                logger.debug("switched from Saxon tree to DOM tree for DocumentSource["+id+"]");
+            } catch (ParserConfigurationException | SaxonApiException ex) {
+                logger.error(ex.getMessage(),ex);
+                logger.debug("failed to switch from Saxon tree to DOM tree for DocumentSource["+id+"]");
+            }
+        } else if (doc==null) {
             try {
                 DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
                 DocumentBuilder db = dbf.newDocumentBuilder();
@@ -90,6 +140,8 @@ public InputSource getSource() {
     public InputStream getStream() {
         if (str==null)
             return null;
+        if (str instanceof ByteBufferInputStream)
+            return ((ByteBufferInputStream) str).newReader();
         try {
             str.reset();
         } catch (IOException ex) {
@@ -99,18 +151,65 @@ public InputStream getStream() {
         return str;
     }
     
+    /**
+     * @return the list information of the OAI-PMH envelope, as far as it has
+     *         been collected while processing the stream
+     */
+    public EnvelopeInfo getEnvelope() {
+        return envelope;
+    }
+
+    /**
+     * Get a copy of the content that can be read and changed at the same
+     * time as this one. A Saxon tree and the bytes of a stream are shared,
+     * as neither is ever changed, and so is the envelope information.
+     *
+     * @return the copy
+     * @throws IOException the stream couldn't be read
+     */
+    public DocumentSource copy() throws IOException {
+        DocumentSource copy;
+        if (node!=null) {
+            copy = new DocumentSource(id, node);
+        } else if (doc!=null) {
+            copy = new DocumentSource(id, (Document) doc.cloneNode(true));
+        } else if (str!=null) {
+            if (!(str instanceof ByteBufferInputStream)) {
+                // read once into bytes that both can share
+                InputStream in = getStream();
+                str = new ByteBufferInputStream(ByteBuffer.wrap(IOUtils.toByteArray(in)));
+                in.close();
+            }
+            copy = new DocumentSource(id, ((ByteBufferInputStream) str).newReader());
+        } else {
+            copy = new DocumentSource(id, (InputStream) null);
+        }
+        copy.envelope = envelope;
+        return copy;
+    }
+
     public void setDocument(Document doc) {
         if (str!=null)
                 logger.debug("switched from stream to tree for DocumentSource["+id+"]",new Throwable());
         this.doc = doc;
         this.str = null;
+        this.node = null;
+    }
+    
+    public void setNode(XdmNode node) {
+        if (str!=null)
+                logger.debug("switched from stream to Saxon tree for DocumentSource["+id+"]",new Throwable());
+        this.node = node;
+        this.doc = null;
+        this.str = null;
     }
     
     public void setStream(InputStream str) {
-        if (doc!=null)
+        if (doc!=null || node!=null)
                 logger.debug("switched from tree to stream for DocumentSource["+id+"]",new Throwable());
         this.str = str;
         this.doc = null;
+        this.node = null;
     }
     
     public void close() {
@@ -0,0 +1,137 @@
+package nl.mpi.oai.harvester.utils;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+
+/**
+ * The list information of an OAI-PMH response envelope, i.e. the
+ * resumptionToken and its cursor and completeListSize attributes, and the
+ * metadata prefix of the request. When a
+ * response is streamed the actions that walk through it fill this in, so the
+ * response doesn't have to be scanned once more for the token.
+ */
+public class EnvelopeInfo {
+
+    private String prefix = null;
+    private String resumptionToken = null;
+    private Long cursor = null;
+    private Long completeListSize = null;
+    private boolean complete = false;
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String getResumptionToken() {
+        return resumptionToken;
+    }
+
+    public void setResumptionToken(String resumptionToken) {
+        this.resumptionToken = resumptionToken;
+    }
+
+    public Long getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(Long cursor) {
+        this.cursor = cursor;
+    }
+
+    public Long getCompleteListSize() {
+        return completeListSize;
+    }
+
+    public void setCompleteListSize(Long completeListSize) {
+        this.completeListSize = completeListSize;
+    }
+
+    /**
+     * @return true if the envelope has been read up to its end, so the
+     *         absence of a token means there is none
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public void setComplete(boolean complete) {
+        this.complete = complete;
+    }
+
+    /**
+     * Set the cursor and completeListSize from the attribute values of a
+     * resumptionToken element, invalid values are ignored.
+     *
+     * @param cursor the cursor attribute value, might be null
+     * @param completeListSize the completeListSize attribute value, might be null
+     */
+    public void setListInfo(String cursor, String completeListSize) {
+        this.cursor = parse(cursor);
+        this.completeListSize = parse(completeListSize);
+    }
+
+    /**
+     * Pick up the resumptionToken if the event reader is positioned on one.
+     *
+     * @param start the start element just read
+     * @param reader the reader, if the element is picked up it is positioned
+     *               on its end element afterwards
+     * @return true if the element was a resumptionToken
+     * @throws XMLStreamException the resumptionToken couldn't be read
+     */
+    public boolean collect(StartElement start, XMLEventReader reader) throws XMLStreamException {
+        QName qn = start.getName();
+        if (!qn.getLocalPart().equals("resumptionToken"))
+            return false;
+        Attribute cursor = start.getAttributeByName(new QName("cursor"));
+        Attribute size = start.getAttributeByName(new QName("completeListSize"));
+        setListInfo(cursor != null ? cursor.getValue() : null, size != null ? size.getValue() : null);
+        setResumptionToken(reader.getElementText().trim());
+        return true;
+    }
+
+    /**
+     * Pick up the resumptionToken if the stream reader is positioned on one.
+     *
+     * @param reader the reader, positioned on a start element; if the element
+     *               is picked up it is positioned on its end element afterwards
+     * @return true if the element was a resumptionToken
+     * @throws XMLStreamException the resumptionToken couldn't be read
+     */
+    public boolean collect(XMLStreamReader reader) throws XMLStreamException {
+        if (!reader.getLocalName().equals("resumptionToken"))
+            return false;
+        setListInfo(reader.getAttributeValue(null, "cursor"), reader.getAttributeValue(null, "completeListSize"));
+        setResumptionToken(reader.getElementText().trim());
+        return true;
+    }
+
+    private static Long parse(String s) {
+        if (s == null)
+            return null;
+        try {
+            return Long.valueOf(s.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EnvelopeInfo{" +
+                "prefix='" + prefix + '\'' +
+                ", resumptionToken='" + resumptionToken + '\'' +
+                ", cursor=" + cursor +
+                ", completeListSize=" + completeListSize +
+                ", complete=" + complete +
+                '}';
+    }
+}
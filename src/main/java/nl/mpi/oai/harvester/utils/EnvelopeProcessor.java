@@ -0,0 +1,503 @@
+package nl.mpi.oai.harvester.utils;
+
+import org.codehaus.stax2.LocationInfo;
+import org.codehaus.stax2.XMLInputFactory2;
+import org.codehaus.stax2.XMLOutputFactory2;
+import org.codehaus.stax2.XMLStreamReader2;
+import org.codehaus.stax2.XMLStreamWriter2;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Walks once through an OAI-PMH list response, e.g. a ListRecords page, and
+ * hands every record to a handler: its header, i.e. the identifier,
+ * datestamp, setSpecs and deleted status, and the XML of either the whole
+ * record or of its metadata. On the way the metadata prefix of the request
+ * and the resumptionToken are collected in the envelope information, so
+ * the response doesn't have to be scanned again for them.
+ * <p>
+ * The XML of a record isn't copied, it is a view on the bytes of the
+ * response. Only the namespace declarations it needs from the envelope are
+ * added to its first element, e.g. the OAI-PMH namespace to a record. A
+ * response that isn't UTF-8 encoded, or that is read from a stream as it
+ * comes in, is copied record by record instead.
+ * <p>
+ * A record element that is the root of the stream is handled as well.
+ */
+public class EnvelopeProcessor {
+
+    /**
+     * The part of a record that is handed on.
+     */
+    public enum Part {
+        /** the record element, with the header */
+        RECORD,
+        /** the content of the metadata element, without the envelope */
+        METADATA
+    }
+
+    /**
+     * A record found in the response.
+     */
+    public static class Record {
+        private final String identifier;
+        private final String datestamp;
+        private final List<String> setSpecs;
+        private final boolean deleted;
+        private final ByteBuffer[] content;
+
+        Record(String identifier, String datestamp, List<String> setSpecs, boolean deleted, ByteBuffer[] content) {
+            this.identifier = identifier;
+            this.datestamp = datestamp;
+            this.setSpecs = Collections.unmodifiableList(setSpecs);
+            this.deleted = deleted;
+            this.content = content;
+        }
+
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        public String getDatestamp() {
+            return datestamp;
+        }
+
+        public List<String> getSetSpecs() {
+            return setSpecs;
+        }
+
+        /**
+         * @return true if the header has status deleted
+         */
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        /**
+         * @return true if there is XML to hand on, a deleted record has no
+         *         metadata
+         */
+        public boolean hasContent() {
+            return content != null;
+        }
+
+        /**
+         * @return the number of bytes of XML
+         */
+        public int size() {
+            int size = 0;
+            if (content != null) {
+                for (ByteBuffer part : content)
+                    size += part.remaining();
+            }
+            return size;
+        }
+
+        /**
+         * @return the XML of the part asked for, or null if there is none
+         */
+        public InputStream getStream() {
+            return content == null ? null : new ByteBufferInputStream(content);
+        }
+    }
+
+    /**
+     * Receives the records, in the order of the response.
+     */
+    @FunctionalInterface
+    public interface Handler {
+        void record(Record record);
+    }
+
+    private final Part part;
+    private final XMLInputFactory2 inputFactory;
+    private final XMLOutputFactory2 outputFactory;
+
+    /**
+     * @param part the part of every record to hand on
+     */
+    public EnvelopeProcessor(Part part) {
+        this.part = part;
+        inputFactory = (XMLInputFactory2) XMLInputFactory2.newInstance();
+        inputFactory.configureForConvenience();
+        outputFactory = (XMLOutputFactory2) XMLOutputFactory2.newInstance();
+        outputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+    }
+
+    /**
+     * Process a response. A view on a buffer is processed as that buffer,
+     * any other stream is read as it comes in, so only the record at hand
+     * is kept in memory, as a copy.
+     *
+     * @param in the response
+     * @param envelope receives the metadata prefix and list information
+     * @param handler receives the records
+     * @return the number of records
+     * @throws IOException the response couldn't be read
+     * @throws XMLStreamException the response isn't well-formed XML
+     * @see #process(ByteBuffer, EnvelopeInfo, Handler)
+     */
+    public int process(InputStream in, EnvelopeInfo envelope, Handler handler) throws IOException, XMLStreamException {
+        if (in instanceof ByteBufferInputStream) {
+            // e.g. a spooled response, no need to copy it
+            ByteBuffer page = ((ByteBufferInputStream) in).asBuffer();
+            if (page != null)
+                return process(page, envelope, handler);
+        }
+        try {
+            // e.g. a response still coming in, no offsets to slice it by
+            return process((XMLStreamReader2) inputFactory.createXMLStreamReader(in), null, envelope, handler);
+        } catch (XMLStreamException ex) {
+            if (ex.getNestedException() instanceof IOException)
+                throw (IOException) ex.getNestedException();
+            throw ex;
+        }
+    }
+
+    /**
+     * Process a response. The envelope is marked complete if the response
+     * has been read up to its end. The records handed on refer to the
+     * buffer, so it shouldn't change as long as they are in use.
+     *
+     * @param page the response, from its position up to its limit
+     * @param envelope receives the metadata prefix and list information
+     * @param handler receives the records
+     * @return the number of records
+     * @throws XMLStreamException the response isn't well-formed XML
+     */
+    public int process(ByteBuffer page, EnvelopeInfo envelope, Handler handler) throws XMLStreamException {
+        XMLStreamReader2 reader = (XMLStreamReader2) inputFactory.createXMLStreamReader(
+                new ByteBufferInputStream(page));
+        return process(reader, Offsets.of(page, reader.getEncoding()), envelope, handler);
+    }
+
+    /**
+     * @param offsets null to copy the records
+     */
+    private int process(XMLStreamReader2 reader, Offsets offsets, EnvelopeInfo envelope, Handler handler)
+            throws XMLStreamException {
+        try {
+            int records = 0;
+            // depth within the current record, 0 outside of records
+            int depth = 0;
+            boolean inHeader = false;
+            boolean inText = false;
+            StringBuilder text = new StringBuilder();
+
+            // one for all records, so little is allocated per record
+            Slice slice = new Slice(offsets);
+            ByteBuffer[] content = null;
+            String identifier = null;
+            String datestamp = null;
+            List<String> setSpecs = null;
+            boolean deleted = false;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (depth == 0) {
+                        if (name.equals("record")) {
+                            depth = 1;
+                            identifier = null;
+                            datestamp = null;
+                            setSpecs = null;
+                            deleted = false;
+                            content = null;
+                            if (part == Part.RECORD)
+                                slice.begin(reader, 1, false);
+                        } else if (name.equals("request")) {
+                            String prefix = reader.getAttributeValue(null, "metadataPrefix");
+                            if (prefix != null)
+                                envelope.setPrefix(prefix);
+                            continue;
+                        } else {
+                            // the list information comes after the records
+                            envelope.collect(reader);
+                            continue;
+                        }
+                    } else {
+                        depth++;
+                        if (depth == 2 && name.equals("header")) {
+                            inHeader = true;
+                            deleted = "deleted".equals(reader.getAttributeValue(null, "status"));
+                        } else if (depth == 3 && inHeader) {
+                            inText = true;
+                            text.setLength(0);
+                        } else if (depth == 2 && name.equals("metadata") && part == Part.METADATA) {
+                            // what's inside, not the metadata element
+                            slice.begin(reader, 3, true);
+                            continue;
+                        }
+                    }
+                    if (slice.active)
+                        slice.start(reader);
+                } else if (event == XMLStreamConstants.END_ELEMENT && depth > 0) {
+                    if (slice.active) {
+                        if (depth >= slice.depth)
+                            slice.end(reader);
+                        if (depth == slice.until)
+                            content = slice.finish(reader);
+                    }
+                    if (depth == 3 && inHeader && inText) {
+                        String name = reader.getLocalName();
+                        String value = text.toString().trim();
+                        if (name.equals("identifier"))
+                            identifier = value;
+                        else if (name.equals("datestamp"))
+                            datestamp = value;
+                        else if (name.equals("setSpec")) {
+                            if (setSpecs == null)
+                                setSpecs = new ArrayList<>();
+                            setSpecs.add(value);
+                        }
+                        inText = false;
+                    } else if (depth == 2 && inHeader) {
+                        inHeader = false;
+                    } else if (depth == 1) {
+                        records++;
+                        handler.record(new Record(identifier, datestamp,
+                                setSpecs == null ? Collections.emptyList() : setSpecs, deleted, content));
+                        content = null;
+                        depth = 0;
+                        continue;
+                    }
+                    depth--;
+                } else {
+                    if (inText && (event == XMLStreamConstants.CHARACTERS
+                            || event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE))
+                        text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    if (slice.active)
+                        slice.other(reader);
+                }
+            }
+            envelope.setComplete(true);
+            return records;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Maps the character offsets the reader reports to byte offsets in the
+     * response. As the offsets only move forward, the bytes are counted
+     * once.
+     */
+    private static final class Offsets {
+        private final ByteBuffer page;
+        private long chars = 0;
+        private int bytes;
+
+        private Offsets(ByteBuffer page, int start) {
+            this.page = page;
+            this.bytes = start;
+        }
+
+        /**
+         * @return null if the encoding doesn't allow views on the response
+         */
+        static Offsets of(ByteBuffer page, String encoding) {
+            if (!"UTF-8".equalsIgnoreCase(encoding) && !"US-ASCII".equalsIgnoreCase(encoding))
+                return null;
+            int start = page.position();
+            // the reader skips the byte order mark
+            if (page.remaining() >= 3 && (page.get(start) & 0xFF) == 0xEF && (page.get(start + 1) & 0xFF) == 0xBB
+                    && (page.get(start + 2) & 0xFF) == 0xBF)
+                start += 3;
+            return new Offsets(page, start);
+        }
+
+        int toBytes(long offset) {
+            while (chars < offset) {
+                int b = page.get(bytes);
+                int n = b >= 0 ? 1 : (b & 0xE0) == 0xC0 ? 2 : (b & 0xF0) == 0xE0 ? 3 : 4;
+                bytes += n;
+                // beyond the basic plane a character is a surrogate pair
+                chars += n == 4 ? 2 : 1;
+            }
+            return bytes;
+        }
+
+        ByteBuffer slice(int from, int to) {
+            ByteBuffer slice = page.duplicate();
+            slice.limit(to).position(from);
+            return slice.slice();
+        }
+    }
+
+    /**
+     * The part of a record handed on: a view on the response plus the
+     * namespace declarations of the envelope that are used within it, or
+     * if there are no offsets a copy.
+     */
+    private final class Slice {
+        private final Offsets offsets;
+        boolean active = false;
+        // depth within the record of the outermost elements of the slice
+        int depth;
+        // depth of the element that ends the slice
+        int until;
+
+        private int start;
+        // where declarations go: after the name of the first element
+        private int insert;
+        // the prefixes declared within the slice, per open element
+        private final List<String> declared = new ArrayList<>();
+        private int[] marks = new int[16];
+        private int open;
+        // the declarations of the envelope used, mostly the same for all records
+        private final List<String> prefixes = new ArrayList<>();
+        private final List<String> uris = new ArrayList<>();
+        private final List<String> lastPrefixes = new ArrayList<>();
+        private final List<String> lastUris = new ArrayList<>();
+        private ByteBuffer declarations = null;
+
+        private ByteArrayOutputStream bytes;
+        private XMLStreamWriter2 writer;
+
+        Slice(Offsets offsets) {
+            this.offsets = offsets;
+        }
+
+        /**
+         * @param after true if the slice starts after the current element,
+         *              else at it
+         */
+        void begin(XMLStreamReader2 reader, int depth, boolean after) throws XMLStreamException {
+            this.active = true;
+            this.depth = depth;
+            this.until = after ? depth - 1 : depth;
+            if (offsets == null) {
+                bytes = new ByteArrayOutputStream();
+                writer = (XMLStreamWriter2) outputFactory.createXMLStreamWriter(bytes, "UTF-8");
+                return;
+            }
+            LocationInfo location = reader.getLocationInfo();
+            start = offsets.toBytes(after ? location.getEndingCharOffset() : location.getStartingCharOffset());
+            insert = -1;
+            declared.clear();
+            open = 0;
+            prefixes.clear();
+            uris.clear();
+        }
+
+        void start(XMLStreamReader2 reader) throws XMLStreamException {
+            if (offsets == null) {
+                writer.copyEventFromReader(reader, false);
+                return;
+            }
+            if (insert < 0) {
+                String prefix = reader.getPrefix();
+                int name = utf8Length(reader.getLocalName())
+                        + (prefix == null || prefix.isEmpty() ? 0 : utf8Length(prefix) + 1);
+                insert = offsets.toBytes(reader.getLocationInfo().getStartingCharOffset()) + 1 + name;
+            }
+            if (open == marks.length)
+                marks = Arrays.copyOf(marks, open * 2);
+            marks[open++] = declared.size();
+            for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                String prefix = reader.getNamespacePrefix(i);
+                declared.add(prefix == null ? "" : prefix);
+            }
+            need(reader, reader.getPrefix(), true);
+            for (int i = 0; i < reader.getAttributeCount(); i++)
+                need(reader, reader.getAttributePrefix(i), false);
+        }
+
+        private void need(XMLStreamReader2 reader, String prefix, boolean element) {
+            if (prefix == null)
+                prefix = "";
+            // an attribute without a prefix has no namespace
+            if ((prefix.isEmpty() && !element) || prefix.equals("xml") || declared.contains(prefix)
+                    || prefixes.contains(prefix))
+                return;
+            String uri = reader.getNamespaceURI(prefix);
+            if (uri == null || uri.isEmpty())
+                return;
+            prefixes.add(prefix);
+            uris.add(uri);
+        }
+
+        void end(XMLStreamReader2 reader) throws XMLStreamException {
+            if (offsets == null) {
+                writer.copyEventFromReader(reader, false);
+                return;
+            }
+            int mark = marks[--open];
+            while (declared.size() > mark)
+                declared.remove(declared.size() - 1);
+        }
+
+        void other(XMLStreamReader2 reader) throws XMLStreamException {
+            if (offsets == null)
+                writer.copyEventFromReader(reader, false);
+        }
+
+        /**
+         * @param reader positioned on the end element of the slice, or of
+         *               the element the slice is in
+         */
+        ByteBuffer[] finish(XMLStreamReader2 reader) throws XMLStreamException {
+            active = false;
+            if (offsets == null) {
+                writer.close();
+                writer = null;
+                return new ByteBuffer[] {ByteBuffer.wrap(bytes.toByteArray())};
+            }
+            LocationInfo location = reader.getLocationInfo();
+            int end = offsets.toBytes(part == Part.RECORD ? location.getEndingCharOffset()
+                    : location.getStartingCharOffset());
+            if (prefixes.isEmpty() || insert < 0)
+                return new ByteBuffer[] {offsets.slice(start, Math.max(start, end))};
+            return new ByteBuffer[] {offsets.slice(start, insert), declarations(), offsets.slice(insert, end)};
+        }
+
+        private ByteBuffer declarations() {
+            if (declarations == null || !prefixes.equals(lastPrefixes) || !uris.equals(lastUris)) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < prefixes.size(); i++) {
+                    sb.append(prefixes.get(i).isEmpty() ? " xmlns" : " xmlns:" + prefixes.get(i));
+                    sb.append("=\"").append(escape(uris.get(i))).append('"');
+                }
+                declarations = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+                lastPrefixes.clear();
+                lastPrefixes.addAll(prefixes);
+                lastUris.clear();
+                lastUris.addAll(uris);
+            }
+            return declarations;
+        }
+    }
+
+    private static int utf8Length(String s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80)
+                n++;
+            else if (c < 0x800)
+                n += 2;
+            else if (Character.isHighSurrogate(c)) {
+                n += 4;
+                i++;
+            } else
+                n += 3;
+        }
+        return n;
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
+    }
+}
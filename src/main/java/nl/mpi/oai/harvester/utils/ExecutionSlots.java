@@ -0,0 +1,187 @@
+package nl.mpi.oai.harvester.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * The slots that bound how many providers are harvested at the same time.
+ * <p>
+ * A provider's task holds a slot while it runs, but gives it back while it
+ * waits, e.g. for a retry delay or a Retry-After, and queues up for a slot
+ * again afterwards. So a waiting provider doesn't keep a runnable one from
+ * starting. The waits go through {@link #sleep(long, TimeUnit)} and
+ * {@link #await(Waiting)}, which know the slot of the current thread; on a
+ * thread without a slot they just wait.
+ * <p>
+ * A task never waits for a lock while it holds its slot, see
+ * {@link #lock(Lock)}. The locks it holds, e.g. the exclusive lock of the
+ * providers, stay held while it waits without its slot, so no other provider
+ * runs in the middle of an exclusive one. As the tasks that hold a slot never
+ * wait for a lock, a task holding a lock always gets a slot back.
+ */
+public class ExecutionSlots {
+
+    private static final Logger logger = LogManager.getLogger(ExecutionSlots.class);
+
+    // shorter sleeps keep the slot, handing it over isn't worth it
+    static final long MIN_YIELD = 1000;
+
+    private static final ThreadLocal<ExecutionSlots> held = new ThreadLocal<>();
+
+    /**
+     * A wait that can be interrupted.
+     */
+    @FunctionalInterface
+    public interface Waiting {
+        void await() throws InterruptedException;
+    }
+
+    private final Semaphore semaphore;
+    private final LongAdder yields = new LongAdder();
+    private final LatencyStats yielded = new LatencyStats();
+
+    /**
+     * @param slots the number of tasks that may run at the same time
+     */
+    public ExecutionSlots(int slots) {
+        this.semaphore = new Semaphore(slots, true);
+    }
+
+    /**
+     * Wait for a free slot, to be handed to a task via {@link #holding(Runnable)}.
+     *
+     * @throws InterruptedException interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        semaphore.acquire();
+    }
+
+    /**
+     * Wrap a task that takes over a slot acquired before, and gives it back
+     * when it is done.
+     *
+     * @param task the task
+     * @return the wrapped task
+     */
+    public Runnable holding(Runnable task) {
+        return () -> {
+            held.set(this);
+            try {
+                task.run();
+            } finally {
+                held.remove();
+                semaphore.release();
+            }
+        };
+    }
+
+    /**
+     * @return the number of slots free right now
+     */
+    public int available() {
+        return semaphore.availablePermits();
+    }
+
+    /**
+     * @return the number of times a task gave its slot back while waiting
+     */
+    public long getYields() {
+        return yields.sum();
+    }
+
+    /**
+     * @return the time spent waiting without a slot, including the time
+     *         needed to get one back
+     */
+    public LatencyStats getYielded() {
+        return yielded;
+    }
+
+    /**
+     * Sleep without holding on to the slot of the current thread, if the
+     * sleep is long enough to be worth it.
+     *
+     * @param duration how long to sleep
+     * @param unit the unit of the duration
+     * @throws InterruptedException interrupted while sleeping
+     */
+    public static void sleep(long duration, TimeUnit unit) throws InterruptedException {
+        if (duration <= 0)
+            return;
+        if (unit.toMillis(duration) < MIN_YIELD) {
+            unit.sleep(duration);
+            return;
+        }
+        await(() -> unit.sleep(duration));
+    }
+
+    /**
+     * Wait without holding on to the slot of the current thread. The locks of
+     * the thread stay held. The slot is back when this returns, also when the
+     * wait was interrupted.
+     *
+     * @param waiting the wait
+     * @throws InterruptedException interrupted while waiting
+     */
+    public static void await(Waiting waiting) throws InterruptedException {
+        ExecutionSlots slots = held.get();
+        if (slots == null) {
+            waiting.await();
+            return;
+        }
+        long start = System.nanoTime();
+        slots.semaphore.release();
+        try {
+            waiting.await();
+        } finally {
+            slots.semaphore.acquireUninterruptibly();
+            slots.yields.increment();
+            slots.yielded.record(System.nanoTime() - start);
+            logger.debug("got a slot back after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        }
+    }
+
+    /**
+     * Take a lock, without holding on to the slot of the current thread
+     * while waiting for it.
+     *
+     * @param lock the lock
+     */
+    public static void lock(Lock lock) {
+        boolean free;
+        try {
+            // a timed try honours the fairness of the lock
+            free = lock.tryLock(0, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            free = lock.tryLock();
+        }
+        if (!free) {
+            try {
+                await(lock::lock);
+            } catch (InterruptedException e) {
+                // not thrown, taking the lock isn't interruptible
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Release a lock taken via {@link #lock(Lock)}.
+     *
+     * @param lock the lock
+     */
+    public static void unlock(Lock lock) {
+        lock.unlock();
+    }
+
+    @Override
+    public String toString() {
+        return "yields[" + getYields() + "] without slot[" + yielded + "]";
+    }
+}
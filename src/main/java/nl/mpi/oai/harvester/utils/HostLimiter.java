@@ -0,0 +1,171 @@
+package nl.mpi.oai.harvester.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Politeness limits per host, shared by all harvesting threads.
+ * <p>
+ * Per host at most a maximum number of requests is in flight at the same
+ * time, and consecutive requests start at least a minimum interval apart.
+ * A request holds its permit until its response has been read (or closed),
+ * so several providers on the same server queue up here instead of hitting
+ * the server in parallel. The time spent waiting for a permit is recorded
+ * per host, while waiting the execution slot of the thread is given back.
+ */
+public class HostLimiter {
+
+    private static final Logger logger = LogManager.getLogger(HostLimiter.class);
+
+    /**
+     * The limits for a host.
+     */
+    public static class Limit {
+
+        private final int maxConnections;
+        private final long minInterval;
+
+        /**
+         * @param maxConnections the maximum number of concurrent requests, 0 means unlimited
+         * @param minInterval the minimum number of milliseconds between the start of requests
+         */
+        public Limit(int maxConnections, long minInterval) {
+            this.maxConnections = maxConnections;
+            this.minInterval = minInterval;
+        }
+
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        public long getMinInterval() {
+            return minInterval;
+        }
+
+        @Override
+        public String toString() {
+            return "max-connections[" + maxConnections + "] min-interval[" + minInterval + "ms]";
+        }
+    }
+
+    /**
+     * A permit to send a request to a host, to be released once.
+     */
+    public interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final Permit NONE = () -> {};
+
+    private volatile Limit defaultLimit = new Limit(0, 0);
+    private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+    private final Map<String, LatencyStats> waitStats = new ConcurrentHashMap<>();
+
+    /**
+     * Set the limits for the hosts without a limit of their own. Only
+     * affects hosts not contacted yet.
+     */
+    public void setDefaultLimit(Limit limit) {
+        this.defaultLimit = limit;
+    }
+
+    /**
+     * Set the limits for a specific host. Only has effect if the host has
+     * not been contacted yet.
+     *
+     * @param host the host name
+     * @param limit the limits
+     */
+    public void setLimit(String host, Limit limit) {
+        limits.put(host.toLowerCase(), limit);
+    }
+
+    public Limit getLimit(String host) {
+        return limits.getOrDefault(host.toLowerCase(), defaultLimit);
+    }
+
+    /**
+     * Wait until a request to the host is allowed.
+     *
+     * @param host the host name
+     * @return the permit, to be closed when the response has been read
+     * @throws InterruptedException interrupted while waiting
+     */
+    public Permit acquire(String host) throws InterruptedException {
+        String key = host.toLowerCase();
+        Host h = hosts.computeIfAbsent(key, k -> new Host(getLimit(k)));
+        if (h.semaphore == null && h.interval == 0)
+            return NONE;
+        long start = System.nanoTime();
+        if (h.semaphore != null && !h.semaphore.tryAcquire())
+            ExecutionSlots.await(h.semaphore::acquire);
+        try {
+            h.pace();
+        } catch (InterruptedException e) {
+            if (h.semaphore != null)
+                h.semaphore.release();
+            throw e;
+        }
+        waitStats.computeIfAbsent(key, k -> new LatencyStats()).record(System.nanoTime() - start);
+        if (h.semaphore == null)
+            return NONE;
+        AtomicBoolean released = new AtomicBoolean(false);
+        return () -> {
+            if (released.compareAndSet(false, true))
+                h.semaphore.release();
+        };
+    }
+
+    /**
+     * @return the time spent waiting for a permit, per host
+     */
+    public Map<String, LatencyStats> getWaitStats() {
+        return waitStats;
+    }
+
+    /**
+     * Log the waiting times per host.
+     */
+    public void logStatistics() {
+        for (Map.Entry<String, LatencyStats> e : waitStats.entrySet()) {
+            logger.info("host[" + e.getKey() + "] " + hosts.get(e.getKey()).limit + " permit wait[" + e.getValue() + "]");
+        }
+    }
+
+    private static class Host {
+
+        private final Limit limit;
+        private final Semaphore semaphore;
+        private final long interval;
+        // the earliest time the next request may start
+        private long next = Long.MIN_VALUE;
+
+        Host(Limit limit) {
+            this.limit = limit;
+            this.semaphore = limit.getMaxConnections() > 0 ? new Semaphore(limit.getMaxConnections(), true) : null;
+            this.interval = TimeUnit.MILLISECONDS.toNanos(Math.max(0, limit.getMinInterval()));
+        }
+
+        void pace() throws InterruptedException {
+            if (interval == 0)
+                return;
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long at = (next == Long.MIN_VALUE || next - now < 0) ? now : next;
+                next = at + interval;
+                wait = at - now;
+            }
+            if (wait > 0)
+                ExecutionSlots.sleep(wait, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,513 @@
+package nl.mpi.oai.harvester.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.ProxySelector;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Shared HTTP transport for the OAI verbs.
+ * <p>
+ * All requests go through one {@link HttpClient}, which keeps idle
+ * connections per host alive and reuses them, so consecutive requests to the
+ * same endpoint (e.g. ListRecords pages) don't pay for a new TCP and TLS
+ * handshake each time. HTTPS endpoints negotiate HTTP/2 via ALPN when the
+ * server supports it.
+ * <p>
+ * Plain HTTP endpoints stay on HTTP/1.1, to avoid the h2c upgrade dance some
+ * servers choke on, and go through {@link HttpURLConnection} instead, whose
+ * keep-alive cache reuses the connections as well. Without a handshake to
+ * save, the per request overhead of {@link HttpClient} (its selector thread
+ * and the hand over of the body) made plain HTTP about 2.5 times slower than
+ * the old connection per request; see HttpTransportBenchmark. A redirect from
+ * HTTP to HTTPS, which {@link HttpURLConnection} doesn't follow, is followed
+ * by the client.
+ * <p>
+ * Per host the time to first byte (until the response headers arrive) is
+ * recorded. {@link HttpClient} doesn't expose connection set up timings, so
+ * the first exchange with a host, which has to open the connection, is
+ * recorded separately as the connect (and handshake) latency.
+ * <p>
+ * Every request first gets a permit from the {@link HostLimiter}, which
+ * is held until the body of the response has been read or closed. The
+ * {@link PaceController}s of the endpoints being harvested are registered
+ * here, so the verbs can find them.
+ */
+public class HttpTransport {
+
+    private static final Logger logger = LogManager.getLogger(HttpTransport.class);
+
+    public static final String USER_AGENT = "OAIHarvester/2.0";
+
+    private static final HttpTransport instance = new HttpTransport(HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .proxy(ProxySelector.getDefault())
+            .build());
+
+    private final HttpClient client;
+
+    private final Map<String, LatencyStats> connectStats = new ConcurrentHashMap<>();
+    private final Map<String, LatencyStats> firstByteStats = new ConcurrentHashMap<>();
+    private final HostLimiter limiter = new HostLimiter();
+    private final Map<String, PaceController> paces = new ConcurrentHashMap<>();
+
+    /**
+     * @return the transport shared by all harvesting threads
+     */
+    public static HttpTransport getInstance() {
+        return instance;
+    }
+
+    /**
+     * Create a transport on top of a specific client, e.g. one with its own
+     * SSL context.
+     *
+     * @param client the client to send the requests with
+     */
+    public HttpTransport(HttpClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Perform a GET request. The caller is responsible for closing the body
+     * of the response.
+     *
+     * @param url the URL to request
+     * @param timeout the connect and read timeout in seconds, 0 means none
+     * @return the response, with the body still to be read
+     * @throws IOException the request failed or timed out
+     */
+    public HttpResponse<InputStream> get(String url, int timeout) throws IOException {
+        return get(url, timeout, Collections.emptyMap());
+    }
+
+    /**
+     * Perform a GET request with additional headers, e.g. to make it
+     * conditional. The caller is responsible for closing the body of the
+     * response.
+     *
+     * @param url the URL to request
+     * @param timeout the connect and read timeout in seconds, 0 means none
+     * @param headers the additional request headers
+     * @return the response, with the body still to be read
+     * @throws IOException the request failed or timed out
+     */
+    public HttpResponse<InputStream> get(String url, int timeout, Map<String, String> headers) throws IOException {
+        URI uri;
+        HttpRequest.Builder request;
+        try {
+            uri = new URI(url);
+            request = HttpRequest.newBuilder(uri);
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            MalformedURLException mue = new MalformedURLException("invalid URL[" + url + "]");
+            mue.initCause(e);
+            throw mue;
+        }
+        request.GET()
+                .header("User-Agent", USER_AGENT)
+                .header("Accept-Encoding", "compress, gzip, identify");
+        headers.forEach(request::header);
+        boolean plain = "http".equalsIgnoreCase(uri.getScheme());
+        if (plain)
+            request.version(HttpClient.Version.HTTP_1_1);
+        Duration readTimeout = null;
+        if (timeout > 0) {
+            readTimeout = Duration.ofSeconds(timeout);
+            request.timeout(readTimeout);
+        }
+        String host = uri.getHost() + (uri.getPort() > 0 ? ":" + uri.getPort() : "");
+        HostLimiter.Permit permit;
+        try {
+            permit = limiter.acquire(uri.getHost() != null ? uri.getHost() : "");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting to request URL[" + url + "]");
+        }
+        boolean first = !firstByteStats.containsKey(host);
+        long start = System.nanoTime();
+        HttpResponse<InputStream> response;
+        try {
+            if (plain)
+                response = sendPlain(request.build(), timeout, permit);
+            else
+                response = client.send(request.build(), new TimeoutBodyHandler(readTimeout, permit));
+        } catch (HttpTimeoutException e) {
+            permit.close();
+            SocketTimeoutException ste = new SocketTimeoutException("timeout for URL[" + url + "]");
+            ste.initCause(e);
+            throw ste;
+        } catch (InterruptedException e) {
+            permit.close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while requesting URL[" + url + "]");
+        } catch (IOException | RuntimeException e) {
+            permit.close();
+            throw e;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (first)
+            connectStats.computeIfAbsent(host, h -> new LatencyStats()).record(elapsed);
+        firstByteStats.computeIfAbsent(host, h -> new LatencyStats()).record(elapsed);
+        logger.debug("response[" + response.statusCode() + "] over " + response.version() + " from URL[" + url + "] after " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms");
+        if (plain && response.statusCode() / 100 == 3) {
+            Optional<String> location = response.headers().firstValue("Location");
+            if (location.isPresent()) {
+                response.body().close();
+                return get(response.uri().resolve(location.get()).toString(), timeout, headers);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Send a plain HTTP request over a {@link HttpURLConnection}, which
+     * follows the redirects to other HTTP URLs itself.
+     */
+    private static HttpResponse<InputStream> sendPlain(HttpRequest request, int timeout,
+                                                        HostLimiter.Permit permit) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) request.uri().toURL().openConnection();
+        con.setInstanceFollowRedirects(true);
+        request.headers().map().forEach((name, values) -> values.forEach(v -> con.addRequestProperty(name, v)));
+        if (timeout > 0) {
+            con.setConnectTimeout(timeout * 1000);
+            con.setReadTimeout(timeout * 1000);
+        }
+        int status = con.getResponseCode();
+        InputStream body = status >= 400 ? con.getErrorStream() : con.getInputStream();
+        if (body == null)
+            body = InputStream.nullInputStream();
+        Map<String, List<String>> fields = new HashMap<>(con.getHeaderFields());
+        // the status line
+        fields.remove(null);
+        URI uri;
+        try {
+            uri = con.getURL().toURI();
+        } catch (URISyntaxException e) {
+            uri = request.uri();
+        }
+        return new PlainResponse(request, uri, status, HttpHeaders.of(fields, (k, v) -> true),
+                new PermitInputStream(body, permit));
+    }
+
+    public Map<String, LatencyStats> getConnectStats() {
+        return connectStats;
+    }
+
+    public Map<String, LatencyStats> getFirstByteStats() {
+        return firstByteStats;
+    }
+
+    /**
+     * @return the politeness limits applied to the requests
+     */
+    public HostLimiter getHostLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Register the pace controller of an endpoint.
+     *
+     * @param endpoint the endpoint URL, without parameters
+     * @param pace the controller
+     */
+    public void setPace(String endpoint, PaceController pace) {
+        paces.put(endpoint(endpoint), pace);
+    }
+
+    /**
+     * Unregister the pace controller of an endpoint.
+     */
+    public void removePace(String endpoint, PaceController pace) {
+        paces.remove(endpoint(endpoint), pace);
+    }
+
+    /**
+     * @param url the endpoint URL, parameters are ignored
+     * @return the pace controller of the endpoint, or null if there is none
+     */
+    public PaceController getPace(String url) {
+        return paces.get(endpoint(url));
+    }
+
+    private static String endpoint(String url) {
+        int i = url.indexOf('?');
+        return i < 0 ? url : url.substring(0, i);
+    }
+
+    /**
+     * Log the latencies per host.
+     */
+    public void logStatistics() {
+        for (Map.Entry<String, LatencyStats> e : firstByteStats.entrySet()) {
+            LatencyStats connect = connectStats.get(e.getKey());
+            logger.info("host[" + e.getKey() + "] connect[" + (connect != null ? connect.getFirstMillis() + "ms" : "?") + "] first byte[" + e.getValue() + "]");
+        }
+        limiter.logStatistics();
+    }
+
+    /**
+     * The response to a plain HTTP request.
+     */
+    private static class PlainResponse implements HttpResponse<InputStream> {
+
+        private final HttpRequest request;
+        private final URI uri;
+        private final int status;
+        private final HttpHeaders headers;
+        private final InputStream body;
+
+        PlainResponse(HttpRequest request, URI uri, int status, HttpHeaders headers, InputStream body) {
+            this.request = request;
+            this.uri = uri;
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        @Override
+        public int statusCode() {
+            return status;
+        }
+
+        @Override
+        public HttpRequest request() {
+            return request;
+        }
+
+        @Override
+        public Optional<HttpResponse<InputStream>> previousResponse() {
+            return Optional.empty();
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return headers;
+        }
+
+        @Override
+        public InputStream body() {
+            return body;
+        }
+
+        @Override
+        public Optional<SSLSession> sslSession() {
+            return Optional.empty();
+        }
+
+        @Override
+        public URI uri() {
+            return uri;
+        }
+
+        @Override
+        public HttpClient.Version version() {
+            return HttpClient.Version.HTTP_1_1;
+        }
+    }
+
+    /**
+     * Releases the permit of a request once its body has been read or
+     * closed. Closing the body without disconnecting leaves the connection
+     * in the keep-alive cache.
+     */
+    private static class PermitInputStream extends FilterInputStream {
+
+        private final HostLimiter.Permit permit;
+
+        PermitInputStream(InputStream in, HostLimiter.Permit permit) {
+            super(in);
+            this.permit = permit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0)
+                permit.close();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0)
+                permit.close();
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                permit.close();
+            }
+        }
+    }
+
+    /**
+     * Hands out the body as an InputStream whose reads fail with a
+     * {@link SocketTimeoutException} if no data arrives within the timeout,
+     * like {@link java.net.URLConnection#setReadTimeout(int)}. The permit of
+     * the request is released once the body has been received or closed.
+     */
+    private static class TimeoutBodyHandler implements HttpResponse.BodyHandler<InputStream> {
+
+        private final Duration timeout;
+        private final HostLimiter.Permit permit;
+
+        TimeoutBodyHandler(Duration timeout, HostLimiter.Permit permit) {
+            this.timeout = timeout;
+            this.permit = permit;
+        }
+
+        @Override
+        public HttpResponse.BodySubscriber<InputStream> apply(HttpResponse.ResponseInfo info) {
+            return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofPublisher(), publisher -> {
+                TimeoutInputStream in = new TimeoutInputStream(timeout, permit);
+                publisher.subscribe(in);
+                return in;
+            });
+        }
+    }
+
+    private static class TimeoutInputStream extends InputStream implements Flow.Subscriber<List<ByteBuffer>> {
+
+        private static final Object EOF = new Object();
+
+        private final Duration timeout;
+        private final HostLimiter.Permit permit;
+        private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+        private volatile Flow.Subscription subscription;
+        private Iterator<ByteBuffer> buffers = null;
+        private ByteBuffer current = null;
+        private boolean done = false;
+        private boolean closed = false;
+
+        TimeoutInputStream(Duration timeout, HostLimiter.Permit permit) {
+            this.timeout = timeout;
+            this.permit = permit;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> item) {
+            queue.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            permit.close();
+            queue.add(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            permit.close();
+            queue.add(EOF);
+        }
+
+        private boolean fill() throws IOException {
+            while (current == null || !current.hasRemaining()) {
+                if (buffers != null && buffers.hasNext()) {
+                    current = buffers.next();
+                    continue;
+                }
+                if (done)
+                    return false;
+                if (closed)
+                    throw new IOException("stream closed");
+                Object next;
+                try {
+                    next = timeout == null ? queue.take() : queue.poll(timeout.toMillis(), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (next == null)
+                    throw new SocketTimeoutException("read timed out");
+                if (next instanceof Throwable) {
+                    done = true;
+                    throw new IOException((Throwable) next);
+                }
+                if (next == EOF) {
+                    done = true;
+                    return false;
+                }
+                @SuppressWarnings("unchecked")
+                List<ByteBuffer> list = (List<ByteBuffer>) next;
+                buffers = list.iterator();
+                subscription.request(1);
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill())
+                return -1;
+            return current.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int n = Math.min(len, current.remaining());
+            current.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return current == null ? 0 : current.remaining();
+        }
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            permit.close();
+            if (!done && subscription != null)
+                subscription.cancel();
+            queue.clear();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package nl.mpi.oai.harvester.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread safe histogram of durations, with a bucket per order of magnitude
+ * from under a millisecond to ten seconds and more.
+ */
+public class LatencyHistogram {
+
+    private static final long[] BOUNDS = {
+            TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(10),
+            TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.SECONDS.toNanos(1), TimeUnit.SECONDS.toNanos(10)
+    };
+    private static final String[] LABELS = {"<1ms", "<10ms", "<100ms", "<1s", "<10s", ">=10s"};
+
+    private final LongAdder[] buckets = new LongAdder[LABELS.length];
+    private final LatencyStats stats = new LatencyStats();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        int i = 0;
+        while (i < BOUNDS.length && nanos >= BOUNDS[i])
+            i++;
+        buckets[i].increment();
+        stats.record(nanos);
+    }
+
+    /**
+     * @return the number of durations per bucket, from short to long
+     */
+    public long[] getCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++)
+            counts[i] = buckets[i].sum();
+        return counts;
+    }
+
+    public LatencyStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(stats.toString());
+        long[] counts = getCounts();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0)
+                sb.append(' ').append(LABELS[i]).append('=').append(counts[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,61 @@
+package nl.mpi.oai.harvester.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread safe accumulator for durations, used to report timings like request
+ * latencies at the end of a harvest.
+ */
+public class LatencyStats {
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+    private final AtomicLong first = new AtomicLong(-1);
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        first.compareAndSet(-1, nanos);
+        count.increment();
+        total.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(total.sum());
+    }
+
+    public long getAverageMillis() {
+        long n = count.sum();
+        return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(total.sum() / n);
+    }
+
+    public long getMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(max.get());
+    }
+
+    /**
+     * @return the first duration recorded in milliseconds, or -1 if nothing
+     *         has been recorded yet
+     */
+    public long getFirstMillis() {
+        long f = first.get();
+        return f < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(f);
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount() + " avg=" + getAverageMillis() + "ms max=" + getMaxMillis() + "ms";
+    }
+}
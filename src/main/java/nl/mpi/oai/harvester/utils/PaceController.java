@@ -0,0 +1,193 @@
+package nl.mpi.oai.harvester.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.xml.bind.JAXB;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive request pace of an endpoint, using additive increase and
+ * multiplicative decrease (AIMD).
+ * <p>
+ * Every response that arrives without a sign of overload shortens the
+ * interval between requests by an eighth, but at least a fixed step, and,
+ * once per window, widens the number of pages that may be in flight by one.
+ * A 503 or a response that takes much longer than usual doubles the
+ * interval and halves the window. Slow responses count towards the usual
+ * latency too, so a lasting change in response time, e.g. between the verbs
+ * of an endpoint, becomes the usual one after a few responses, and at most
+ * {@link #MAX_SLOW_DECREASES} of them in a row slow the pace down. A
+ * Retry-After additionally holds back the next request for the time asked.
+ * The interval, window and usual latency are persisted between runs, so the
+ * next harvest of the endpoint starts at the pace learned.
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.NONE)
+public class PaceController {
+
+    private static final Logger logger = LogManager.getLogger(PaceController.class);
+
+    // the least the interval shrinks by per good response (ms), it shrinks
+    // by an eighth when that is more, so even MAX_INTERVAL recovers within
+    // some 50 responses
+    static final long STEP = 50;
+    // the interval the first decrease starts from (ms)
+    static final long MIN_BACKOFF = 250;
+    static final long MAX_INTERVAL = 60000;
+    // a response is slow if it takes this many times the usual latency
+    static final double SLOW_FACTOR = 3.0;
+    // weight of a new sample in the usual latency
+    static final double SMOOTHING = 0.2;
+    // the number of slow responses in a row that decrease the pace
+    static final int MAX_SLOW_DECREASES = 3;
+
+    // interval between the start of requests (ms)
+    private long interval = 0;
+    // the number of pages allowed in flight, 0 if not learned yet
+    private int window = 0;
+    // the usual latency (ms), 0 if not known yet
+    private double latency = 0;
+
+    private int windowLimit = 0;
+    private int good = 0;
+    private int slow = 0;
+    // the earliest time the next request may start (nanoTime)
+    private long next;
+    private boolean started = false;
+
+    @XmlElement
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    public synchronized void setInterval(long interval) {
+        this.interval = Math.max(0, Math.min(MAX_INTERVAL, interval));
+    }
+
+    @XmlElement
+    public synchronized int getWindow() {
+        return window;
+    }
+
+    public synchronized void setWindow(int window) {
+        this.window = Math.max(0, window);
+    }
+
+    @XmlElement
+    public synchronized double getLatency() {
+        return latency;
+    }
+
+    public synchronized void setLatency(double latency) {
+        this.latency = Math.max(0, latency);
+    }
+
+    /**
+     * Get the number of pages allowed in flight.
+     *
+     * @param limit the configured maximum
+     * @return the current window, at most limit
+     */
+    public synchronized int getWindow(int limit) {
+        windowLimit = limit;
+        if (window <= 0 || window > limit)
+            window = limit;
+        return window;
+    }
+
+    /**
+     * Wait until the next request may start, and claim that slot.
+     *
+     * @throws InterruptedException interrupted while waiting
+     */
+    public void await() throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long at = (!started || next - now < 0) ? now : next;
+            started = true;
+            next = at + TimeUnit.MILLISECONDS.toNanos(interval);
+            wait = at - now;
+        }
+        if (wait > 0)
+            ExecutionSlots.sleep(wait, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Account for a response that was received.
+     *
+     * @param nanos the time until the response arrived
+     */
+    public synchronized void onResponse(long nanos) {
+        double ms = nanos / 1e6;
+        boolean isSlow = latency > 0 && ms > SLOW_FACTOR * latency;
+        latency = (latency == 0) ? ms : (1 - SMOOTHING) * latency + SMOOTHING * ms;
+        if (isSlow) {
+            logger.debug("slow response[" + Math.round(ms) + "ms], usual now[" + Math.round(latency) + "ms]");
+            if (++slow <= MAX_SLOW_DECREASES)
+                decrease();
+            return;
+        }
+        slow = 0;
+        interval = Math.max(0, interval - Math.max(STEP, interval / 8));
+        if (window > 0 && ++good >= window) {
+            good = 0;
+            if (window < windowLimit)
+                window++;
+        }
+    }
+
+    /**
+     * Account for a 503 response.
+     *
+     * @param retryAfter the number of seconds the server asked to wait, 0 or
+     *                   less if it didn't say
+     */
+    public synchronized void onThrottle(long retryAfter) {
+        decrease();
+        if (retryAfter > 0) {
+            long at = System.nanoTime() + TimeUnit.SECONDS.toNanos(retryAfter);
+            if (!started || at - next > 0)
+                next = at;
+            started = true;
+        }
+    }
+
+    private void decrease() {
+        interval = Math.min(MAX_INTERVAL, Math.max(MIN_BACKOFF, interval * 2));
+        if (window > 0)
+            window = Math.max(1, window / 2);
+        good = 0;
+        logger.debug("decreased pace to " + this);
+    }
+
+    public void persist(Path file) {
+        try {
+            Files.createDirectories(file.getParent());
+            JAXB.marshal(this, file.toFile());
+        } catch (IOException e) {
+            logger.error(e);
+        }
+    }
+
+    public static Optional<PaceController> load(Path path) {
+        if (Files.exists(path)) {
+            return Optional.of(JAXB.unmarshal(path.toFile(), PaceController.class));
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "interval[" + interval + "ms] window[" + window + "] latency[" + Math.round(latency) + "ms]";
+    }
+}
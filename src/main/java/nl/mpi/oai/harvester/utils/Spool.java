@@ -0,0 +1,163 @@
+package nl.mpi.oai.harvester.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A temp file a response is kept in, mapped into memory. Every reader of the
+ * response gets a view of its own, see {@link ByteBufferInputStream}, so
+ * there is no need to reset a shared stream.
+ * <p>
+ * The file is reused for the next response, and only grown when a response
+ * doesn't fit, so it is neither truncated nor mapped again per response. The
+ * views of a response are valid until the next response is spooled, the
+ * temp files are rotated such that a response is processed by then.
+ */
+public class Spool {
+    private static final Logger logger = LogManager.getLogger(Spool.class);
+
+    /** The spools by file, e.g. the temp files of the providers. */
+    private static final Map<Path, Spool> spools = new HashMap<>();
+
+    private static final int INITIAL_SIZE = 1024 * 1024;
+
+    private final Path file;
+    private final FileChannel channel;
+    private MappedByteBuffer map = null;
+    // earlier, smaller, mappings might still be viewed, they are unmapped on close
+    private final List<MappedByteBuffer> maps = new ArrayList<>();
+    private byte[] transfer = null;
+
+    Spool(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Get the spool of a file, it is created if needed.
+     *
+     * @param file the file
+     * @return the spool
+     * @throws IOException the file couldn't be opened
+     */
+    public static Spool of(Path file) throws IOException {
+        synchronized (spools) {
+            Spool spool = spools.get(file);
+            if (spool == null) {
+                spool = new Spool(file);
+                spools.put(file, spool);
+            }
+            return spool;
+        }
+    }
+
+    /**
+     * Unmap the spool of a file, if there is one, and delete the file. No
+     * view of it may be used afterwards.
+     *
+     * @param file the file
+     */
+    public static void close(Path file) {
+        Spool spool;
+        synchronized (spools) {
+            spool = spools.remove(file);
+        }
+        if (spool != null)
+            spool.close();
+    }
+
+    /**
+     * Read a response into the spool, replacing the previous one.
+     *
+     * @param in the response, it is read up to its end but not closed
+     * @return a read-only view of the response
+     * @throws IOException the response couldn't be read or spooled
+     */
+    public synchronized ByteBuffer fill(InputStream in) throws IOException {
+        // the file might have been truncated meanwhile, e.g. by a streamed
+        // response, writing to a mapping beyond its end would crash
+        if (map != null && channel.size() < map.capacity()) {
+            int size = map.capacity();
+            map = null;
+            grow(size);
+        }
+        if (map == null)
+            grow(INITIAL_SIZE);
+        if (transfer == null)
+            transfer = new byte[64 * 1024];
+        int length = 0;
+        int n;
+        map.position(0);
+        while ((n = in.read(transfer)) >= 0) {
+            if (length + n > map.capacity()) {
+                grow((long) length + n);
+                map.position(length);
+            }
+            map.put(transfer, 0, n);
+            length += n;
+        }
+        ByteBuffer page = map.duplicate();
+        page.position(0).limit(length);
+        return page.slice().asReadOnlyBuffer();
+    }
+
+    private void grow(long needed) throws IOException {
+        long size = map == null ? 0 : map.capacity();
+        while (size < needed)
+            size = Math.max(INITIAL_SIZE, size * 2);
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("response too large to spool in " + file);
+        // mapping beyond the end grows the file
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        maps.add(map);
+        logger.debug("mapped spool[" + file + "] of [" + size + "] bytes");
+    }
+
+    /**
+     * @return the number of bytes mapped
+     */
+    public synchronized int getCapacity() {
+        return map == null ? 0 : map.capacity();
+    }
+
+    synchronized void close() {
+        for (MappedByteBuffer m : maps)
+            unmap(m);
+        maps.clear();
+        map = null;
+        try {
+            channel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            logger.error(ex.getMessage());
+        }
+    }
+
+    // there's no API to unmap a buffer, otherwise the garbage collector does it
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            logger.debug("couldn't unmap the spool, left to the garbage collector: " + ex.getMessage());
+        }
+    }
+}
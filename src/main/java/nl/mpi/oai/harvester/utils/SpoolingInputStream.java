@@ -0,0 +1,108 @@
+package nl.mpi.oai.harvester.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * InputStream that passes the bytes of another stream, typically a network
+ * response, on as they arrive, while keeping a copy of them in a spool file.
+ * A reset rewinds to the mark: the bytes read before are then served from the
+ * spool, after which reading continues from the source again. So a response
+ * can be parsed while it is still coming in, and still be read multiple times.
+ */
+public class SpoolingInputStream extends InputStream {
+
+    private final InputStream source;
+    private final FileChannel spool;
+    /* number of bytes in the spool */
+    private long length = 0;
+    private long position = 0;
+    private long mark = 0;
+    private boolean eof = false;
+
+    /**
+     * @param source the stream to read
+     * @param spool the file to keep a copy in, it will be truncated
+     * @throws IOException the spool couldn't be opened
+     */
+    public SpoolingInputStream(InputStream source, Path spool) throws IOException {
+        this.source = source;
+        this.spool = FileChannel.open(spool, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n;
+        do {
+            n = read(b, 0, 1);
+        } while (n == 0);
+        return n < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (position < length) {
+            int n = spool.read(ByteBuffer.wrap(b, off, (int) Math.min(len, length - position)), position);
+            position += n;
+            return n;
+        }
+        if (eof)
+            return -1;
+        int n = source.read(b, off, len);
+        if (n < 0) {
+            eof = true;
+            return -1;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(b, off, n);
+        while (buf.hasRemaining())
+            length += spool.write(buf, length);
+        position = length;
+        return n;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        if (position < length)
+            return (int) Math.min(Integer.MAX_VALUE, length - position);
+        return eof ? 0 : source.available();
+    }
+
+    /**
+     * @return true if the source has been read completely
+     */
+    public synchronized boolean isComplete() {
+        return eof;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        position = mark;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            source.close();
+        } finally {
+            spool.close();
+        }
+    }
+}
@@ -32,6 +32,8 @@ public class Statistic {
     private long deleted = 0;
 
     private long harvestStartTime;
+    // the harvest time of a finished harvest, e.g. one loaded from file
+    private Long harvestTime = null;
 
     public Statistic(){
         this(new Date());
@@ -42,11 +44,26 @@ public Statistic(Date date){
         dateGathered = formatter.format(date);
     }
 
-    public void incRecordCount(int increment){
+    /**
+     * Start timing the harvest now, instead of at creation.
+     */
+    public void start(){
+        harvestStartTime = System.currentTimeMillis();
+        harvestTime = null;
+    }
+
+    /**
+     * Stop timing the harvest, the harvest time doesn't change from now on.
+     */
+    public void stop(){
+        harvestTime = getHarvestTime();
+    }
+
+    public synchronized void incRecordCount(int increment){
         records += increment;
     }
 
-    public void incRequestCount(){
+    public synchronized void incRequestCount(){
         requests++;
     }
 
@@ -70,10 +87,16 @@ public void setRequests(long requests){
 
     @XmlElement(name="harvestTimeSec")
     public long getHarvestTime() {
+        if (harvestTime != null)
+            return harvestTime;
         long harvestFinishTime = System.currentTimeMillis();
         return (harvestFinishTime - harvestStartTime)/1000;
     }
 
+    public void setHarvestTime(long seconds){
+        this.harvestTime = seconds;
+    }
+
     public void setDateGathered(String date) throws ParseException {
         final Date d = formatter.parse(date);
         dateGathered = formatter.format(d);
@@ -110,7 +133,7 @@ public static Optional<Statistic> load(Path path) {
         return Optional.empty();
     }
 
-    public void incDeletedCount() {
+    public synchronized void incDeletedCount() {
         deleted++;
     }
 }
@@ -0,0 +1,110 @@
+package nl.mpi.oai.harvester.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the threads the harvesting runs on: platform threads by default,
+ * or virtual threads once enabled. Virtual threads are looked up
+ * reflectively, so the harvester still builds for and runs on Java 11; on a
+ * JVM without them enabling falls back to platform threads.
+ */
+public final class Threads {
+
+    private static final Logger logger = LogManager.getLogger(Threads.class);
+
+    private static final Method newVirtualExecutor;
+    private static final Method ofVirtual;
+    private static final Method builderName;
+    private static final Method builderUnstarted;
+
+    static {
+        Method executor = null, of = null, name = null, unstarted = null;
+        try {
+            executor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            of = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+            // preview releases have the methods, but refuse to use them
+            ((ExecutorService) executor.invoke(null)).shutdown();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            executor = null;
+        }
+        newVirtualExecutor = executor;
+        ofVirtual = of;
+        builderName = name;
+        builderUnstarted = unstarted;
+    }
+
+    private static volatile boolean virtual = false;
+
+    private Threads() {
+    }
+
+    /**
+     * @return true if this JVM supports virtual threads
+     */
+    public static boolean isVirtualSupported() {
+        return newVirtualExecutor != null;
+    }
+
+    /**
+     * Use virtual threads from now on, if this JVM supports them.
+     *
+     * @param enabled true to use virtual threads
+     * @return true if virtual threads are used
+     */
+    public static boolean setVirtual(boolean enabled) {
+        if (enabled && !isVirtualSupported()) {
+            logger.warn("virtual threads are not supported by Java " + System.getProperty("java.version")
+                    + ", using platform threads");
+        }
+        virtual = enabled && isVirtualSupported();
+        return virtual;
+    }
+
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return an executor starting a new thread per task, reusing idle
+     *         platform threads if virtual threads are not used
+     */
+    public static ExecutorService newExecutor() {
+        if (virtual) {
+            try {
+                return (ExecutorService) newVirtualExecutor.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                logger.error("couldn't create a virtual thread executor", e);
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Create a thread that doesn't keep the JVM alive.
+     *
+     * @param task the task to run
+     * @param name the thread name
+     * @return the unstarted thread
+     */
+    public static Thread newThread(Runnable task, String name) {
+        if (virtual) {
+            try {
+                Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+                return (Thread) builderUnstarted.invoke(builder, task);
+            } catch (ReflectiveOperationException e) {
+                logger.error("couldn't create a virtual thread", e);
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,98 @@
+package nl.mpi.oai.harvester;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import nl.mpi.oai.harvester.control.Configuration;
+import nl.mpi.oai.harvester.control.Main;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.Assert.*;
+
+public class IdentifyCacheTest {
+
+    private static final String NAME = "CLARIN Centre Vienna / Language Resources Portal";
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(options().dynamicPort());
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        Main.config = new Configuration();
+        Main.config.setOption("workdir", folder.getRoot().getPath());
+    }
+
+    @After
+    public void tearDown() {
+        Main.config = null;
+    }
+
+    private String url() {
+        return "http://localhost:" + wireMockRule.port() + "/oai";
+    }
+
+    private static String identify() throws IOException {
+        try (InputStream in = IdentifyCacheTest.class.getResourceAsStream("/response-Identify.xml")) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+    }
+
+    // a provider as it is created at the start of a run
+    private Provider provider() throws Exception {
+        return new Provider(url(), 1, new int[]{0});
+    }
+
+    @Test
+    public void testSingleRequestPerRun() throws Exception {
+        stubFor(get(urlPathEqualTo("/oai")).willReturn(aResponse().withStatus(200).withBody(identify())));
+        Provider provider = provider();
+        assertEquals(NAME, provider.getProviderName());
+        assertEquals(Provider.DeletionMode.PERSISTENT, provider.getProviderDeletionMode());
+        assertArrayEquals(new String[]{"2013-01-01T00:00:00Z", "YYYY-MM-DDThh:mm:ssZ"},
+                provider.getProviderDatestamps());
+        verify(1, getRequestedFor(urlPathEqualTo("/oai")).withQueryParam("verb", equalTo("Identify")));
+    }
+
+    @Test
+    public void testRevalidation() throws Exception {
+        stubFor(get(urlPathEqualTo("/oai")).withHeader("If-None-Match", equalTo("\"v1\""))
+                .willReturn(aResponse().withStatus(304)));
+        stubFor(get(urlPathEqualTo("/oai")).withHeader("If-None-Match", absent())
+                .willReturn(aResponse().withStatus(200).withHeader("ETag", "\"v1\"").withBody(identify())));
+
+        assertEquals(NAME, provider().getProviderName());
+        // the next run asks whether the response changed, and reuses it
+        assertEquals(NAME, provider().getProviderName());
+        verify(1, getRequestedFor(urlPathEqualTo("/oai")).withHeader("If-None-Match", absent()));
+        verify(1, getRequestedFor(urlPathEqualTo("/oai")).withHeader("If-None-Match", equalTo("\"v1\"")));
+    }
+
+    @Test
+    public void testFallbackWhenUnreachable() throws Exception {
+        stubFor(get(urlPathEqualTo("/oai")).willReturn(aResponse().withStatus(200).withBody(identify())));
+        assertEquals(NAME, provider().getProviderName());
+
+        wireMockRule.resetAll();
+        stubFor(get(urlPathEqualTo("/oai")).willReturn(aResponse().withStatus(500)));
+        assertEquals(NAME, provider().getProviderName());
+    }
+
+    @Test
+    public void testNoCacheWithoutResponse() throws Exception {
+        stubFor(get(urlPathEqualTo("/oai")).willReturn(aResponse().withStatus(500)));
+        assertNull(provider().getProviderName());
+        assertNull(provider().getProviderDeletionMode());
+    }
+}
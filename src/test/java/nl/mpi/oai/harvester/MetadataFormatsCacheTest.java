@@ -0,0 +1,90 @@
+package nl.mpi.oai.harvester;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import nl.mpi.oai.harvester.action.ActionSequence;
+import nl.mpi.oai.harvester.control.Configuration;
+import nl.mpi.oai.harvester.control.Main;
+import nl.mpi.oai.harvester.metadata.MetadataFormat;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.Assert.*;
+
+public class MetadataFormatsCacheTest {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(options().dynamicPort());
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        Main.config = new Configuration();
+        Main.config.setOption("workdir", folder.getRoot().getPath());
+    }
+
+    @After
+    public void tearDown() {
+        Main.config = null;
+    }
+
+    private static String formats() throws IOException {
+        try (InputStream in = MetadataFormatsCacheTest.class.getResourceAsStream("/response-ListMetadataFormats.xml")) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+    }
+
+    // a provider as it is created at the start of a run
+    private Provider provider() throws Exception {
+        Provider provider = new Provider("http://localhost:" + wireMockRule.port() + "/oai", 1, new int[]{0});
+        provider.setName("MetadataFormatsCacheTest");
+        return provider;
+    }
+
+    private static ActionSequence sequence(String prefix) {
+        return new ActionSequence(new MetadataFormat("prefix", prefix));
+    }
+
+    @Test
+    public void testSharedByActionSequences() throws Exception {
+        stubFor(get(urlPathEqualTo("/oai")).willReturn(aResponse().withStatus(200).withBody(formats())));
+        Provider provider = provider();
+        assertTrue(provider.supports(sequence("oai_dc")));
+        assertTrue(provider.supports(sequence("cmdi_lexRes")));
+        assertFalse(provider.supports(sequence("no_such_prefix")));
+        verify(1, getRequestedFor(urlPathEqualTo("/oai")));
+    }
+
+    @Test
+    public void testCachedWithinTtl() throws Exception {
+        stubFor(get(urlPathEqualTo("/oai")).willReturn(aResponse().withStatus(200).withBody(formats())));
+        assertTrue(provider().supports(sequence("oai_dc")));
+        assertTrue(provider().supports(sequence("oai_dc")));
+        verify(1, getRequestedFor(urlPathEqualTo("/oai")));
+    }
+
+    @Test
+    public void testRevalidatedAfterTtl() throws Exception {
+        Main.config.setOption("formats-ttl", "0");
+        stubFor(get(urlPathEqualTo("/oai")).withHeader("If-None-Match", equalTo("\"v1\""))
+                .willReturn(aResponse().withStatus(304)));
+        stubFor(get(urlPathEqualTo("/oai")).withHeader("If-None-Match", absent())
+                .willReturn(aResponse().withStatus(200).withHeader("ETag", "\"v1\"").withBody(formats())));
+
+        assertTrue(provider().supports(sequence("oai_dc")));
+        assertTrue(provider().supports(sequence("oai_dc")));
+        verify(1, getRequestedFor(urlPathEqualTo("/oai")).withHeader("If-None-Match", absent()));
+        verify(1, getRequestedFor(urlPathEqualTo("/oai")).withHeader("If-None-Match", equalTo("\"v1\"")));
+    }
+}
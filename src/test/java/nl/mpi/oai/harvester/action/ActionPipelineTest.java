@@ -0,0 +1,193 @@
+package nl.mpi.oai.harvester.action;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.metadata.Metadata;
+import nl.mpi.oai.harvester.metadata.MetadataFormat;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+public class ActionPipelineTest {
+
+    private static class Recording implements Action {
+        private final String name;
+        private final Set<String> seen;
+        private final Predicate<String> ok;
+        private final long delay;
+
+        Recording(String name, Set<String> seen, Predicate<String> ok, long delay) {
+            this.name = name;
+            this.seen = seen;
+            this.ok = ok;
+            this.delay = delay;
+        }
+
+        @Override
+        public boolean perform(List<Metadata> records) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            String id = records.get(0).getId();
+            if (name.equals("save") && !seen.contains("transform:" + id))
+                throw new IllegalStateException("saved before transformed: " + id);
+            seen.add(name + ":" + id);
+            if (id.equals("boom"))
+                throw new IllegalStateException("boom");
+            return ok.test(id);
+        }
+
+        @Override
+        public Action clone() {
+            return new Recording(name, seen, ok, delay);
+        }
+    }
+
+    private final AtomicInteger closed = new AtomicInteger();
+
+    private Metadata record(String id) throws Exception {
+        ByteArrayInputStream in = new ByteArrayInputStream(new byte[0]) {
+            @Override
+            public void close() {
+                closed.incrementAndGet();
+            }
+        };
+        return new Metadata(id, "oai_dc", in, new Provider("https://example.com", 1, new int[]{1}), false, false);
+    }
+
+    private ActionSequence sequence(Set<String> seen, Predicate<String> ok) {
+        ActionSequence sequence = new ActionSequence(new MetadataFormat("prefix", "oai_dc"));
+        sequence.add(new Recording("transform", seen, ok, 20), 2, 2);
+        sequence.add(new Recording("save", seen, id -> true, 5), 1, 1);
+        return sequence;
+    }
+
+    @Test
+    public void testAllStages() throws Exception {
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        ActionPipeline pipeline = new ActionPipeline(sequence(seen, id -> !id.equals("bad")), 2, "test", null);
+        try {
+            for (int i = 0; i < 10; i++)
+                pipeline.submit(record("r" + i));
+            pipeline.submit(record("bad"));
+            pipeline.finish();
+        } finally {
+            pipeline.close();
+        }
+        for (int i = 0; i < 10; i++) {
+            assertTrue(seen.contains("transform:r" + i));
+            assertTrue(seen.contains("save:r" + i));
+        }
+        // a failed action ends the sequence for the record
+        assertTrue(seen.contains("transform:bad"));
+        assertFalse(seen.contains("save:bad"));
+        assertEquals(11, closed.get());
+        assertEquals(11, pipeline.getStages().get(0).getProcessed());
+        assertEquals(10, pipeline.getStages().get(1).getProcessed());
+        assertEquals(2, pipeline.getStages().get(0).getWorkers());
+        assertTrue(pipeline.getStages().get(0).getMaxQueued() <= 2);
+        // (2 + 2) + (2 + 1)
+        assertEquals(7, pipeline.getCapacity());
+    }
+
+    @Test
+    public void testOrderKept() throws Exception {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        ActionSequence sequence = new ActionSequence(new MetadataFormat("prefix", "oai_dc"));
+        // the earlier records take longer, so they finish last
+        sequence.add(new Action() {
+            @Override
+            public boolean perform(List<Metadata> records) {
+                try {
+                    Thread.sleep(40 - 10 * Integer.parseInt(records.get(0).getId().substring(1)) % 40);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return !records.get(0).getId().equals("r2");
+            }
+
+            @Override
+            public Action clone() {
+                return this;
+            }
+        }, 4, 4);
+        sequence.add(new Action() {
+            @Override
+            public boolean perform(List<Metadata> records) {
+                order.add(records.get(0).getId());
+                return true;
+            }
+
+            @Override
+            public Action clone() {
+                return this;
+            }
+        }, 1, 1);
+        ActionPipeline pipeline = new ActionPipeline(sequence, 4, "test", null);
+        try {
+            for (int i = 0; i < 12; i++)
+                pipeline.submit(record("r" + i));
+            pipeline.finish();
+        } finally {
+            pipeline.close();
+        }
+        // r2 failed, the others arrive in the order submitted
+        assertEquals(List.of("r0", "r1", "r3", "r4", "r5", "r6", "r7", "r8", "r9", "r10", "r11"), order);
+        assertEquals(12, closed.get());
+    }
+
+    @Test
+    public void testOrderSensitiveSingleWorker() {
+        assertTrue(new SaveAction(null, null, false, false).isOrderSensitive());
+        ActionSequence sequence = new ActionSequence(new MetadataFormat("prefix", "oai_dc"));
+        sequence.add(new Action() {
+            @Override
+            public boolean perform(List<Metadata> records) {
+                return true;
+            }
+
+            @Override
+            public boolean isOrderSensitive() {
+                return true;
+            }
+
+            @Override
+            public Action clone() {
+                return this;
+            }
+        }, 1, 4);
+        assertEquals(1, sequence.getWorkers(0));
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        ActionPipeline pipeline = new ActionPipeline(sequence(seen, id -> true), 1, "test", null);
+        int submitted = 0;
+        try {
+            // once the failure is seen, submit passes it on as well
+            for (int i = 0; i < 5; i++) {
+                submitted++;
+                pipeline.submit(record(i == 0 ? "boom" : "r" + i));
+            }
+            pipeline.finish();
+            fail("the failure wasn't passed on");
+        } catch (IllegalStateException e) {
+            assertEquals("boom", e.getMessage());
+        } finally {
+            pipeline.close();
+        }
+        assertFalse(seen.contains("save:boom"));
+        assertEquals(submitted, closed.get());
+    }
+}
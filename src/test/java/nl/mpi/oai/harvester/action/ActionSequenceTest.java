@@ -0,0 +1,238 @@
+package nl.mpi.oai.harvester.action;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.metadata.Metadata;
+import nl.mpi.oai.harvester.metadata.MetadataFormat;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ActionSequenceTest {
+
+    /**
+     * Records the content of the records it sees, and appends its name to
+     * it, like a transformation would.
+     */
+    private static class Appending implements Action {
+        private final String name;
+        private final Map<String, String> seen;
+        private final CountDownLatch together;
+
+        Appending(String name, Map<String, String> seen, CountDownLatch together) {
+            this.name = name;
+            this.seen = seen;
+            this.together = together;
+        }
+
+        @Override
+        public boolean perform(List<Metadata> records) {
+            if (together != null) {
+                // only passes if the branches run at the same time
+                together.countDown();
+                try {
+                    if (!together.await(5, TimeUnit.SECONDS))
+                        return false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            try {
+                for (int i = 0; i < records.size(); i++) {
+                    Metadata record = records.get(i);
+                    String content = IOUtils.toString(record.getStream(), StandardCharsets.UTF_8);
+                    seen.put(name, content);
+                    if (name.equals("boom"))
+                        throw new IllegalStateException("boom");
+                    records.set(i, new Metadata(record.getId(), record.getPrefix(),
+                            new ByteArrayInputStream((content + "+" + name).getBytes(StandardCharsets.UTF_8)),
+                            record.getOrigin(), false, false));
+                }
+            } catch (IOException e) {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public Action clone() {
+            return new Appending(name, seen, together);
+        }
+    }
+
+    /**
+     * Appends to each record on its own, and records the most instances
+     * performing at the same time.
+     */
+    private static class PerRecord extends Appending {
+        private final AtomicInteger running;
+        private final AtomicInteger most;
+
+        PerRecord(AtomicInteger running, AtomicInteger most) {
+            super("x", new ConcurrentHashMap<>(), null);
+            this.running = running;
+            this.most = most;
+        }
+
+        @Override
+        public boolean perform(List<Metadata> records) {
+            most.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+                return super.perform(records);
+            } catch (InterruptedException e) {
+                return false;
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        @Override
+        public boolean isRecordParallel() {
+            return true;
+        }
+
+        @Override
+        public Action clone() {
+            return new PerRecord(running, most);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        ActionSequence.setRecordJobs(1);
+    }
+
+    private static Metadata record(String content) throws Exception {
+        return new Metadata("id", "oai_dc", new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)),
+                new Provider("https://example.com", 1, new int[]{1}), false, false);
+    }
+
+    private static ActionSequence branch(Action... actions) {
+        ActionSequence branch = new ActionSequence(new MetadataFormat("prefix", "oai_dc"));
+        for (Action action : actions)
+            branch.add(action, 1);
+        return branch;
+    }
+
+    @Test
+    public void testBranchesGetTheSameRecords() throws Exception {
+        Map<String, String> seen = new ConcurrentHashMap<>();
+        CountDownLatch together = new CountDownLatch(2);
+        ActionSequence sequence = branch(new Appending("trunk", seen, null));
+        sequence.addBranch(branch(new Appending("raw", seen, together)));
+        sequence.addBranch(branch(new Appending("transform", seen, together),
+                new Appending("save", seen, null)));
+
+        sequence.runActions(new ArrayList<>(Collections.singletonList(record("r"))));
+
+        assertEquals("r", seen.get("trunk"));
+        assertEquals("r+trunk", seen.get("raw"));
+        assertEquals("r+trunk", seen.get("transform"));
+        assertEquals("r+trunk+transform", seen.get("save"));
+        assertTrue(sequence.toString().contains("|"));
+    }
+
+    @Test
+    public void testFailingBranch() throws Exception {
+        Map<String, String> seen = new ConcurrentHashMap<>();
+        ActionSequence sequence = branch();
+        sequence.addBranch(branch(new Appending("save", seen, null)));
+        sequence.addBranch(branch(new Appending("boom", seen, null)));
+
+        try {
+            sequence.runActions(new ArrayList<>(Collections.singletonList(record("r"))));
+            fail("the failure of the branch is passed on");
+        } catch (IllegalStateException e) {
+            assertEquals("boom", e.getMessage());
+        }
+        // the other branch still ran
+        assertEquals("r", seen.get("save"));
+    }
+
+    private static List<String> performPerRecord(int poolSize, AtomicInteger most) throws Exception {
+        ActionSequence sequence = new ActionSequence(new MetadataFormat("prefix", "oai_dc"));
+        sequence.add(new PerRecord(new AtomicInteger(), most), poolSize);
+        List<Metadata> records = new ArrayList<>();
+        for (int i = 0; i < 12; i++)
+            records.add(record("r" + i));
+        assertTrue(sequence.runAction(0, records));
+        List<String> contents = new ArrayList<>();
+        for (Metadata record : records)
+            contents.add(IOUtils.toString(record.getStream(), StandardCharsets.UTF_8));
+        return contents;
+    }
+
+    @Test
+    public void testInterruptedWhileWaiting() throws Exception {
+        // the only instance of the action is held until the latch opens
+        CountDownLatch together = new CountDownLatch(2);
+        ActionSequence sequence = branch(new Appending("slow", new ConcurrentHashMap<>(), together));
+        Thread holder = new Thread(() -> {
+            try {
+                sequence.runAction(0, new ArrayList<>(Collections.singletonList(record("a"))));
+            } catch (Exception ignored) {
+            }
+        });
+        holder.start();
+        while (together.getCount() == 2)
+            Thread.sleep(5);
+
+        AtomicInteger interrupted = new AtomicInteger();
+        Thread waiter = new Thread(() -> {
+            try {
+                sequence.runAction(0, new ArrayList<>(Collections.singletonList(record("b"))));
+            } catch (InterruptedException e) {
+                interrupted.incrementAndGet();
+            } catch (Exception ignored) {
+            }
+        });
+        waiter.start();
+        Thread.sleep(50);
+        waiter.interrupt();
+        waiter.join(1000);
+        assertFalse(waiter.isAlive());
+        assertEquals(1, interrupted.get());
+
+        together.countDown();
+        holder.join();
+        // the waiter gave nothing back that it didn't take
+        assertEquals(1, sequence.getActions().get(0).getNumAvailable());
+    }
+
+    @Test
+    public void testRecordsInParallel() throws Exception {
+        ActionSequence.setRecordJobs(4);
+        AtomicInteger most = new AtomicInteger();
+        List<String> contents = performPerRecord(3, most);
+
+        // the order of the page is kept
+        for (int i = 0; i < 12; i++)
+            assertEquals("r" + i + "+x", contents.get(i));
+        // bounded by the pool, not the record jobs
+        assertTrue(most.get() > 1);
+        assertTrue(most.get() <= 3);
+    }
+
+    @Test
+    public void testRecordsBoundedByPool() throws Exception {
+        ActionSequence.setRecordJobs(4);
+        AtomicInteger most = new AtomicInteger();
+        assertEquals(12, performPerRecord(1, most).size());
+        assertEquals(1, most.get());
+    }
+}
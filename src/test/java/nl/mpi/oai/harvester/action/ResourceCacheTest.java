@@ -0,0 +1,99 @@
+package nl.mpi.oai.harvester.action;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.xml.transform.stream.StreamSource;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.Assert.*;
+
+public class ResourceCacheTest {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(options().dynamicPort());
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Processor processor = new Processor(false);
+
+    @After
+    public void tearDown() {
+        ResourceCache.setMaxBytes(64L * 1024 * 1024);
+    }
+
+    private String serve(String path) {
+        stubFor(get(urlEqualTo(path)).willReturn(aResponse().withStatus(200).withFixedDelay(100)
+                .withBody("<component id=\"" + path + "\"/>")));
+        return "http://localhost:" + wireMockRule.port() + path;
+    }
+
+    @Test
+    public void testLoadedOnce() throws Exception {
+        String uri = serve("/component.xml");
+        Path dir = folder.newFolder("cache").toPath();
+        ResourceCache cache = new ResourceCache(dir, processor);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<XdmNode>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            futures.add(executor.submit(() -> cache.get(uri, () -> new StreamSource(uri))));
+        XdmNode node = futures.get(0).get();
+        for (Future<XdmNode> future : futures)
+            assertSame(node, future.get());
+        executor.shutdown();
+        verify(1, getRequestedFor(urlEqualTo("/component.xml")));
+
+        assertSame(node, cache.get(uri, () -> new StreamSource(uri)));
+        assertEquals(1, cache.getMisses());
+        assertTrue(cache.getMemoryHits() >= 1);
+
+        // no temporary files are left behind
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(1, files.count());
+        }
+
+        // another run finds it on disk
+        ResourceCache next = new ResourceCache(dir, processor);
+        XdmNode parsed = next.get(uri, () -> new StreamSource(uri));
+        assertEquals(1, next.getDiskHits());
+        assertEquals("/component.xml", parsed.axisIterator(Axis.CHILD).next()
+                .getAttributeValue(new QName("id")));
+        verify(1, getRequestedFor(urlEqualTo("/component.xml")));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        String a = serve("/a.xml");
+        String b = serve("/b.xml");
+        ResourceCache cache = new ResourceCache(folder.newFolder("cache").toPath(), processor);
+        // room for one of them
+        ResourceCache.setMaxBytes(100);
+
+        cache.get(a, () -> new StreamSource(a));
+        cache.get(b, () -> new StreamSource(b));
+        assertEquals(1, cache.getEvictions());
+
+        // a comes back from disk
+        cache.get(a, () -> new StreamSource(a));
+        assertEquals(1, cache.getDiskHits());
+        assertEquals(0, cache.getMemoryHits());
+    }
+}
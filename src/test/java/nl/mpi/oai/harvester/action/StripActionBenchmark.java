@@ -0,0 +1,103 @@
+package nl.mpi.oai.harvester.action;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.metadata.Metadata;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of {@link StripAction#perform} and {@link SplitAction#perform} for
+ * a streamed ListRecords page of Dublin Core records. Add {@code -prof gc}
+ * for the allocation per page; the difference between the page sizes gives
+ * the allocation per record.
+ * <p>
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=nl.mpi.oai.harvester.action.StripActionBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StripActionBenchmark {
+
+    @Param({"100", "1000"})
+    private int records;
+
+    private StripAction strip;
+    private SplitAction split;
+    private Provider provider;
+    private byte[] page;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        strip = new StripAction();
+        split = new SplitAction();
+        provider = new Provider("https://example.com/oai", 1, new int[]{1});
+        provider.setName("example");
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\""
+                + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n"
+                + "<responseDate>2024-01-01T00:00:00Z</responseDate>\n"
+                + "<request verb=\"ListRecords\" metadataPrefix=\"oai_dc\">https://example.com/oai</request>\n"
+                + "<ListRecords>\n");
+        for (int i = 0; i < records; i++) {
+            sb.append("<record><header><identifier>oai:example:").append(i).append("</identifier>")
+                    .append("<datestamp>2024-01-01</datestamp><setSpec>set</setSpec></header><metadata>\n")
+                    .append("<oai_dc:dc xmlns:oai_dc=\"http://www.openarchives.org/OAI/2.0/oai_dc/\"")
+                    .append(" xmlns:dc=\"http://purl.org/dc/elements/1.1/\"")
+                    .append(" xsi:schemaLocation=\"http://www.openarchives.org/OAI/2.0/oai_dc/")
+                    .append(" http://www.openarchives.org/OAI/2.0/oai_dc.xsd\">\n");
+            for (int j = 0; j < 10; j++)
+                sb.append("  <dc:subject>Subject ").append(j).append(" of record ").append(i)
+                        .append(", with some more words</dc:subject>\n");
+            sb.append("</oai_dc:dc>\n</metadata></record>\n");
+        }
+        sb.append("<resumptionToken cursor=\"0\" completeListSize=\"1000\">token</resumptionToken>\n"
+                + "</ListRecords></OAI-PMH>\n");
+        page = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private List<Metadata> page() {
+        List<Metadata> list = new ArrayList<>(records);
+        list.add(new Metadata("page", "oai_dc", new ByteArrayInputStream(page), provider, true, true));
+        return list;
+    }
+
+    private List<Metadata> check(List<Metadata> list) {
+        if (list.size() != records)
+            throw new IllegalStateException("found " + list.size() + " records");
+        return list;
+    }
+
+    @Benchmark
+    public List<Metadata> strip() {
+        List<Metadata> records = page();
+        strip.perform(records);
+        return check(records);
+    }
+
+    @Benchmark
+    public List<Metadata> split() {
+        List<Metadata> records = page();
+        split.perform(records);
+        return check(records);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(StripActionBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
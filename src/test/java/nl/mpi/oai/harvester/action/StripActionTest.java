@@ -36,6 +36,28 @@ public void performOnStreamRespectsDeleted() throws ParserConfigurationException
         assertEquals("There should be a deleted record", 1, provider.deletedCount());
     }
 
+    @Test
+    public void performOnStreamCollectsEnvelope() throws ParserConfigurationException {
+        String envelope = "<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\"><ListRecords>"
+                + "<record><header><identifier>oai:test:1</identifier></header><metadata><test>1</test></metadata></record>"
+                + "<resumptionToken cursor=\"0\" completeListSize=\"42\"> token-1 </resumptionToken>"
+                + "</ListRecords></OAI-PMH>";
+        List<Metadata> records = new ArrayList<>();
+        Provider provider = new Provider("https://example.com", 1, new int[] {1});
+
+        ByteArrayInputStream docStream = new ByteArrayInputStream(envelope.getBytes(StandardCharsets.UTF_8));
+        Metadata md = new Metadata("test_id", "oai_dc", docStream, provider, true, true);
+        records.add(md);
+
+        Action strip = new StripAction();
+        strip.perform(records);
+        assertEquals(1, records.size());
+        assertTrue(md.getEnvelope().isComplete());
+        assertEquals("token-1", md.getEnvelope().getResumptionToken());
+        assertEquals(Long.valueOf(0), md.getEnvelope().getCursor());
+        assertEquals(Long.valueOf(42), md.getEnvelope().getCompleteListSize());
+    }
+
     @Test
     public void performOnDocRespectsDeleted() throws ParserConfigurationException, IOException, SAXException {
         List<Metadata> records = new ArrayList<>();
@@ -0,0 +1,78 @@
+package nl.mpi.oai.harvester.action;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.metadata.Metadata;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of {@link TransformAction#perform} for a page of small records of
+ * a single provider, with the configuration as the config parameter: what
+ * is left besides the transformation itself.
+ * <p>
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=nl.mpi.oai.harvester.action.TransformActionBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformActionBenchmark {
+
+    private static final int RECORDS = 100;
+
+    private TransformAction action;
+    private Provider provider;
+    private byte[] record;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Document config;
+        try (InputStream in = getClass().getResourceAsStream("/config/test-config-it.xml")) {
+            config = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+        }
+        action = new TransformAction(config.getDocumentElement(),
+                getClass().getResource("/identity.xsl").getPath(), null, 1);
+        provider = new Provider("https://example.com/oai", 1, new int[]{1});
+        provider.setName("example");
+        record = ("<cmd:CMD xmlns:cmd=\"http://www.clarin.eu/cmd/1\"><cmd:Header><cmd:MdSelfLink>x</cmd:MdSelfLink>"
+                + "</cmd:Header></cmd:CMD>").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private List<Metadata> page() {
+        List<Metadata> records = new ArrayList<>(RECORDS);
+        for (int i = 0; i < RECORDS; i++)
+            records.add(new Metadata("oai:example:" + i, "cmdi", new ByteArrayInputStream(record), provider,
+                    false, false));
+        return records;
+    }
+
+    @Benchmark
+    public List<Metadata> perform() {
+        List<Metadata> records = page();
+        if (!action.perform(records))
+            throw new IllegalStateException("transformation failed");
+        return records;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(TransformActionBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
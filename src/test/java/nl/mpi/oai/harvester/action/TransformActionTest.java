@@ -0,0 +1,174 @@
+package nl.mpi.oai.harvester.action;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.control.OutputDirectory;
+import nl.mpi.oai.harvester.control.ResourcePool;
+import nl.mpi.oai.harvester.metadata.Metadata;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class TransformActionTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String RECORD = "<cmd:CMD xmlns:cmd=\"http://www.clarin.eu/cmd/1\"><cmd:Header/></cmd:CMD>";
+
+    private TransformAction transform() throws Exception {
+        Document config = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        config.appendChild(config.createElement("config"));
+        return new TransformAction(config.getDocumentElement(), getClass().getResource("/identity.xsl").getPath(),
+                null, 1);
+    }
+
+    private static List<Metadata> records() throws Exception {
+        Provider provider = new Provider("https://example.com", 1, new int[]{1});
+        provider.setName("example");
+        return new ArrayList<>(Collections.singletonList(new Metadata("oai:example:1", "cmdi",
+                new ByteArrayInputStream(RECORD.getBytes(StandardCharsets.UTF_8)), provider, false, false)));
+    }
+
+    @Test
+    public void testChainedWithoutDom() throws Exception {
+        List<Metadata> records = records();
+        TransformAction transform = transform();
+        assertTrue(transform.perform(records));
+        assertTrue(records.get(0).hasNode());
+        assertTrue(transform.perform(records));
+        assertTrue(records.get(0).hasNode());
+
+        Path dir = folder.newFolder("out").toPath();
+        assertTrue(new SaveAction(new OutputDirectory(dir, 0), ".xml", false, false).perform(records));
+        String saved;
+        try (Stream<Path> files = Files.list(dir)) {
+            saved = new String(Files.readAllBytes(files.findFirst().get()), StandardCharsets.UTF_8);
+        }
+        assertTrue(saved.contains("<cmd:Header"));
+    }
+
+    @Test
+    public void testDomOnDemand() throws Exception {
+        List<Metadata> records = records();
+        assertTrue(transform().perform(records));
+        Metadata copy = records.get(0).copy();
+
+        // an action asking for a DOM tree still gets one
+        Document doc = records.get(0).getDoc();
+        assertEquals("http://www.clarin.eu/cmd/1", doc.getDocumentElement().getNamespaceURI());
+        assertEquals("Header", doc.getDocumentElement().getFirstChild().getLocalName());
+        assertFalse(records.get(0).hasNode());
+        assertTrue(records.get(0).hasDoc());
+
+        // the copy shares the Saxon tree
+        assertTrue(copy.hasNode());
+    }
+
+    private String stylesheet(String name, String template) throws Exception {
+        Path file = folder.newFile(name).toPath();
+        Files.write(file, ("<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"2.0\">\n"
+                + "  <xsl:param name=\"provider_name\"/>\n"
+                + "  <xsl:param name=\"record_identifier\"/>\n"
+                + template
+                + "</xsl:stylesheet>\n").getBytes(StandardCharsets.UTF_8));
+        return file.toString();
+    }
+
+    @Test
+    public void testChain() throws Exception {
+        Document config = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        config.appendChild(config.createElement("config"));
+        TransformAction first = new TransformAction(config.getDocumentElement(), stylesheet("first.xsl",
+                "  <xsl:template match=\"/\"><first provider=\"{$provider_name}\"><xsl:copy-of select=\"*\"/></first></xsl:template>\n"),
+                null, 1);
+        TransformAction second = new StaticParamTransformAction(config.getDocumentElement(), stylesheet("second.xsl",
+                "  <xsl:template match=\"/\"><second id=\"{$record_identifier}\"><xsl:copy-of select=\"*\"/></second></xsl:template>\n"),
+                null, 1);
+        TransformChainAction chain = new TransformChainAction(Arrays.asList(first, second));
+
+        List<Metadata> records = records();
+        assertTrue(chain.perform(records));
+        Document doc = records.get(0).getDoc();
+        // both steps got their parameters
+        assertEquals("oai:example:1", doc.getDocumentElement().getAttribute("id"));
+        assertEquals("example", ((Element) doc.getDocumentElement().getFirstChild()).getAttribute("provider"));
+        assertEquals("CMD", doc.getDocumentElement().getFirstChild().getFirstChild().getLocalName());
+
+        TransformChainAction clone = (TransformChainAction) chain.clone();
+        assertEquals(chain, clone);
+        assertNotSame(chain.getTransforms().get(0), clone.getTransforms().get(0));
+    }
+
+    @Test
+    public void testReusedForProviders() throws Exception {
+        Document config = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        config.appendChild(config.createElement("config")).appendChild(config.createElement("name"))
+                .setTextContent("harvest");
+        String xsl = stylesheet("params.xsl", "  <xsl:param name=\"config\"/>\n"
+                + "  <xsl:template match=\"/\"><out config=\"{$config//name}\" provider=\"{$provider_name}\""
+                + " id=\"{$record_identifier}\"/></xsl:template>\n");
+        TransformAction transform = new TransformAction(config.getDocumentElement(), xsl, null, 1);
+        TransformChainAction chain = new TransformChainAction(Arrays.asList(
+                new TransformAction(config.getDocumentElement(), xsl, null, 1),
+                new TransformAction(config.getDocumentElement(), getClass().getResource("/identity.xsl").getPath(),
+                        null, 1)));
+
+        // the same transformer serves records of different providers
+        for (String name : Arrays.asList("first", "second", "second", "first")) {
+            Provider provider = new Provider("https://example.com/" + name, 1, new int[]{1});
+            provider.setName(name);
+            for (Action action : Arrays.asList(transform, chain)) {
+                List<Metadata> records = new ArrayList<>(Collections.singletonList(new Metadata("oai:" + name, "cmdi",
+                        new ByteArrayInputStream(RECORD.getBytes(StandardCharsets.UTF_8)), provider, false, false)));
+                assertTrue(action.perform(records));
+                Element out = records.get(0).getDoc().getDocumentElement();
+                assertEquals("harvest", out.getAttribute("config"));
+                assertEquals(name, out.getAttribute("provider"));
+                assertEquals("oai:" + name, out.getAttribute("id"));
+            }
+        }
+    }
+
+    @Test
+    public void testChainSharesPools() throws Exception {
+        Document config = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        config.appendChild(config.createElement("config"));
+        TransformAction first = new TransformAction(config.getDocumentElement(), stylesheet("shared.xsl",
+                "  <xsl:template match=\"/\"><shared><xsl:copy-of select=\"*\"/></shared></xsl:template>\n"),
+                null, 1);
+        TransformAction second = transform();
+        ResourcePool<Action> shared = new ResourcePool<>(new Action[]{first});
+        TransformChainAction chain = new TransformChainAction(Arrays.asList(first, second));
+        chain.setPools(Arrays.asList(shared, new ResourcePool<>(new Action[]{second})));
+        assertEquals(chain, chain.clone());
+
+        // the only instance of the stylesheet is in use elsewhere
+        Action taken = shared.get();
+        List<Metadata> records = records();
+        CompletableFuture<Boolean> done = CompletableFuture.supplyAsync(() -> chain.clone().perform(records));
+        Thread.sleep(200);
+        assertFalse(done.isDone());
+
+        shared.release(taken);
+        assertTrue(done.get(10, TimeUnit.SECONDS));
+        assertEquals("shared", records.get(0).getDoc().getDocumentElement().getLocalName());
+        assertEquals(1, shared.getNumAvailable());
+    }
+}
@@ -0,0 +1,113 @@
+package nl.mpi.oai.harvester.action;
+
+import net.sf.saxon.s9api.DOMDestination;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmDestination;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares two chained transformations of a record followed by saving it,
+ * with the record passed on as a DOM tree (as it was) and as a Saxon tree.
+ * <p>
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=nl.mpi.oai.harvester.action.TransformBenchmark
+ * <p>
+ * The allocation per record is reported by the gc profiler, e.g. by adding
+ * {@code -prof gc} when running via {@code org.openjdk.jmh.Main}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformBenchmark {
+
+    @Param({"100"})
+    public int elements;
+
+    private byte[] record;
+    private XsltExecutable executable;
+    private Processor processor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        StringBuilder sb = new StringBuilder("<cmd:CMD xmlns:cmd=\"http://www.clarin.eu/cmd/1\"><cmd:Components>");
+        for (int i = 0; i < elements; i++)
+            sb.append("<cmd:Item n=\"").append(i).append("\">value ").append(i).append("</cmd:Item>");
+        sb.append("</cmd:Components></cmd:CMD>");
+        record = sb.toString().getBytes(StandardCharsets.UTF_8);
+        executable = TransformAction.stylesheets.get(getClass().getResource("/identity.xsl").getPath(),
+                Collections.emptyMap());
+        processor = executable.getProcessor();
+    }
+
+    private Source input() {
+        return new StreamSource(new ByteArrayInputStream(record));
+    }
+
+    @Benchmark
+    public void dom() throws Exception {
+        Source source = input();
+        Document doc = null;
+        for (int t = 0; t < 2; t++) {
+            doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+            XsltTransformer transformer = executable.load();
+            transformer.setSource(source);
+            transformer.setDestination(new DOMDestination(doc));
+            transformer.transform();
+            source = new DOMSource(doc);
+        }
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        transformer.transform(new DOMSource(doc), new StreamResult(NullOutputStream.NULL_OUTPUT_STREAM));
+    }
+
+    @Benchmark
+    public void tree() throws Exception {
+        Source source = input();
+        XdmNode node = null;
+        for (int t = 0; t < 2; t++) {
+            XdmDestination output = new XdmDestination();
+            XsltTransformer transformer = executable.load();
+            transformer.setSource(source);
+            transformer.setDestination(output);
+            transformer.transform();
+            node = output.getXdmNode();
+            source = node.asSource();
+        }
+        Serializer serializer = processor.newSerializer(NullOutputStream.NULL_OUTPUT_STREAM);
+        serializer.setOutputProperty(Serializer.Property.INDENT, "yes");
+        serializer.serializeNode(node);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(TransformBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
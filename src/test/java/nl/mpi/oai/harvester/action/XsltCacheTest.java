@@ -0,0 +1,70 @@
+package nl.mpi.oai.harvester.action;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XsltExecutable;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class XsltCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String stylesheet() throws Exception {
+        File file = folder.newFile("static.xsl");
+        Files.write(file.toPath(), ("<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"3.0\">\n"
+                + "  <xsl:param name=\"static_provider_name\" static=\"yes\" select=\"''\"/>\n"
+                + "  <xsl:template match=\"/\"><name><xsl:value-of select=\"$static_provider_name\"/></name></xsl:template>\n"
+                + "</xsl:stylesheet>\n").getBytes(StandardCharsets.UTF_8));
+        return file.getPath();
+    }
+
+    @Test
+    public void testCompiledOnce() throws Exception {
+        XsltCache cache = new XsltCache(new Processor(false), 10);
+        String xsl = stylesheet();
+        XsltExecutable first = cache.get(xsl, Collections.emptyMap());
+        assertSame(first, cache.get(xsl, Collections.emptyMap()));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getCompiles().getCount());
+
+        // a changed stylesheet is compiled again
+        Files.setLastModifiedTime(new File(xsl).toPath(), FileTime.fromMillis(System.currentTimeMillis() + 10000));
+        assertNotSame(first, cache.get(xsl, Collections.emptyMap()));
+        assertEquals(2, cache.getCompiles().getCount());
+    }
+
+    @Test
+    public void testStaticParameters() throws Exception {
+        XsltCache cache = new XsltCache(new Processor(false), 2);
+        String xsl = stylesheet();
+        XsltExecutable a = cache.get(xsl, Collections.singletonMap("static_provider_name", "a"));
+        XsltExecutable b = cache.get(xsl, Collections.singletonMap("static_provider_name", "b"));
+        assertNotSame(a, b);
+        assertSame(a, cache.get(xsl, Collections.singletonMap("static_provider_name", "a")));
+        assertEquals(2, cache.getStaticCompiles().getCount());
+
+        // b is the least recently used
+        cache.get(xsl, Collections.singletonMap("static_provider_name", "c"));
+        assertEquals(1, cache.getEvictions());
+        assertSame(a, cache.get(xsl, Collections.singletonMap("static_provider_name", "a")));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testClonesShareTheExecutable() throws Exception {
+        String xsl = getClass().getResource("/identity.xsl").getPath();
+        TransformAction action = new TransformAction(null, xsl, null, 1);
+        TransformAction clone = (TransformAction) action.clone();
+        assertSame(action.executable, clone.executable);
+    }
+}
@@ -18,6 +18,8 @@
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
@@ -26,6 +28,9 @@
 import nl.mpi.oai.harvester.StaticProvider;
 import nl.mpi.oai.harvester.action.Action;
 import nl.mpi.oai.harvester.action.ActionSequence;
+import nl.mpi.oai.harvester.action.TransformAction;
+import nl.mpi.oai.harvester.action.TransformChainAction;
+import nl.mpi.oai.harvester.utils.HostLimiter;
 import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 import org.junit.Rule;
@@ -81,6 +86,29 @@ public void testBasicProps() throws Exception {
         assertEquals(false, config.isIncremental());
     }
 
+    @Test
+    public void testOptionalSettings() throws Exception {
+        // settings added later don't make older config files warn
+        assertTrue(Configuration.KnownOptions.STREAMING.isOptional());
+        assertFalse(Configuration.KnownOptions.WORKDIR.isOptional());
+        final Configuration config = getBasicConfig();
+        assertEquals(false, config.isStreaming());
+        // the records of a page one after the other
+        assertEquals(1, config.getRecordJobs());
+    }
+
+    @Test
+    public void testHostLimits() throws Exception {
+        final Configuration config = readConfig("/config/test-config-hosts.xml");
+        assertEquals(2, config.getHostMaxConnections());
+        final HostLimiter limiter = new HostLimiter();
+        config.applyHostLimits(limiter);
+        assertEquals(1, limiter.getLimit("www.meertens.knaw.nl").getMaxConnections());
+        assertEquals(500, limiter.getLimit("WWW.Meertens.knaw.nl").getMinInterval());
+        assertEquals(2, limiter.getLimit("example.org").getMaxConnections());
+        assertEquals(0, limiter.getLimit("example.org").getMinInterval());
+    }
+
     @Test
     public void testActionSequences() throws Exception {
         final List<ActionSequence> actionSequences = getBasicConfig().getActionSequences();
@@ -95,6 +123,67 @@ public void testActionSequences() throws Exception {
         
     }
 
+    @Test
+    public void testBranches() throws Exception {
+        final List<ActionSequence> actionSequences = readConfig("/config/test-config-branches.xml").getActionSequences();
+        assertEquals(2, actionSequences.size());
+
+        final ActionSequence cmdi = actionSequences.get(0);
+        assertEquals(2, cmdi.getActions().size());
+        assertEquals(2, cmdi.getBranches().size());
+        assertEquals(1, cmdi.getBranches().get(0).getActions().size());
+        assertEquals(2, cmdi.getBranches().get(1).getActions().size());
+        assertEquals("http://www.clarin.eu/cmd/1", cmdi.getBranches().get(1).getInputFormat().getValue());
+
+        // a format with only branches
+        assertEquals(0, actionSequences.get(1).getActions().size());
+        assertEquals(1, actionSequences.get(1).getBranches().size());
+    }
+
+    @Test
+    public void testFusedTransforms() throws Exception {
+        final File identity = new File(getClass().getResource("/identity.xsl").toURI());
+        final String xsl = identity.getAbsolutePath();
+        // the same stylesheet under other names
+        final File second = workdir.newFile("second.xsl");
+        final File third = workdir.newFile("third.xsl");
+        Files.copy(identity.toPath(), second.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(identity.toPath(), third.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        final File configFile = fileForResource("/config/test-config-transforms.xml",
+                testConfigFilter.andThen(line -> line.replace("{{xsl}}", xsl)
+                        .replace("{{second}}", second.getAbsolutePath())
+                        .replace("{{third}}", third.getAbsolutePath())));
+        final ActionSequence sequence = new Configuration().readConfig(configFile.getAbsolutePath())
+                .getActionSequences().get(0);
+
+        // split, strip, the three transformations, save, then the last three
+        // as two, as a chain takes a stylesheet once
+        final List<ResourcePool<Action>> actions = sequence.getActions();
+        assertEquals(6, actions.size());
+        final Action chain = actions.get(2).getPrototype();
+        assertTrue(chain instanceof TransformChainAction);
+        assertEquals(3, ((TransformChainAction) chain).getTransforms().size());
+        // the smallest max-jobs
+        assertEquals(2, actions.get(2).getSize());
+        assertEquals(2, sequence.getWorkers(2));
+        assertEquals(2, ((TransformChainAction) actions.get(4).getPrototype()).getTransforms().size());
+        assertTrue(actions.get(5).getPrototype() instanceof TransformAction);
+    }
+
+    @Test
+    public void testTransformsNotFusedByDefault() throws Exception {
+        final String xsl = new File(getClass().getResource("/identity.xsl").toURI()).getAbsolutePath();
+        final File configFile = fileForResource("/config/test-config-transforms.xml",
+                testConfigFilter.andThen(line -> line.replace("{{xsl}}", xsl)
+                        .replace("{{second}}", xsl).replace("{{third}}", xsl)
+                        .replace("<fuse-transforms>true</fuse-transforms>", "")));
+        final List<ResourcePool<Action>> actions = new Configuration().readConfig(configFile.getAbsolutePath())
+                .getActionSequences().get(0).getActions();
+        assertEquals(9, actions.size());
+        for (ResourcePool<Action> action : actions)
+            assertFalse(action.getPrototype() instanceof TransformChainAction);
+    }
+
     @Test
     public void testProviders() throws Exception {
         final List<Provider> providers = getBasicConfig().getProviders();
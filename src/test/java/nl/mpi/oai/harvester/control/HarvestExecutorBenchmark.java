@@ -0,0 +1,144 @@
+package nl.mpi.oai.harvester.control;
+
+import nl.mpi.oai.harvester.action.Action;
+import nl.mpi.oai.harvester.action.ActionSequence;
+import nl.mpi.oai.harvester.metadata.Metadata;
+import nl.mpi.oai.harvester.metadata.MetadataFormat;
+import nl.mpi.oai.harvester.utils.ExecutionSlots;
+import nl.mpi.oai.harvester.utils.Threads;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the time to harvest many slow providers with a fixed pool of
+ * max-jobs threads (the old executor) and with a thread per provider
+ * (virtual if the JVM supports them) where max-jobs covers all providers
+ * and the actions are bounded by cpu-jobs.
+ * <p>
+ * A simulated provider fetches a number of pages, each taking a fixed
+ * network latency, and runs an action burning some CPU on every page.
+ * <p>
+ * Before Java 21 "threads" runs on platform threads, a warning is logged.
+ * The gain measured there comes from a thread per provider, not from
+ * virtual threads; run it on Java 21 or later to measure those.
+ * <p>
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=nl.mpi.oai.harvester.control.HarvestExecutorBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HarvestExecutorBenchmark {
+
+    @Param({"fixed", "threads"})
+    public String executor;
+
+    @Param({"200"})
+    public int providers;
+
+    // max-jobs of the fixed pool
+    private static final int MAX_JOBS = 8;
+    private static final int PAGES = 5;
+    private static final long LATENCY = 50;
+    private static final long CPU_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private ActionSequence sequence;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        if ("threads".equals(executor)) {
+            Threads.setVirtual(true);
+            ActionSequence.setCpuLimit(cpus);
+            sequence = new ActionSequence(new MetadataFormat("prefix", "test"), new Action[]{new BusyAction()}, cpus);
+        } else {
+            Threads.setVirtual(false);
+            ActionSequence.setCpuLimit(0);
+            sequence = new ActionSequence(new MetadataFormat("prefix", "test"), new Action[]{new BusyAction()}, MAX_JOBS);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Threads.setVirtual(false);
+        ActionSequence.setCpuLimit(0);
+    }
+
+    private Runnable provider() {
+        return () -> {
+            List<Metadata> records = new ArrayList<>();
+            for (int p = 0; p < PAGES; p++) {
+                try {
+                    Thread.sleep(LATENCY);
+                    sequence.runActions(records);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        };
+    }
+
+    @Benchmark
+    public void harvest() throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        ExecutorService pool;
+        if ("threads".equals(executor)) {
+            pool = Threads.newExecutor();
+            ExecutionSlots slots = new ExecutionSlots(providers);
+            for (int i = 0; i < providers; i++) {
+                slots.acquire();
+                futures.add(pool.submit(slots.holding(provider())));
+            }
+        } else {
+            pool = new ScheduledThreadPoolExecutor(MAX_JOBS);
+            for (int i = 0; i < providers; i++) {
+                futures.add(pool.submit(provider()));
+            }
+        }
+        for (Future<?> f : futures)
+            f.get();
+        pool.shutdown();
+    }
+
+    static class BusyAction implements Action {
+
+        // keeps the JIT from dropping the work
+        volatile long sink;
+
+        @Override
+        public boolean perform(List<Metadata> records) {
+            long end = System.nanoTime() + CPU_NANOS;
+            long x = 0;
+            while (System.nanoTime() < end)
+                x += x * 31 + 17;
+            sink = x;
+            return true;
+        }
+
+        @Override
+        public Action clone() {
+            return new BusyAction();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(HarvestExecutorBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,85 @@
+package nl.mpi.oai.harvester.control;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.utils.Statistic;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class HarvestSchedulerTest {
+
+    private final Map<Provider, Statistic> history = new HashMap<>();
+
+    private Provider provider(String name, Long time, long requests) throws Exception {
+        Provider provider = new Provider("https://example.com/" + name, 1, new int[]{1});
+        provider.setName(name);
+        if (time != null || requests > 0) {
+            Statistic s = new Statistic();
+            s.setHarvestTime(time == null ? 0 : time);
+            s.setRequests(requests);
+            history.put(provider, s);
+        }
+        return provider;
+    }
+
+    @Test
+    public void testLongestFirst() throws Exception {
+        Provider small = provider("small", 10L, 2);
+        Provider huge = provider("huge", 100L, 20);
+        Provider unknown = provider("unknown", null, 0);
+        Provider medium = provider("medium", 40L, 8);
+
+        HarvestScheduler scheduler = new HarvestScheduler(2, -1, history::get);
+        List<Provider> ordered = scheduler.schedule(Arrays.asList(small, huge, unknown, medium));
+
+        // unknown gets the average of the known ones: (10 + 100 + 40) / 3
+        assertEquals(50, scheduler.getExpected(unknown));
+        assertEquals(Arrays.asList(huge, unknown, medium, small), ordered);
+        // slot 1: huge(100), slot 2: unknown(50) + medium(40) + small(10)
+        assertEquals(100, scheduler.getPredictedMakespan());
+    }
+
+    @Test
+    public void testConfigOrder() throws Exception {
+        Provider small = provider("small", 10L, 2);
+        Provider medium = provider("medium", 40L, 8);
+        Provider huge = provider("huge", 100L, 20);
+
+        HarvestScheduler scheduler = new HarvestScheduler(2, -1, history::get);
+        scheduler.predict(Arrays.asList(small, medium, huge));
+        // slot 1: small(10) + huge(100), slot 2: medium(40)
+        assertEquals(110, scheduler.getPredictedMakespan());
+    }
+
+    @Test
+    public void testFallbacks() throws Exception {
+        Provider timed = provider("timed", 60L, 30);
+        // finished within a second, but its requests are known
+        Provider requestsOnly = provider("requests", 0L, 10);
+        Provider unknown = provider("unknown", null, 0);
+
+        HarvestScheduler scheduler = new HarvestScheduler(1, 5, history::get);
+        List<Provider> ordered = scheduler.schedule(Arrays.asList(unknown, requestsOnly, timed));
+
+        // 2 seconds per request
+        assertEquals(20, scheduler.getExpected(requestsOnly));
+        assertEquals(5, scheduler.getExpected(unknown));
+        assertEquals(Arrays.asList(timed, requestsOnly, unknown), ordered);
+        assertEquals(85, scheduler.getPredictedMakespan());
+    }
+
+    @Test
+    public void testStoppedStatistic() {
+        Statistic s = new Statistic();
+        s.setHarvestTime(42);
+        assertEquals(42, s.getHarvestTime());
+        s.start();
+        s.stop();
+        assertEquals(0, s.getHarvestTime());
+    }
+}
@@ -0,0 +1,125 @@
+package nl.mpi.oai.harvester.control;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.action.ActionSequence;
+import nl.mpi.oai.harvester.metadata.MetadataFormat;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.Assert.*;
+
+public class ProviderBootstrapTest {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(options().dynamicPort());
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        Main.config = new Configuration();
+        Main.config.setOption("workdir", folder.getRoot().getPath());
+    }
+
+    @After
+    public void tearDown() {
+        Main.config = null;
+    }
+
+    private String url(String path) {
+        return "http://localhost:" + wireMockRule.port() + path;
+    }
+
+    private static String resource(String name) throws IOException {
+        try (InputStream in = ProviderBootstrapTest.class.getResourceAsStream(name)) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+    }
+
+    private void serve(String path) throws IOException {
+        stubFor(get(urlPathEqualTo(path)).withQueryParam("verb", equalTo("Identify"))
+                .willReturn(aResponse().withStatus(200).withBody(resource("/response-Identify.xml"))));
+        stubFor(get(urlPathEqualTo(path)).withQueryParam("verb", equalTo("ListMetadataFormats"))
+                .willReturn(aResponse().withStatus(200).withBody(resource("/response-ListMetadataFormats.xml"))));
+    }
+
+    @Test
+    public void testDropsProviders() throws Exception {
+        serve("/ready");
+        serve("/other");
+        stubFor(get(urlPathEqualTo("/down")).willReturn(aResponse().withStatus(500)));
+
+        Provider ready = new Provider(url("/ready"), 1, new int[]{0});
+        Provider down = new Provider(url("/down"), 1, new int[]{0});
+        Provider other = new Provider(url("/other"), 1, new int[]{0});
+        other.setName("other");
+        List<ActionSequence> sequences = Collections.singletonList(
+                new ActionSequence(new MetadataFormat("prefix", "cmdi_teiHdr")));
+
+        ProviderBootstrap bootstrap = new ProviderBootstrap(4, 5, sequences);
+        List<Provider> result = bootstrap.bootstrap(Arrays.asList(down, ready, other));
+        bootstrap.report();
+
+        assertEquals(Arrays.asList(ready, other), result);
+        assertEquals(ProviderBootstrap.Status.UNREACHABLE, bootstrap.getStatus(down));
+        assertEquals("CLARIN Centre Vienna / Language Resources Portal", ready.getName());
+        assertNotNull(ready.getMetadataFormats(0));
+
+        // the harvest reuses the formats resolved by the bootstrap
+        assertTrue(ready.supports(sequences.get(0)));
+        verify(1, getRequestedFor(urlPathEqualTo("/ready")).withQueryParam("verb", equalTo("ListMetadataFormats")));
+        verify(1, getRequestedFor(urlPathEqualTo("/ready")).withQueryParam("verb", equalTo("Identify")));
+        assertEquals("other", other.getName());
+    }
+
+    @Test
+    public void testRetries() throws Exception {
+        stubFor(get(urlPathEqualTo("/flaky")).withQueryParam("verb", equalTo("Identify"))
+                .willReturn(aResponse().withStatus(200).withBody(resource("/response-Identify.xml"))));
+        stubFor(get(urlPathEqualTo("/flaky")).withQueryParam("verb", equalTo("ListMetadataFormats"))
+                .inScenario("flaky").whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse().withStatus(500)).willSetStateTo("up"));
+        stubFor(get(urlPathEqualTo("/flaky")).withQueryParam("verb", equalTo("ListMetadataFormats"))
+                .inScenario("flaky").whenScenarioStateIs("up")
+                .willReturn(aResponse().withStatus(200).withBody(resource("/response-ListMetadataFormats.xml"))));
+        Provider provider = new Provider(url("/flaky"), 2, new int[]{0});
+        ProviderBootstrap bootstrap = new ProviderBootstrap(4, 5, Collections.singletonList(
+                new ActionSequence(new MetadataFormat("prefix", "cmdi_teiHdr"))));
+
+        // a transient error doesn't drop the provider
+        assertEquals(Collections.singletonList(provider), bootstrap.bootstrap(Collections.singletonList(provider)));
+        verify(2, getRequestedFor(urlPathEqualTo("/flaky")).withQueryParam("verb", equalTo("ListMetadataFormats")));
+    }
+
+    @Test
+    public void testOptIn() {
+        assertEquals(0, new Configuration().getBootstrapJobs());
+    }
+
+    @Test
+    public void testDropsProvidersWithoutPrefix() throws Exception {
+        serve("/ready");
+        Provider provider = new Provider(url("/ready"), 1, new int[]{0});
+        ProviderBootstrap bootstrap = new ProviderBootstrap(4, 5, Collections.singletonList(
+                new ActionSequence(new MetadataFormat("prefix", "no_such_prefix"))));
+
+        assertTrue(bootstrap.bootstrap(Collections.singletonList(provider)).isEmpty());
+        assertEquals(ProviderBootstrap.Status.NO_PREFIX, bootstrap.getStatus(provider));
+    }
+}
@@ -0,0 +1,104 @@
+package nl.mpi.oai.harvester.control;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of the resource pool with the pool as it was,
+ * without timed waits and statistics, for many threads contending for a few
+ * resources, each holding a resource for a short piece of work.
+ * <p>
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=nl.mpi.oai.harvester.control.ResourcePoolBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(16)
+@Fork(1)
+public class ResourcePoolBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int size;
+
+    // the tokens of work done while holding a resource
+    @Param({"100"})
+    public int work;
+
+    private ResourcePool<Object> pool;
+    private MonitorPool<Object> monitorPool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Object[] resources = new Object[size];
+        for (int i = 0; i < size; i++)
+            resources[i] = new Object();
+        pool = new ResourcePool<>(resources);
+        monitorPool = new MonitorPool<>(resources);
+    }
+
+    @Benchmark
+    public void pool(Blackhole bh) {
+        Object r = pool.get();
+        try {
+            bh.consume(r);
+            Blackhole.consumeCPU(work);
+        } finally {
+            pool.release(r);
+        }
+    }
+
+    @Benchmark
+    public void monitor(Blackhole bh) {
+        Object r = monitorPool.get();
+        try {
+            bh.consume(r);
+            Blackhole.consumeCPU(work);
+        } finally {
+            monitorPool.release(r);
+        }
+    }
+
+    /**
+     * The resource pool as it was.
+     */
+    static class MonitorPool<T> {
+        private final LinkedList<T> resources = new LinkedList<>();
+
+        MonitorPool(T[] resources) {
+            Collections.addAll(this.resources, resources);
+        }
+
+        synchronized void release(T r) {
+            resources.add(r);
+            notify();
+        }
+
+        synchronized T get() {
+            while (resources.isEmpty()) {
+                try {
+                    wait();
+                } catch (InterruptedException ignored) {
+                }
+            }
+            return resources.removeFirst();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(ResourcePoolBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -20,6 +20,9 @@
 
 import nl.mpi.oai.harvester.control.ResourcePool;
 import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.*;
 
 /**
@@ -43,4 +46,64 @@ public void testGetAndRelease() {
 	pool.release(r);
 	assertEquals(pool.getNumAvailable(), 1);
     }    
+
+    @Test
+    public void testTimeout() throws Exception {
+	ResourcePool<String> pool = new ResourcePool<>(new String[]{"string"});
+	String r = pool.get(1, TimeUnit.SECONDS);
+	assertEquals("string", r);
+	assertNull(pool.get(10, TimeUnit.MILLISECONDS));
+	assertNull(pool.tryGet());
+	pool.release(r);
+	assertEquals("string", pool.tryGet());
+    }
+
+    @Test
+    public void testInterrupt() throws Exception {
+	ResourcePool<String> pool = new ResourcePool<>(new String[]{"string"});
+	String r = pool.get();
+	Thread.currentThread().interrupt();
+	try {
+	    pool.get(1, TimeUnit.SECONDS);
+	    fail("the wait ends on an interrupt");
+	} catch (InterruptedException e) {
+	    // expected
+	}
+	pool.release(r);
+
+	// an uninterruptible wait keeps the interrupt
+	Thread.currentThread().interrupt();
+	assertEquals("string", pool.get());
+	assertTrue(Thread.interrupted());
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+	ResourcePool<String> pool = new ResourcePool<>(new String[]{"a", "b"});
+	assertEquals("a", pool.getPrototype());
+	String r = pool.get();
+	Thread.sleep(50);
+	assertTrue(pool.getUtilization() > 0.25);
+	pool.release(r);
+	assertEquals(1, pool.getImmediate());
+	assertEquals(0, pool.getWaits().getStats().getCount());
+
+	String a = pool.get();
+	String b = pool.get();
+	new Thread(() -> {
+	    try {
+		Thread.sleep(20);
+	    } catch (InterruptedException ignored) {
+	    }
+	    pool.release(b);
+	}).start();
+	pool.release(pool.get());
+	pool.release(a);
+	assertEquals(1, pool.getWaits().getStats().getCount());
+	long waited = 0;
+	for (long count : pool.getWaits().getCounts())
+	    waited += count;
+	assertEquals(1, waited);
+	assertTrue(pool.toString().contains("utilization["));
+    }
 }
@@ -0,0 +1,47 @@
+package nl.mpi.oai.harvester.harvesting;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DateWindowsTest {
+
+    @Test
+    public void testSplitDays() {
+        List<String[]> windows = new DateWindows(DateWindows.DAYS).split("2020-01-01", "2020-01-10", 3);
+        assertEquals(3, windows.size());
+        assertArrayEquals(new String[]{"2020-01-01", "2020-01-03"}, windows.get(0));
+        assertArrayEquals(new String[]{"2020-01-04", "2020-01-06"}, windows.get(1));
+        assertArrayEquals(new String[]{"2020-01-07", "2020-01-10"}, windows.get(2));
+    }
+
+    @Test
+    public void testSplitSeconds() {
+        // a day earliest datestamp at seconds granularity
+        List<String[]> windows = new DateWindows(DateWindows.SECONDS).split("2020-01-01", "2020-01-01T00:00:03Z", 2);
+        assertEquals(2, windows.size());
+        assertArrayEquals(new String[]{"2020-01-01T00:00:00Z", "2020-01-01T00:00:01Z"}, windows.get(0));
+        assertArrayEquals(new String[]{"2020-01-01T00:00:02Z", "2020-01-01T00:00:03Z"}, windows.get(1));
+    }
+
+    @Test
+    public void testShortRange() {
+        List<String[]> windows = new DateWindows(DateWindows.DAYS).split("2020-01-01", "2020-01-02", 10);
+        assertEquals(2, windows.size());
+        // a seconds earliest datestamp at days granularity
+        windows = new DateWindows(DateWindows.DAYS).split("2020-01-01T12:00:00Z", "2020-01-01", 10);
+        assertEquals(1, windows.size());
+        assertArrayEquals(new String[]{"2020-01-01", "2020-01-01"}, windows.get(0));
+    }
+
+    @Test
+    public void testHalve() {
+        DateWindows windows = new DateWindows(DateWindows.DAYS);
+        List<String[]> halves = windows.halve("2020-01-01", "2020-01-04");
+        assertArrayEquals(new String[]{"2020-01-01", "2020-01-02"}, halves.get(0));
+        assertArrayEquals(new String[]{"2020-01-03", "2020-01-04"}, halves.get(1));
+        assertNull(windows.halve("2020-01-01", "2020-01-01"));
+    }
+}
@@ -0,0 +1,116 @@
+package nl.mpi.oai.harvester.harvesting.scenarios;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.harvesting.NoMoreRetriesException;
+import nl.mpi.oai.harvester.harvesting.OAIFactory;
+import nl.mpi.oai.harvester.harvesting.RecordListHarvesting;
+import nl.mpi.oai.harvester.metadata.MetadataFactory;
+import nl.mpi.oai.harvester.utils.DocumentSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PageFetcherTest {
+
+    private Provider provider;
+
+    @Before
+    public void setUp() throws Exception {
+        provider = new Provider("http://example.com/oai", 1, new int[]{0});
+        provider.setName("PageFetcherTest");
+    }
+
+    @After
+    public void tearDown() {
+        provider.close();
+    }
+
+    /**
+     * Serves pages "0" .. "pages-1", failing at the given page.
+     */
+    private static class Pages extends RecordListHarvesting {
+        private final int pages;
+        private final int failAt;
+        private final List<Path> temps = Collections.synchronizedList(new ArrayList<>());
+        private int page = 0;
+
+        Pages(Provider provider, int pages, int failAt) {
+            super(new OAIFactory(), provider, List.of("oai_dc"), new MetadataFactory());
+            this.pages = pages;
+            this.failAt = failAt;
+        }
+
+        private DocumentSource page(Path temp) throws IOException {
+            if (page == failAt)
+                throw new IOException("page " + page + " failed");
+            temps.add(temp);
+            Files.writeString(temp, String.valueOf(page));
+            return new DocumentSource(new ByteArrayInputStream(String.valueOf(page).getBytes(StandardCharsets.UTF_8)));
+        }
+
+        @Override
+        public DocumentSource verb2(String metadataPrefix, String resumptionToken, int timeout) throws IOException {
+            return page(getTemp());
+        }
+
+        @Override
+        public DocumentSource verb5(String endpoint, String fromDate, String untilDate, String metadataPrefix, String set, int timeout, Path temp) throws IOException {
+            return page(temp);
+        }
+
+        @Override
+        public String getToken() {
+            page++;
+            return page < pages ? "token-" + page : null;
+        }
+    }
+
+    private static String read(DocumentSource response) throws IOException {
+        return new String(response.getStream().readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testAllPagesInOrder() throws Exception {
+        Pages pages = new Pages(provider, 5, -1);
+        List<String> seen = new ArrayList<>();
+        try (PageFetcher fetcher = new PageFetcher(pages, provider, 2)) {
+            fetcher.start();
+            DocumentSource response;
+            while ((response = fetcher.next()) != null) {
+                seen.add(read(response));
+                response.close();
+            }
+            assertTrue(fetcher.isSuccessful());
+        }
+        assertEquals(List.of("0", "1", "2", "3", "4"), seen);
+        // rotating over depth + 2 temp files
+        assertEquals(4, pages.temps.stream().distinct().count());
+        // given back when the fetcher is closed
+        for (Path temp : pages.temps)
+            assertFalse(temp.toString(), Files.exists(temp));
+        assertFalse(pages.temps.contains(pages.getTemp()));
+    }
+
+    @Test
+    public void testFailureAfterFetchedPages() throws Exception {
+        Pages pages = new Pages(provider, 5, 0);
+        try (PageFetcher fetcher = new PageFetcher(pages, provider, 2)) {
+            fetcher.start();
+            fetcher.next();
+            fail("the failure of the fetching should be rethrown");
+        } catch (NoMoreRetriesException e) {
+            // expected
+        }
+    }
+}
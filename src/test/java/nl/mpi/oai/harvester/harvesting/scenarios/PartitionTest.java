@@ -0,0 +1,293 @@
+package nl.mpi.oai.harvester.harvesting.scenarios;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.ResumeDetails;
+import nl.mpi.oai.harvester.action.ActionSequence;
+import nl.mpi.oai.harvester.control.Configuration;
+import nl.mpi.oai.harvester.control.Main;
+import nl.mpi.oai.harvester.harvesting.AbstractListHarvesting;
+import nl.mpi.oai.harvester.harvesting.DateWindows;
+import nl.mpi.oai.harvester.harvesting.NoMoreRetriesException;
+import nl.mpi.oai.harvester.harvesting.OAIFactory;
+import nl.mpi.oai.harvester.harvesting.RecordListHarvesting;
+import nl.mpi.oai.harvester.metadata.MetadataFactory;
+import nl.mpi.oai.harvester.metadata.MetadataFormat;
+import nl.mpi.oai.harvester.utils.DocumentSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PartitionTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Provider provider;
+
+    // pages served per (prefix, set) combination
+    private final Map<String, Integer> served = new ConcurrentHashMap<>();
+    private final Set<String> threads = ConcurrentHashMap.newKeySet();
+    // the date windows harvested up to the last page
+    private final List<String> windows = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger streamedRequests = new AtomicInteger();
+    // the temp files the responses went to
+    private final Set<Path> temps = ConcurrentHashMap.newKeySet();
+
+    @Before
+    public void setUp() throws Exception {
+        Main.config = new Configuration();
+        Main.config.setOption("workdir", folder.getRoot().getPath());
+        provider = new Provider("http://example.com/oai", 1, new int[]{0});
+        provider.setName("PartitionTest");
+        provider.setSets(new String[]{"a", "b", "c"});
+        provider.setPartitions(3);
+    }
+
+    @After
+    public void tearDown() {
+        provider.close();
+        Main.config = null;
+    }
+
+    /**
+     * Serves two pages per combination, failing at the second page of the
+     * given one.
+     */
+    private class Pages extends RecordListHarvesting {
+        private final String failAt;
+        private int page = 0;
+        // a streamed response only has its token once it has been processed
+        private boolean streamed = false;
+
+        Pages(List<String> prefixes, String failAt) {
+            super(new OAIFactory(), provider, prefixes, new MetadataFactory());
+            this.failAt = failAt;
+        }
+
+        private DocumentSource page(boolean resumed) throws IOException {
+            streamed = isStreamed();
+            temps.add(getTemp());
+            if (streamed)
+                streamedRequests.incrementAndGet();
+            String combination = getPartition().prefix + "/" + getPartition().set;
+            if (resumed && combination.equals(failAt))
+                throw new IOException(combination + " failed");
+            served.merge(combination, 1, Integer::sum);
+            threads.add(Thread.currentThread().getName());
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return new DocumentSource(new ByteArrayInputStream(new byte[0]));
+        }
+
+        @Override
+        public DocumentSource verb2(String metadataPrefix, String resumptionToken, int timeout) throws IOException {
+            if (getPartition().from != null)
+                windows.add(getPartition().from + "/" + getPartition().until);
+            return page(true);
+        }
+
+        // a record per day
+        @Override
+        public long getCompleteListSize() {
+            ResumeDetails.Partition p = getPartition();
+            if (p.from == null)
+                return -1;
+            return LocalDate.parse(p.until).toEpochDay() - LocalDate.parse(p.from).toEpochDay() + 1;
+        }
+
+        @Override
+        public DocumentSource verb5(String endpoint, String fromDate, String untilDate, String metadataPrefix, String set, int timeout, Path temp) throws IOException {
+            assertEquals(getPartition().prefix, metadataPrefix);
+            assertEquals(getPartition().set, set);
+            return page(false);
+        }
+
+        @Override
+        public String getToken() {
+            page++;
+            return page < 2 ? "token-" + page : null;
+        }
+
+        @Override
+        protected boolean isTokenDeferred() {
+            return streamed;
+        }
+
+        @Override
+        protected String getDeferredToken() {
+            return getToken();
+        }
+    }
+
+    private class TestScenario extends Scenario {
+        private final String failAt;
+
+        TestScenario(String failAt) {
+            super(PartitionTest.this.provider, new ActionSequence(new MetadataFormat("prefix", "oai_dc")));
+            this.failAt = failAt;
+        }
+
+        @Override
+        public List<String> getMetadataFormats(OAIFactory oaiFactory) {
+            return List.of("p1", "p2");
+        }
+
+        @Override
+        String[] getDatestamps() {
+            return new String[]{"2020-01-01", DateWindows.DAYS};
+        }
+
+        @Override
+        AbstractListHarvesting createHarvesting(List<String> prefixes, OAIFactory oaiFactory, MetadataFactory metadataFactory) {
+            return new Pages(prefixes, failAt);
+        }
+
+        @Override
+        boolean doGetRecords(AbstractListHarvesting harvesting) {
+            do {
+                if (!harvesting.request())
+                    return false;
+                harvesting.getResponse().close();
+            } while (harvesting.requestMore());
+            return true;
+        }
+    }
+
+    @Test
+    public void testAllCombinations() {
+        assertTrue(new TestScenario(null).getRecords(new OAIFactory(), new MetadataFactory()));
+        assertEquals(6, served.size());
+        for (int count : served.values())
+            assertEquals(2, count);
+        assertEquals(3, threads.size());
+    }
+
+    @Test
+    public void testFailedCombinationResumes() {
+        try {
+            new TestScenario("p1/b").getRecords(new OAIFactory(), new MetadataFactory());
+            fail("the failure should be passed on");
+        } catch (NoMoreRetriesException e) {
+            // expected
+        }
+        // the other combinations went on
+        assertEquals(6, served.size());
+
+        ResumeDetails details = ResumeDetails.load(provider.getResumeTokensPath()).get();
+        assertEquals(6, details.partitions.size());
+        for (ResumeDetails.Partition partition : details.partitions) {
+            if (partition.prefix.equals("p1") && "b".equals(partition.set)) {
+                assertFalse(partition.done);
+                assertEquals("token-1", partition.resumptionToken);
+            } else {
+                assertTrue(partition.toString(), partition.done);
+            }
+        }
+    }
+
+    @Test
+    public void testUnfinishedCombinationResumes() {
+        // a combination that doesn't finish, without an exception
+        assertFalse(new TestScenario(null) {
+            @Override
+            boolean doGetRecords(AbstractListHarvesting harvesting) {
+                ResumeDetails.Partition partition = ((Pages) harvesting).getPartition();
+                if (partition.prefix.equals("p2") && "c".equals(partition.set))
+                    return false;
+                return super.doGetRecords(harvesting);
+            }
+        }.getRecords(new OAIFactory(), new MetadataFactory()));
+
+        ResumeDetails details = ResumeDetails.load(provider.getResumeTokensPath()).get();
+        assertEquals(6, details.partitions.size());
+        for (ResumeDetails.Partition partition : details.partitions)
+            assertEquals(partition.toString(), !(partition.prefix.equals("p2") && "c".equals(partition.set)),
+                    partition.done);
+    }
+
+    @Test
+    public void testDateWindows() {
+        provider.setSets(null);
+        provider.setDateWindows(2);
+        provider.setWindowMaxRecords(500);
+        assertTrue(new TestScenario(null).getRecords(new OAIFactory(), new MetadataFactory()));
+        assertWindows(500);
+        assertEquals(0, streamedRequests.get());
+        // every window, also one split, had a temp file of its own, given
+        // back when done
+        assertTrue(temps.size() >= windows.size() / 2);
+        for (Path temp : temps)
+            assertFalse(temp.toString(), Files.exists(temp));
+    }
+
+    @Test
+    public void testDateWindowsStreaming() {
+        provider.setSets(null);
+        provider.setStreaming(true);
+        provider.setDateWindows(2);
+        provider.setWindowMaxRecords(500);
+        assertTrue(new TestScenario(null).getRecords(new OAIFactory(), new MetadataFactory()));
+        // the first page of a window is sized before any of it is processed
+        assertWindows(500);
+        // the second pages, one per window and prefix, are streamed
+        assertEquals(windows.size(), streamedRequests.get());
+    }
+
+    private void assertWindows(int max) {
+        // per prefix the windows cover the whole range without overlap
+        assertEquals(0, windows.size() % 2);
+        List<String> sorted = new ArrayList<>(windows);
+        Collections.sort(sorted);
+        LocalDate next = LocalDate.parse("2020-01-01");
+        for (int i = 0; i < sorted.size(); i += 2) {
+            assertEquals(sorted.get(i), sorted.get(i + 1));
+            String[] window = sorted.get(i).split("/");
+            assertEquals(next, LocalDate.parse(window[0]));
+            next = LocalDate.parse(window[1]).plusDays(1);
+            // split until small enough
+            assertTrue(sorted.get(i), next.toEpochDay() - LocalDate.parse(window[0]).toEpochDay() <= max);
+        }
+        assertEquals(LocalDate.parse(provider.getCurrentDate()).plusDays(1), next);
+        assertTrue(sorted.size() / 2 > 2);
+    }
+
+    @Test
+    public void testResumeFromSequentialHarvest() {
+        ResumeDetails resume = new ResumeDetails();
+        resume.prefixes = List.of("p1", "p2");
+        resume.pIndex = 0;
+        resume.sIndex = 1;
+        resume.resumptionToken = "t";
+
+        ResumeDetails details = new TestScenario(null).getPartitions(List.of("p1", "p2"), resume, null);
+        assertEquals(6, details.partitions.size());
+        assertTrue(details.partitions.get(0).done);
+        assertFalse(details.partitions.get(1).done);
+        assertEquals("b", details.partitions.get(1).set);
+        assertEquals("t", details.partitions.get(1).resumptionToken);
+        for (int i = 2; i < 6; i++) {
+            assertFalse(details.partitions.get(i).done);
+            assertNull(details.partitions.get(i).resumptionToken);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package nl.mpi.oai.harvester.metadata;
+
+import nl.mpi.oai.harvester.utils.ByteBufferInputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class MetadataTest {
+
+    private static final String RECORD = "<record><header/></record>";
+
+    @Test
+    public void testCopySharesBuffer() throws Exception {
+        ByteBuffer page = ByteBuffer.wrap(RECORD.getBytes(StandardCharsets.UTF_8));
+        Metadata record = new Metadata("oai:1", "cmdi", new ByteBufferInputStream(page), null, false, false);
+        record.getEnvelope().setResumptionToken("next");
+        Metadata copy = record.copy();
+
+        assertSame(record.getEnvelope(), copy.getEnvelope());
+        assertTrue(copy.getStream() instanceof ByteBufferInputStream);
+        // the copy reads the same bytes, without moving the record
+        ByteBuffer bytes = ((ByteBufferInputStream) copy.getStream()).asBuffer();
+        assertSame(page.array(), bytes.array());
+        assertEquals(RECORD, IOUtils.toString(copy.getStream(), StandardCharsets.UTF_8));
+        assertEquals(RECORD, IOUtils.toString(record.getStream(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testCopyOtherStream() throws Exception {
+        Metadata record = new Metadata("oai:1", "cmdi",
+                new ByteArrayInputStream(RECORD.getBytes(StandardCharsets.UTF_8)), null, false, false);
+        Metadata copy = record.copy();
+
+        assertEquals(RECORD, IOUtils.toString(copy.getStream(), StandardCharsets.UTF_8));
+        assertEquals(RECORD, IOUtils.toString(record.getStream(), StandardCharsets.UTF_8));
+        assertEquals("header", copy.getDoc().getDocumentElement().getFirstChild().getNodeName());
+        assertTrue(record.hasStream());
+    }
+}
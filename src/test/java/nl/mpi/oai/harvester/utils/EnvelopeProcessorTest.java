@@ -0,0 +1,187 @@
+package nl.mpi.oai.harvester.utils;
+
+import org.junit.Test;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.w3c.dom.Document;
+
+import static org.junit.Assert.*;
+
+public class EnvelopeProcessorTest {
+
+    // the dc prefix is declared in the envelope only
+    private static final String PAGE = "<?xml version=\"1.0\"?>"
+            + "<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\">"
+            + "<responseDate>2024-01-01T00:00:00Z</responseDate>"
+            + "<request verb=\"ListRecords\" metadataPrefix=\"oai_dc\">https://example.com/oai</request>"
+            + "<ListRecords>"
+            + "<record><header><identifier> oai:test:1 </identifier><datestamp>2024-01-01</datestamp>"
+            + "<setSpec>a</setSpec><setSpec>b</setSpec></header>"
+            + "<metadata><dc:dc><dc:title>One &amp; only</dc:title><!-- note --></dc:dc></metadata></record>"
+            + "<record><header status=\"deleted\"><identifier>oai:test:2</identifier>"
+            + "<datestamp>2024-01-02</datestamp></header></record>"
+            + "<resumptionToken cursor=\"0\" completeListSize=\"3\">token-1</resumptionToken>"
+            + "</ListRecords></OAI-PMH>";
+
+    private static List<EnvelopeProcessor.Record> process(EnvelopeProcessor.Part part, EnvelopeInfo envelope)
+            throws Exception {
+        return process(part, envelope, PAGE.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<EnvelopeProcessor.Record> process(EnvelopeProcessor.Part part, EnvelopeInfo envelope,
+                                                          byte[] page) throws Exception {
+        List<EnvelopeProcessor.Record> records = new ArrayList<>();
+        // a view on the page, as for a spooled response
+        int n = new EnvelopeProcessor(part).process(new ByteBufferInputStream(ByteBuffer.wrap(page)), envelope,
+                records::add);
+        assertEquals(records.size(), n);
+        return records;
+    }
+
+    private static String read(EnvelopeProcessor.Record record) throws Exception {
+        return new String(record.getStream().readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    private static Document parse(EnvelopeProcessor.Record record) throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        return dbf.newDocumentBuilder().parse(record.getStream());
+    }
+
+    @Test
+    public void testHeadersAndEnvelope() throws Exception {
+        EnvelopeInfo envelope = new EnvelopeInfo();
+        List<EnvelopeProcessor.Record> records = process(EnvelopeProcessor.Part.METADATA, envelope);
+
+        assertEquals(2, records.size());
+        EnvelopeProcessor.Record first = records.get(0);
+        assertEquals("oai:test:1", first.getIdentifier());
+        assertEquals("2024-01-01", first.getDatestamp());
+        assertEquals(Arrays.asList("a", "b"), first.getSetSpecs());
+        assertFalse(first.isDeleted());
+
+        EnvelopeProcessor.Record second = records.get(1);
+        assertEquals("oai:test:2", second.getIdentifier());
+        assertTrue(second.isDeleted());
+        assertFalse(second.hasContent());
+
+        assertEquals("oai_dc", envelope.getPrefix());
+        assertEquals("token-1", envelope.getResumptionToken());
+        assertEquals(Long.valueOf(3), envelope.getCompleteListSize());
+        assertTrue(envelope.isComplete());
+    }
+
+    @Test
+    public void testMetadata() throws Exception {
+        Document doc = parse(process(EnvelopeProcessor.Part.METADATA, new EnvelopeInfo()).get(0));
+        assertEquals("http://purl.org/dc/elements/1.1/", doc.getDocumentElement().getNamespaceURI());
+        assertEquals("dc", doc.getDocumentElement().getLocalName());
+        assertEquals("One & only", doc.getDocumentElement().getTextContent());
+    }
+
+    @Test
+    public void testRecord() throws Exception {
+        List<EnvelopeProcessor.Record> records = process(EnvelopeProcessor.Part.RECORD, new EnvelopeInfo());
+        Document doc = parse(records.get(0));
+        assertEquals("http://www.openarchives.org/OAI/2.0/", doc.getDocumentElement().getNamespaceURI());
+        assertEquals("record", doc.getDocumentElement().getLocalName());
+        assertEquals(1, doc.getElementsByTagNameNS("http://purl.org/dc/elements/1.1/", "title").getLength());
+        // a deleted record is handed on as a whole too
+        assertTrue(records.get(1).hasContent());
+    }
+
+    @Test(expected = XMLStreamException.class)
+    public void testMalformed() throws Exception {
+        new EnvelopeProcessor(EnvelopeProcessor.Part.RECORD).process(
+                new ByteArrayInputStream("<record><header></record>".getBytes(StandardCharsets.UTF_8)),
+                new EnvelopeInfo(), r -> fail());
+    }
+
+    @Test
+    public void testSlices() throws Exception {
+        String metadata = "\r\n<dc:dc xsi:schemaLocation=\"x\"><dc:title>\u00e9\u20ac\ud83d\ude00</dc:title>\r\n"
+                + "<dc:creator xmlns:dc=\"http://purl.org/dc/elements/1.1/\">me</dc:creator></dc:dc>";
+        String page = "\ufeff<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n"
+                + "<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\""
+                + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xmlns:unused=\"urn:unused\"><ListRecords>\r\n"
+                + "<record><header><identifier>oai:\u00e9:1</identifier></header><metadata>" + metadata
+                + "</metadata></record>\r\n"
+                + "<record xmlns=\"urn:own\"><header><identifier>oai:\u00e9:2</identifier></header></record>"
+                + "</ListRecords></OAI-PMH>";
+        byte[] bytes = page.getBytes(StandardCharsets.UTF_8);
+
+        // only the declarations used by the content are added
+        List<EnvelopeProcessor.Record> records = process(EnvelopeProcessor.Part.METADATA, new EnvelopeInfo(), bytes);
+        assertEquals("oai:\u00e9:1", records.get(0).getIdentifier());
+        assertEquals(metadata.replace("<dc:dc ", "<dc:dc xmlns:dc=\"http://purl.org/dc/elements/1.1/\""
+                + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" "), read(records.get(0)));
+        assertEquals("\ud83d\ude00", parse(records.get(0)).getElementsByTagNameNS(
+                "http://purl.org/dc/elements/1.1/", "title").item(0).getTextContent().substring(2));
+
+        records = process(EnvelopeProcessor.Part.RECORD, new EnvelopeInfo(), bytes);
+        assertTrue(read(records.get(0)).startsWith("<record xmlns=\"http://www.openarchives.org/OAI/2.0/\""
+                + " xmlns:dc=\"http://purl.org/dc/elements/1.1/\" xmlns:xsi="));
+        assertEquals("http://www.openarchives.org/OAI/2.0/", parse(records.get(0)).getDocumentElement().getNamespaceURI());
+        // declares all it uses, so it is a view on the response as it is
+        assertEquals("<record xmlns=\"urn:own\"><header><identifier>oai:\u00e9:2</identifier></header></record>",
+                read(records.get(1)));
+
+        // a stream can be read again
+        InputStream in = records.get(1).getStream();
+        in.readAllBytes();
+        in.reset();
+        assertEquals('<', in.read());
+    }
+
+    @Test
+    public void testOtherEncoding() throws Exception {
+        String page = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>"
+                + "<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\"><ListRecords>"
+                + "<record><header><identifier>oai:\u00e9:1</identifier></header><metadata><t>\u00e9</t></metadata></record>"
+                + "</ListRecords></OAI-PMH>";
+        List<EnvelopeProcessor.Record> records = process(EnvelopeProcessor.Part.METADATA, new EnvelopeInfo(),
+                page.getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals("oai:\u00e9:1", records.get(0).getIdentifier());
+        // copied as UTF-8
+        Document doc = parse(records.get(0));
+        assertEquals("http://www.openarchives.org/OAI/2.0/", doc.getDocumentElement().getNamespaceURI());
+        assertEquals("\u00e9", doc.getDocumentElement().getTextContent());
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        // the response breaks off after the first record
+        String page = PAGE.substring(0, PAGE.indexOf("<record>", PAGE.indexOf("</record>")));
+        InputStream in = new SequenceInputStream(new ByteArrayInputStream(page.getBytes(StandardCharsets.UTF_8)),
+                new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException("connection reset");
+                    }
+                });
+        List<EnvelopeProcessor.Record> records = new ArrayList<>();
+        try {
+            new EnvelopeProcessor(EnvelopeProcessor.Part.METADATA).process(in, new EnvelopeInfo(), records::add);
+            fail();
+        } catch (IOException ex) {
+            assertEquals("connection reset", ex.getMessage());
+        }
+
+        // handed on as it was read, as a copy
+        assertEquals(1, records.size());
+        Document doc = parse(records.get(0));
+        assertEquals("http://purl.org/dc/elements/1.1/", doc.getDocumentElement().getNamespaceURI());
+        assertEquals("One & only", doc.getDocumentElement().getTextContent());
+    }
+}
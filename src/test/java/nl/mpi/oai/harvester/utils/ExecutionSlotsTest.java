@@ -0,0 +1,183 @@
+package nl.mpi.oai.harvester.utils;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.junit.Assert.*;
+
+public class ExecutionSlotsTest {
+
+    @Test
+    public void testWaitingTaskGivesSlotAway() throws Exception {
+        ExecutionSlots slots = new ExecutionSlots(1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        List<String> finished = new CopyOnWriteArrayList<>();
+        try {
+            slots.acquire();
+            executor.submit(slots.holding(() -> {
+                try {
+                    ExecutionSlots.sleep(1500, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finished.add("retrying");
+            }));
+            // the only slot is free again while the first task waits
+            slots.acquire();
+            executor.submit(slots.holding(() -> finished.add("runnable")));
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        assertEquals(List.of("runnable", "retrying"), finished);
+        assertEquals(1, slots.getYields());
+        assertEquals(1, slots.available());
+    }
+
+    @Test
+    public void testExclusiveWhileRetrying() throws Exception {
+        // one slot, a provider that waits to retry while holding the shared
+        // lock and an exclusive provider started in the slot it gave back,
+        // which waits for the lock without the slot
+        ExecutionSlots slots = new ExecutionSlots(1);
+        ReadWriteLock exclusive = new ReentrantReadWriteLock(true);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        List<String> finished = new CopyOnWriteArrayList<>();
+        try {
+            slots.acquire();
+            executor.submit(slots.holding(() -> {
+                ExecutionSlots.lock(exclusive.readLock());
+                try {
+                    ExecutionSlots.sleep(1500, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    ExecutionSlots.unlock(exclusive.readLock());
+                }
+                finished.add("retrying");
+            }));
+            slots.acquire();
+            executor.submit(slots.holding(() -> {
+                ExecutionSlots.lock(exclusive.writeLock());
+                ExecutionSlots.unlock(exclusive.writeLock());
+                finished.add("exclusive");
+            }));
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        assertEquals(List.of("retrying", "exclusive"), finished);
+        assertEquals(1, slots.available());
+    }
+
+    @Test
+    public void testExclusiveKeepsLockWhileRetrying() throws Exception {
+        // an exclusive provider waits to retry, a provider started in the
+        // slot it gave back doesn't run before the exclusive one is done
+        ExecutionSlots slots = new ExecutionSlots(1);
+        ReadWriteLock exclusive = new ReentrantReadWriteLock(true);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        List<String> finished = new CopyOnWriteArrayList<>();
+        try {
+            slots.acquire();
+            executor.submit(slots.holding(() -> {
+                ExecutionSlots.lock(exclusive.writeLock());
+                try {
+                    ExecutionSlots.sleep(1500, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    finished.add("exclusive");
+                    ExecutionSlots.unlock(exclusive.writeLock());
+                }
+            }));
+            slots.acquire();
+            executor.submit(slots.holding(() -> {
+                ExecutionSlots.lock(exclusive.readLock());
+                finished.add("shared");
+                ExecutionSlots.unlock(exclusive.readLock());
+            }));
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        assertEquals(List.of("exclusive", "shared"), finished);
+        assertEquals(1, slots.available());
+    }
+
+    @Test
+    public void testLockWaitGivesSlotAway() throws Exception {
+        ExecutionSlots slots = new ExecutionSlots(1);
+        ReadWriteLock exclusive = new ReentrantReadWriteLock(true);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        List<String> finished = new CopyOnWriteArrayList<>();
+        exclusive.writeLock().lock();
+        try {
+            slots.acquire();
+            executor.submit(slots.holding(() -> {
+                ExecutionSlots.lock(exclusive.readLock());
+                ExecutionSlots.unlock(exclusive.readLock());
+                finished.add("waiting");
+            }));
+            // the slot is free while the first task waits for the lock
+            slots.acquire();
+            executor.submit(slots.holding(() -> finished.add("runnable")));
+            Thread.sleep(200);
+            assertEquals(List.of("runnable"), finished);
+        } finally {
+            exclusive.writeLock().unlock();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        assertEquals(List.of("runnable", "waiting"), finished);
+        assertEquals(1, slots.available());
+    }
+
+    @Test
+    public void testShortSleepKeepsSlot() throws Exception {
+        ExecutionSlots slots = new ExecutionSlots(1);
+        AtomicInteger availableDuring = new AtomicInteger(-1);
+        slots.acquire();
+        slots.holding(() -> {
+            try {
+                ExecutionSlots.sleep(10, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            availableDuring.set(slots.available());
+        }).run();
+        assertEquals(0, availableDuring.get());
+        assertEquals(0, slots.getYields());
+        assertEquals(1, slots.available());
+    }
+
+    @Test
+    public void testSlotBackAfterInterrupt() throws Exception {
+        ExecutionSlots slots = new ExecutionSlots(1);
+        AtomicInteger availableAfter = new AtomicInteger(-1);
+        slots.acquire();
+        Thread t = new Thread(slots.holding(() -> {
+            try {
+                ExecutionSlots.sleep(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                availableAfter.set(slots.available());
+            }
+        }));
+        t.start();
+        Thread.sleep(200);
+        assertEquals(1, slots.available());
+        t.interrupt();
+        t.join();
+        // the slot was held again when the interrupt came through
+        assertEquals(0, availableAfter.get());
+        assertEquals(1, slots.available());
+    }
+}
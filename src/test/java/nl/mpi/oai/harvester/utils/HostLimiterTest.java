@@ -0,0 +1,80 @@
+package nl.mpi.oai.harvester.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HostLimiterTest {
+
+    @Test
+    public void testMaxConnections() throws Exception {
+        HostLimiter limiter = new HostLimiter();
+        limiter.setLimit("example.org", new HostLimiter.Limit(2, 0));
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            Thread t = new Thread(() -> {
+                try (HostLimiter.Permit permit = limiter.acquire("example.org")) {
+                    peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+                    Thread.sleep(50);
+                    active.decrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(2, peak.get());
+        assertEquals(6, limiter.getWaitStats().get("example.org").getCount());
+        // the waiting ones waited for at least one round
+        assertTrue(limiter.getWaitStats().get("example.org").getMaxMillis() >= 40);
+    }
+
+    @Test
+    public void testMinInterval() throws Exception {
+        HostLimiter limiter = new HostLimiter();
+        limiter.setDefaultLimit(new HostLimiter.Limit(0, 100));
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire("example.org").close();
+        }
+        // the first request doesn't wait, the others 100ms each
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 300);
+        // other hosts aren't affected
+        start = System.nanoTime();
+        limiter.acquire("example.com").close();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+    }
+
+    @Test
+    public void testReleaseOnce() throws Exception {
+        HostLimiter limiter = new HostLimiter();
+        limiter.setLimit("example.org", new HostLimiter.Limit(1, 0));
+        HostLimiter.Permit permit = limiter.acquire("example.org");
+        permit.close();
+        permit.close();
+        limiter.acquire("example.org");
+        Thread t = new Thread(() -> {
+            try {
+                limiter.acquire("example.org");
+                fail("a second permit was handed out");
+            } catch (InterruptedException e) {
+                // expected
+            }
+        });
+        t.start();
+        t.join(200);
+        assertTrue(t.isAlive());
+        t.interrupt();
+        t.join();
+    }
+}
@@ -0,0 +1,118 @@
+package nl.mpi.oai.harvester.utils;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+
+/**
+ * Compares requests per second of the pooled {@link HttpTransport} with a
+ * fresh HttpURLConnection per request (the old HarvesterVerb behaviour)
+ * against a local WireMock endpoint, over plain HTTP and over TLS.
+ * <p>
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=nl.mpi.oai.harvester.utils.HttpTransportBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class HttpTransportBenchmark {
+
+    @Param({"http", "https"})
+    public String scheme;
+
+    private WireMockServer server;
+    private HttpTransport transport;
+    private SSLContext ssl;
+    private String url;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // WireMock's self signed certificate isn't issued for localhost
+        System.setProperty("jdk.internal.httpclient.disableHostnameVerification", "true");
+        ssl = SSLContext.getInstance("TLS");
+        ssl.init(null, new TrustManager[]{new X509TrustManager() {
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        server = new WireMockServer(options().dynamicPort().dynamicHttpsPort());
+        server.start();
+        String body;
+        try (InputStream in = HttpTransportBenchmark.class.getResourceAsStream("/response-Identify.xml")) {
+            body = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        server.stubFor(get(urlPathEqualTo("/oai")).willReturn(aResponse().withStatus(200).withBody(body)));
+        int port = "https".equals(scheme) ? server.httpsPort() : server.port();
+        url = scheme + "://localhost:" + port + "/oai?verb=Identify";
+        transport = new HttpTransport(HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .sslContext(ssl)
+                .build());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public long urlConnection() throws IOException {
+        java.net.HttpURLConnection con = (java.net.HttpURLConnection) new URL(url).openConnection();
+        if (con instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) con).setSSLSocketFactory(ssl.getSocketFactory());
+            ((HttpsURLConnection) con).setHostnameVerifier((h, s) -> true);
+        }
+        con.setRequestProperty("User-Agent", HttpTransport.USER_AGENT);
+        con.setRequestProperty("Accept-Encoding", "compress, gzip, identify");
+        con.setConnectTimeout(5000);
+        con.setReadTimeout(5000);
+        try (InputStream in = con.getInputStream()) {
+            return IOUtils.copyLarge(in, OutputStream.nullOutputStream());
+        } finally {
+            con.disconnect();
+        }
+    }
+
+    @Benchmark
+    public long transport() throws IOException {
+        try (InputStream in = transport.get(url, 5).body()) {
+            return IOUtils.copyLarge(in, OutputStream.nullOutputStream());
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(HttpTransportBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,182 @@
+package nl.mpi.oai.harvester.utils;
+
+import ORG.oclc.oai.harvester2.verb.Identify;
+import ORG.oclc.oai.harvester2.verb.ListRecords;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.Assert.*;
+
+public class HttpTransportTest {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(options().dynamicPort());
+
+    private String url(String path) {
+        return "http://localhost:" + wireMockRule.port() + path;
+    }
+
+    private static String identify() throws IOException {
+        try (InputStream in = HttpTransportTest.class.getResourceAsStream("/response-Identify.xml")) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testConnectionReuse() throws Exception {
+        stubFor(get(urlPathEqualTo("/oai")).willReturn(aResponse().withStatus(200).withBody(identify())));
+        HttpTransport transport = HttpTransport.getInstance();
+        for (int i = 0; i < 3; i++) {
+            HttpResponse<InputStream> response = transport.get(url("/oai?verb=Identify"), 5);
+            assertEquals(200, response.statusCode());
+            try (InputStream in = response.body()) {
+                // WireMock gzips the body, HarvesterVerb takes care of that
+                assertTrue(IOUtils.toByteArray(in).length > 0);
+            }
+        }
+        LatencyStats stats = transport.getFirstByteStats().get("localhost:" + wireMockRule.port());
+        assertEquals(3, stats.getCount());
+        assertEquals(1, transport.getConnectStats().get("localhost:" + wireMockRule.port()).getCount());
+    }
+
+    @Test
+    public void testHostPermitReleased() throws Exception {
+        stubFor(get(urlPathEqualTo("/oai")).willReturn(aResponse().withStatus(200).withBody(identify())));
+        HttpTransport transport = new HttpTransport(HttpClient.newHttpClient());
+        transport.getHostLimiter().setLimit("localhost", new HostLimiter.Limit(1, 0));
+        // read completely
+        try (InputStream in = transport.get(url("/oai?verb=Identify"), 5).body()) {
+            IOUtils.toByteArray(in);
+        }
+        // closed without reading
+        transport.get(url("/oai?verb=Identify"), 5).body().close();
+        try (InputStream in = transport.get(url("/oai?verb=Identify"), 5).body()) {
+            assertTrue(IOUtils.toByteArray(in).length > 0);
+        }
+        assertEquals(3, transport.getHostLimiter().getWaitStats().get("localhost").getCount());
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gz = new GZIPOutputStream(bytes)) {
+            gz.write(identify().getBytes(StandardCharsets.UTF_8));
+        }
+        stubFor(get(urlPathEqualTo("/oai")).willReturn(aResponse().withStatus(200)
+                .withHeader("Content-Encoding", "gzip").withBody(bytes.toByteArray())));
+        Identify identify = new Identify(url("/oai"), 5);
+        assertEquals("2.0", identify.getProtocolVersion());
+    }
+
+    @Test(timeout = 10000)
+    public void testBadGzipReleasesPermit() throws Exception {
+        stubFor(get(urlPathEqualTo("/oai")).willReturn(aResponse().withStatus(200)
+                .withHeader("Content-Encoding", "gzip").withBody("not gzipped ".repeat(10000))));
+        HostLimiter limiter = HttpTransport.getInstance().getHostLimiter();
+        limiter.setLimit("localhost", new HostLimiter.Limit(1, 0));
+        try {
+            // the body isn't read to its end, the second request would wait
+            // for the permit of the first
+            for (int i = 0; i < 2; i++) {
+                try {
+                    new Identify(url("/oai"), 5);
+                    fail("the body isn't gzipped");
+                } catch (IOException expected) {
+                }
+            }
+        } finally {
+            limiter.setLimit("localhost", new HostLimiter.Limit(0, 0));
+        }
+    }
+
+    @Test
+    public void testRetryAfter() throws Exception {
+        stubFor(get(urlPathEqualTo("/oai")).inScenario("retry").whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse().withStatus(503).withHeader("Retry-After", "1"))
+                .willSetStateTo("available"));
+        stubFor(get(urlPathEqualTo("/oai")).inScenario("retry").whenScenarioStateIs("available")
+                .willReturn(aResponse().withStatus(200).withBody(identify())));
+        Identify identify = new Identify(url("/oai"), 5);
+        assertEquals("2.0", identify.getProtocolVersion());
+        verify(2, getRequestedFor(urlPathEqualTo("/oai")));
+    }
+
+    @Test
+    public void testRetryAfterPaced() throws Exception {
+        stubFor(get(urlPathEqualTo("/paced")).inScenario("paced").whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse().withStatus(503).withHeader("Retry-After", "1"))
+                .willSetStateTo("available"));
+        stubFor(get(urlPathEqualTo("/paced")).inScenario("paced").whenScenarioStateIs("available")
+                .willReturn(aResponse().withStatus(200).withBody(identify())));
+        PaceController pace = new PaceController();
+        HttpTransport.getInstance().setPace(url("/paced"), pace);
+        try {
+            long start = System.nanoTime();
+            Identify identify = new Identify(url("/paced"), 5);
+            assertEquals("2.0", identify.getProtocolVersion());
+            assertTrue(System.nanoTime() - start >= 900_000_000L);
+            // backed off for the 503, then one step faster for the 200
+            assertEquals(PaceController.MIN_BACKOFF - PaceController.STEP, pace.getInterval());
+            assertTrue(pace.getLatency() > 0);
+        } finally {
+            HttpTransport.getInstance().removePace(url("/paced"), pace);
+        }
+    }
+
+    @Test
+    public void testRedirect() throws Exception {
+        stubFor(get(urlPathEqualTo("/old")).willReturn(aResponse().withStatus(301).withHeader("Location", url("/oai"))));
+        stubFor(get(urlPathEqualTo("/oai")).willReturn(aResponse().withStatus(200).withBody(identify())));
+        Identify identify = new Identify(url("/old"), 5);
+        assertEquals(url("/oai"), identify.getRequestURL());
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        String page = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+                + " xsi:schemaLocation=\"http://www.openarchives.org/OAI/2.0/ http://www.openarchives.org/OAI/2.0/OAI-PMH.xsd\">"
+                + "<ListRecords><record><header><identifier>oai:test:1</identifier></header></record>"
+                + "<resumptionToken>token-1</resumptionToken></ListRecords></OAI-PMH>";
+        stubFor(get(urlPathEqualTo("/oai")).willReturn(aResponse().withStatus(200).withBody(page)));
+        Path temp = Files.createTempFile("HttpTransportTest", ".xml");
+        try {
+            ListRecords records = new ListRecords(url("/oai"), null, null, null, "oai_dc", 5, temp, true);
+            assertTrue(records.getStream() instanceof SpoolingInputStream);
+            assertEquals("token-1", records.getResumptionToken());
+            assertEquals(page, IOUtils.toString(records.getStream(), StandardCharsets.UTF_8));
+            records.getStream().close();
+        } finally {
+            Files.delete(temp);
+        }
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testNotFound() throws Exception {
+        stubFor(get(urlPathEqualTo("/oai")).willReturn(aResponse().withStatus(404)));
+        new Identify(url("/oai"), 5);
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void testTimeout() throws Exception {
+        stubFor(get(urlPathEqualTo("/oai")).willReturn(aResponse().withStatus(200).withBody(identify()).withFixedDelay(3000)));
+        new Identify(url("/oai"), 1);
+    }
+}
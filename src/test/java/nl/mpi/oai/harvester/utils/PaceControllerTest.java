@@ -0,0 +1,103 @@
+package nl.mpi.oai.harvester.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PaceControllerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testAdditiveIncrease() {
+        PaceController pace = new PaceController();
+        pace.setInterval(1000);
+        assertEquals(4, pace.getWindow(4));
+        pace.onThrottle(0);
+        assertEquals(2000, pace.getInterval());
+        assertEquals(2, pace.getWindow(4));
+        for (int i = 0; i < 2; i++)
+            pace.onResponse(100 * MS);
+        // by an eighth each
+        assertEquals(1532, pace.getInterval());
+        // one window of good responses widens it by one
+        assertEquals(3, pace.getWindow(4));
+        for (int i = 0; i < 100; i++)
+            pace.onResponse(100 * MS);
+        assertEquals(0, pace.getInterval());
+        assertEquals(4, pace.getWindow(4));
+    }
+
+    @Test
+    public void testRecoversFromMaxInterval() {
+        PaceController pace = new PaceController();
+        pace.setInterval(PaceController.MAX_INTERVAL);
+        int responses = 0;
+        while (pace.getInterval() > 0) {
+            pace.onResponse(100 * MS);
+            responses++;
+        }
+        assertTrue(responses <= 50);
+    }
+
+    @Test
+    public void testSlowResponseDecreases() {
+        PaceController pace = new PaceController();
+        pace.onResponse(100 * MS);
+        assertEquals(0, pace.getInterval());
+        pace.onResponse(1000 * MS);
+        assertEquals(PaceController.MIN_BACKOFF, pace.getInterval());
+        // the slow response counts towards the usual latency
+        assertEquals(280, Math.round(pace.getLatency()));
+    }
+
+    @Test
+    public void testLastingSlowdownRecovers() {
+        PaceController pace = new PaceController();
+        // e.g. a fast Identify followed by ListRecords pages
+        pace.onResponse(10 * MS);
+        long max = 0;
+        for (int i = 0; i < 50; i++) {
+            pace.onResponse(1000 * MS);
+            max = Math.max(max, pace.getInterval());
+        }
+        assertTrue(max <= PaceController.MIN_BACKOFF << (PaceController.MAX_SLOW_DECREASES - 1));
+        assertEquals(0, pace.getInterval());
+        assertEquals(1000, Math.round(pace.getLatency()));
+    }
+
+    @Test
+    public void testRetryAfterHoldsBack() throws Exception {
+        PaceController pace = new PaceController();
+        pace.onThrottle(1);
+        long start = System.nanoTime();
+        pace.await();
+        assertTrue(System.nanoTime() - start >= 900 * MS);
+    }
+
+    @Test
+    public void testPersist() throws Exception {
+        PaceController pace = new PaceController();
+        pace.getWindow(8);
+        pace.onResponse(120 * MS);
+        pace.onThrottle(5);
+        Path file = folder.getRoot().toPath().resolve("harvest_pace").resolve("provider");
+        pace.persist(file);
+        PaceController loaded = PaceController.load(file).get();
+        assertEquals(PaceController.MIN_BACKOFF, loaded.getInterval());
+        assertEquals(4, loaded.getWindow());
+        assertEquals(120, Math.round(loaded.getLatency()));
+        // the Retry-After of the last run doesn't carry over
+        long start = System.nanoTime();
+        loaded.await();
+        assertTrue(System.nanoTime() - start < 100 * MS);
+    }
+}
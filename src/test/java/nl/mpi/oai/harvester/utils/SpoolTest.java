@@ -0,0 +1,96 @@
+package nl.mpi.oai.harvester.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String TEXT = "<OAI-PMH><ListRecords><record/></ListRecords></OAI-PMH>";
+
+    private static InputStream source(byte[] bytes) {
+        return new ByteArrayInputStream(bytes);
+    }
+
+    @Test
+    public void testReusedAndGrown() throws Exception {
+        Path file = folder.newFile().toPath();
+        Spool spool = Spool.of(file);
+        try {
+            assertSame(spool, Spool.of(file));
+
+            ByteBuffer page = spool.fill(source(TEXT.getBytes(StandardCharsets.UTF_8)));
+            assertEquals(TEXT.length(), page.remaining());
+            assertTrue(page.isReadOnly());
+            int capacity = spool.getCapacity();
+
+            // a smaller response reuses the mapping
+            page = spool.fill(source("<OAI-PMH/>".getBytes(StandardCharsets.UTF_8)));
+            assertEquals("<OAI-PMH/>", IOUtils.toString(new ByteBufferInputStream(page), StandardCharsets.UTF_8));
+            assertEquals(capacity, spool.getCapacity());
+
+            // a larger one grows it
+            byte[] large = new byte[capacity + 1];
+            Arrays.fill(large, (byte) 'x');
+            page = spool.fill(source(large));
+            assertEquals(large.length, page.remaining());
+            assertEquals('x', page.get(large.length - 1));
+            assertTrue(spool.getCapacity() > capacity);
+        } finally {
+            Spool.close(file);
+        }
+        assertFalse(Files.exists(file));
+        assertNotSame(spool, Spool.of(file));
+        Spool.close(file);
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        Path file = folder.newFile().toPath();
+        try {
+            Spool spool = Spool.of(file);
+            spool.fill(source(TEXT.getBytes(StandardCharsets.UTF_8)));
+            // e.g. a streamed response spooled to the same file
+            Files.writeString(file, TEXT);
+            ByteBuffer page = spool.fill(source(TEXT.getBytes(StandardCharsets.UTF_8)));
+            assertEquals(TEXT, IOUtils.toString(new ByteBufferInputStream(page), StandardCharsets.UTF_8));
+            assertTrue(Files.size(file) >= spool.getCapacity());
+        } finally {
+            Spool.close(file);
+        }
+    }
+
+    @Test
+    public void testReaders() throws Exception {
+        Path file = folder.newFile().toPath();
+        try {
+            ByteBufferInputStream in = new ByteBufferInputStream(
+                    Spool.of(file).fill(source(TEXT.getBytes(StandardCharsets.UTF_8))));
+            InputStream first = in.newReader();
+            InputStream second = in.newReader();
+            byte[] start = new byte[10];
+            assertEquals(10, IOUtils.read(first, start));
+            // readers don't move each other
+            assertEquals(TEXT, IOUtils.toString(second, StandardCharsets.UTF_8));
+            assertEquals(TEXT.substring(10), IOUtils.toString(first, StandardCharsets.UTF_8));
+            assertEquals(TEXT, IOUtils.toString(in.newReader(), StandardCharsets.UTF_8));
+            assertEquals(TEXT.length(), in.asBuffer().remaining());
+        } finally {
+            Spool.close(file);
+        }
+    }
+}
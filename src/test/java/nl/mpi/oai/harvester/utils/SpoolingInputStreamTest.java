@@ -0,0 +1,39 @@
+package nl.mpi.oai.harvester.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class SpoolingInputStreamTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String TEXT = "<OAI-PMH><ListRecords><record/></ListRecords></OAI-PMH>";
+
+    @Test
+    public void testResetReadsSpoolThenSource() throws Exception {
+        Path spool = folder.newFile().toPath();
+        Files.writeString(spool, "stale content of a previous response, longer than the new one");
+        try (SpoolingInputStream in = new SpoolingInputStream(
+                new ByteArrayInputStream(TEXT.getBytes(StandardCharsets.UTF_8)), spool)) {
+            byte[] start = new byte[10];
+            assertEquals(10, IOUtils.read(in, start));
+            assertFalse(in.isComplete());
+            in.reset();
+            assertEquals(TEXT, IOUtils.toString(in, StandardCharsets.UTF_8));
+            assertTrue(in.isComplete());
+            in.reset();
+            assertEquals(TEXT, IOUtils.toString(in, StandardCharsets.UTF_8));
+        }
+        assertEquals(TEXT, Files.readString(spool));
+    }
+}
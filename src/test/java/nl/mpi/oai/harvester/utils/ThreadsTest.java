@@ -0,0 +1,47 @@
+package nl.mpi.oai.harvester.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ThreadsTest {
+
+    @After
+    public void tearDown() {
+        Threads.setVirtual(false);
+    }
+
+    @Test
+    public void testVirtualOnlyIfSupported() {
+        assertEquals(Threads.isVirtualSupported(), Threads.setVirtual(true));
+        assertEquals(Threads.isVirtualSupported(), Threads.isVirtual());
+        assertFalse(Threads.setVirtual(false));
+    }
+
+    @Test
+    public void testNewThread() throws Exception {
+        for (boolean virtual : new boolean[]{false, true}) {
+            Threads.setVirtual(virtual);
+            Thread thread = Threads.newThread(() -> {}, "provider-prefetch");
+            assertEquals("provider-prefetch", thread.getName());
+            assertTrue(thread.isDaemon());
+            thread.start();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void testNewExecutor() throws Exception {
+        Threads.setVirtual(true);
+        ExecutorService executor = Threads.newExecutor();
+        Future<String> f = executor.submit(() -> "done");
+        assertEquals("done", f.get());
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+}